@@ -18,9 +18,39 @@ public class BitTorrent
 	// Number of connection attemps that a peer will make to another peer
 	public static int CONNECTION_ATTEMPTS = 30;
 
-	// The number of seconds before a requested piece is timed out.
+	// The number of milliseconds before a single connection attempt is abandoned
+	public static int CONNECTION_TIMEOUT_MS = 2000;
+
+	// The initial and maximum delay in milliseconds between connection attempts.
+	// The delay doubles after each failed attempt and a random jitter is applied.
+	public static int CONNECTION_BACKOFF_BASE_MS = 100;
+	public static int CONNECTION_BACKOFF_MAX_MS = 2000;
+
+	// The longest time in milliseconds spent connecting to a single peer, which is
+	// that of the original 30 attempts made one second apart
+	public static int CONNECTION_DEADLINE_MS = 30000;
+
+	// The number of seconds before a requested piece is timed out, until the
+	// response times of the other peer have been measured
 	public static int REQUEST_TIMEOUT = 3;
 
+	// The default number of seconds that a neighbor which has unchoked this peer
+	// may leave its requests unanswered before it is considered to be snubbing
+	// this peer
+	public static int SNUB_TIMEOUT = 60;
+
+	// The number of seconds without sending a message before a keep-alive message
+	// is sent to the other peer
+	public static int KEEP_ALIVE_INTERVAL = 10;
+
+	// The number of seconds without receiving a message before the other peer is
+	// considered dead and the connection is torn down
+	public static int IDLE_TIMEOUT = 30;
+
+	// The number of milliseconds that have announcements to a peer are collected
+	// for before they are sent together in a have batch message
+	public static int HAVE_BATCH_DELAY_MS = 5;
+
 	// The default window size of the bit torrent config GUI
 	public static final int DEFAULT_WINDOW_WIDTH = 500;
 	public static final int DEFAULT_WINDOW_HEIGHT = 300;
@@ -6,9 +6,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.StringTokenizer;
 
+import bittorrent.BitTorrent;
 import bittorrent.app.BitTorrentSettings;
+import bittorrent.protocol.extensions.Extension;
+import bittorrent.protocol.peer.transport.TransportType;
 
 // @formatter:off
 /**
@@ -23,6 +28,36 @@ import bittorrent.app.BitTorrentSettings;
  * - FileName is the file in which all peers are interested
  * - FileSize specified the size of the file in bytes
  * - PieceSize specifies the size of a piece in bytes
+ * 
+ * The following parameters are optional:
+ * - MaxUploadRate: the maximum total upload rate in bytes per second. A value
+ *   of 0 does not limit the upload rate.
+ * - MaxDownloadRate: the maximum total download rate in bytes per second. A
+ *   value of 0 does not limit the download rate.
+ * - Transport: the transport used by the peer connections, either async 
+ *   (asynchronous socket channels) or selector (non-blocking socket channels 
+ *   spread across one event loop per core) or loopback (in-memory transports 
+ *   that only connect peers running in the same JVM as node threads) or utp 
+ *   (UDP with delay based congestion control, falling back to async for peers 
+ *   that do not answer over UDP). The default is async.
+ * - UtpEmulatedRate: for testing the utp transport, the rate in bytes per 
+ *   second of an emulated link that outgoing datagrams are sent through.
+ * - UtpEmulatedDelay: for testing the utp transport, the one way delay in 
+ *   milliseconds of the emulated link.
+ * - Extensions: the protocol extensions this peer supports, separated by 
+ *   spaces, or none to disable every extension. An extension is only used 
+ *   with the peers that support it as well. The default is none, since a 
+ *   peer without extensions rejects a handshake with reserved bits set.
+ * - SnubTimeout: the time in seconds that a neighbor which has unchoked this 
+ *   peer may leave its requests unanswered before it is considered to be 
+ *   snubbing this peer. The default is 60 seconds.
+ * - SuperSeeding: 1 for a peer that starts with the file to reveal its pieces 
+ *   one at a time, until its neighbors hold a full copy between them, or 0 to 
+ *   announce every piece. The default is 0.
+ * - StreamingWindow: the number of pieces from the read position of the 
+ *   application that are downloaded in order before any other piece, so that 
+ *   the start of the file can be read early. A value of 0 disables streaming. 
+ *   The default is 0.
  */
 // @formatter:on
 public class CommonConfig
@@ -35,6 +70,15 @@ public class CommonConfig
 	private String fileName;
 	private int fileSize;
 	private int pieceSize;
+	private int maxUploadRate;
+	private int maxDownloadRate;
+	private TransportType transport = TransportType.ASYNCHRONOUS;
+	private int utpEmulatedRate;
+	private int utpEmulatedDelay;
+	private Set<Extension> extensions = EnumSet.noneOf(Extension.class);
+	private Duration snubTimeout = Duration.ofSeconds(BitTorrent.SNUB_TIMEOUT);
+	private boolean superSeeding;
+	private int streamingWindow;
 
 	private enum ConfigOption
 	{
@@ -45,6 +89,15 @@ public class CommonConfig
 		FILE_NAME("FileName"), 
 		FILE_SIZE("FileSize"), 
 		PIECE_SIZE("PieceSize"),
+		MAX_UPLOAD_RATE("MaxUploadRate"),
+		MAX_DOWNLOAD_RATE("MaxDownloadRate"),
+		TRANSPORT("Transport"),
+		UTP_EMULATED_RATE("UtpEmulatedRate"),
+		UTP_EMULATED_DELAY("UtpEmulatedDelay"),
+		EXTENSIONS("Extensions"),
+		SNUB_TIMEOUT("SnubTimeout"),
+		SUPER_SEEDING("SuperSeeding"),
+		STREAMING_WINDOW("StreamingWindow"),
 		UNKNOWN("");
 		// @formatter:on
 
@@ -140,6 +193,52 @@ public class CommonConfig
 				case PIECE_SIZE:
 					config.pieceSize = Integer.parseInt(tokenizer.nextToken());
 					break;
+				case MAX_UPLOAD_RATE:
+					config.maxUploadRate = Integer.parseInt(tokenizer.nextToken());
+					break;
+				case MAX_DOWNLOAD_RATE:
+					config.maxDownloadRate = Integer.parseInt(tokenizer.nextToken());
+					break;
+				case TRANSPORT:
+					String transportStr = tokenizer.nextToken();
+					config.transport = TransportType.parse(transportStr);
+					if (config.transport == null)
+					{
+						throw new IOException("Error: Unrecognized transport " + transportStr + ".");
+					}
+					break;
+				case UTP_EMULATED_RATE:
+					config.utpEmulatedRate = Integer.parseInt(tokenizer.nextToken());
+					break;
+				case UTP_EMULATED_DELAY:
+					config.utpEmulatedDelay = Integer.parseInt(tokenizer.nextToken());
+					break;
+				case EXTENSIONS:
+					config.extensions = EnumSet.noneOf(Extension.class);
+					while (tokenizer.hasMoreTokens())
+					{
+						String extensionStr = tokenizer.nextToken();
+						Extension extension = Extension.parse(extensionStr);
+						if (extension != null)
+						{
+							config.extensions.add(extension);
+						}
+						else if (!extensionStr.equals("none"))
+						{
+							throw new IOException("Error: Unrecognized extension " + extensionStr + ".");
+						}
+					}
+					break;
+				case SNUB_TIMEOUT:
+					int snubSeconds = Integer.parseInt(tokenizer.nextToken());
+					config.snubTimeout = Duration.ofSeconds(snubSeconds);
+					break;
+				case SUPER_SEEDING:
+					config.superSeeding = Integer.parseInt(tokenizer.nextToken()) != 0;
+					break;
+				case STREAMING_WINDOW:
+					config.streamingWindow = Integer.parseInt(tokenizer.nextToken());
+					break;
 				case PREFERRED_NEIGHBORS:
 					config.numberOfPreferredNeightbors = Integer.parseInt(tokenizer.nextToken());
 					break;
@@ -238,6 +337,116 @@ public class CommonConfig
 		return pieceSize;
 	}
 
+	/**
+	 * Returns the size of the piece with the provided index
+	 * 
+	 * Every piece has the piece size, except the last piece, which holds the rest
+	 * of the file.
+	 * 
+	 * @param index The index of the piece
+	 * @return The size of the piece in bytes
+	 */
+	public int getPieceSize(int index)
+	{
+		return Math.min(pieceSize, fileSize - index * pieceSize);
+	}
+
+	/**
+	 * Returns the maximum total upload rate in bytes per second
+	 * 
+	 * @return The maximum total upload rate or 0 if the rate is not limited
+	 */
+	public int getMaxUploadRate()
+	{
+		return maxUploadRate;
+	}
+
+	/**
+	 * Returns the maximum total download rate in bytes per second
+	 * 
+	 * @return The maximum total download rate or 0 if the rate is not limited
+	 */
+	public int getMaxDownloadRate()
+	{
+		return maxDownloadRate;
+	}
+
+	/**
+	 * Returns the transport used by the peer connections
+	 * 
+	 * @return The transport used by the peer connections
+	 */
+	public TransportType getTransport()
+	{
+		return transport;
+	}
+
+	/**
+	 * Returns the rate in bytes per second of the emulated link of the utp
+	 * transport
+	 * 
+	 * @return The rate of the emulated link or 0 if the rate is not limited
+	 */
+	public int getUtpEmulatedRate()
+	{
+		return utpEmulatedRate;
+	}
+
+	/**
+	 * Returns the one way delay in milliseconds of the emulated link of the utp
+	 * transport
+	 * 
+	 * @return The delay of the emulated link or 0 if there is no delay
+	 */
+	public int getUtpEmulatedDelay()
+	{
+		return utpEmulatedDelay;
+	}
+
+	/**
+	 * Returns the protocol extensions this peer supports
+	 * 
+	 * @return The protocol extensions this peer supports
+	 */
+	public Set<Extension> getExtensions()
+	{
+		return extensions;
+	}
+
+	/**
+	 * Returns the time that a neighbor may leave the requests of this peer
+	 * unanswered before it is considered to be snubbing this peer
+	 * 
+	 * @return The snub timeout
+	 */
+	public Duration getSnubTimeout()
+	{
+		return snubTimeout;
+	}
+
+	/**
+	 * Indicates if a peer that starts with the file reveals its pieces one at a
+	 * time
+	 * 
+	 * @return True if super seeding is enabled
+	 */
+	public boolean isSuperSeeding()
+	{
+		return superSeeding;
+	}
+
+	/**
+	 * Returns the number of pieces from the read position that are downloaded in
+	 * order
+	 * 
+	 * @return The size of the streaming window in pieces or 0 if streaming is
+	 * disabled
+	 */
+	public int getStreamingWindow()
+	{
+		return streamingWindow;
+	}
+
 	/**
 	 * Returns the number of pieces for the provided file
 	 * 
@@ -1,6 +1,8 @@
 package bittorrent.config;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.StringTokenizer;
 
 // @formatter:off
@@ -9,7 +11,7 @@ import java.util.StringTokenizer;
  * 
  * Strings are in the format:
  * 
- * [peer ID] [host name] [listening port] [has file or not]
+ * [peer ID] [host name] [listening port] [has file or not] (socket path)
  *
  * where,
  * 	 - Peer ID is a positive integer number
@@ -18,6 +20,8 @@ import java.util.StringTokenizer;
  *	 - Has file or not can either be 1 (has complete file) or 0 (does not have 
  *     the file). We do not consider the case where a peer has only some 
  *     pieces. 
+ *	 - Socket path is an optional Unix domain socket path which the peer also
+ *	   listens on. Peers on the same host connect through the socket path.
  */
 // @formatter:on
 public class PeerInfo
@@ -28,13 +32,20 @@ public class PeerInfo
 	private String hostName;
 	private int port;
 	private boolean hasFile;
+	private Path socketPath;
 
 	public PeerInfo(int peerID, String hostName, int port, boolean hasFile)
+	{
+		this(peerID, hostName, port, hasFile, null);
+	}
+
+	public PeerInfo(int peerID, String hostName, int port, boolean hasFile, Path socketPath)
 	{
 		this.peerID = peerID;
 		this.hostName = hostName;
 		this.port = port;
 		this.hasFile = hasFile;
+		this.socketPath = socketPath;
 	}
 	
 	// @formatter:off
@@ -44,7 +55,7 @@ public class PeerInfo
 	 * The format of the line is provided in the project description.
 	 * Specifically: 
 	 * 
-	 * [peer ID] [host name] [listening port] [has file or not]
+	 * [peer ID] [host name] [listening port] [has file or not] (socket path)
 	 *
 	 * where,
 	 * 	 - Peer ID is a positive integer number
@@ -53,6 +64,7 @@ public class PeerInfo
 	 *	 - Has file or not can either be 1 (has complete file) or 0 (does not have 
 	 *     the file). We do not consider the case where a peer has only some 
 	 *     pieces. 
+	 *	 - Socket path is an optional Unix domain socket path
 	 *     
 	 * @param peerInfo The string following the peer info format 
 	 * @throws IOException If the line does not have enough tokens
@@ -62,7 +74,8 @@ public class PeerInfo
 	public static PeerInfo createPeerInfo(String peerInfoLine) throws IOException, NumberFormatException
 	{
 		StringTokenizer peerInfoTokenizer = new StringTokenizer(peerInfoLine, DELIMITER);
-		if (peerInfoTokenizer.countTokens() != 4)
+		int tokenCount = peerInfoTokenizer.countTokens();
+		if (tokenCount != 4 && tokenCount != 5)
 		{
 			String errorMessage = "Error: peer info is formatted incorrectly";
 			throw new IOException(errorMessage);
@@ -77,8 +90,14 @@ public class PeerInfo
 
 		String hasFileStr = peerInfoTokenizer.nextToken();
 		boolean hasFile = Integer.parseInt(hasFileStr) == 1 ? true : false;
+
+		Path socketPath = null;
+		if (peerInfoTokenizer.hasMoreTokens())
+		{
+			socketPath = Paths.get(peerInfoTokenizer.nextToken());
+		}
 		
-		PeerInfo peerInfo = new PeerInfo(peerID, hostName, port, hasFile);
+		PeerInfo peerInfo = new PeerInfo(peerID, hostName, port, hasFile, socketPath);
 		return peerInfo;
 	}
 
@@ -121,4 +140,14 @@ public class PeerInfo
 	{
 		return this.hasFile;
 	}
+
+	/**
+	 * Returns the Unix domain socket path of the peer
+	 * 
+	 * @return The Unix domain socket path or null if the peer has none
+	 */
+	public Path getSocketPath()
+	{
+		return this.socketPath;
+	}
 }
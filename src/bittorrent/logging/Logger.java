@@ -8,6 +8,7 @@ import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.List;
 
+import bittorrent.BitTorrent;
 import bittorrent.protocol.peer.connection.PeerConnection;
 
 /**
@@ -128,6 +129,39 @@ public class Logger
 		writeLog(builder.toString());
 	}
 
+	/**
+	 * Indicates that this peer has dropped its connection with another peer.
+	 * 
+	 * This should be called when nothing has been received from the provided peer
+	 * for longer than the idle timeout.
+	 * 
+	 * @param connectedPeer The peer that was connected with
+	 */
+	public void connectionTimedOut(int connectedPeer)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" drops the connection to Peer ");
+		builder.append(connectedPeer);
+		builder.append(" after receiving nothing for ");
+		builder.append(BitTorrent.IDLE_TIMEOUT);
+		builder.append(" seconds.");
+		writeLog(builder.toString());
+	}
+
+	/**
+	 * Indicates that another peer has closed its connection with this peer.
+	 * 
+	 * @param connectedPeer The peer that was connected with
+	 */
+	public void connectionClosed(int connectedPeer)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" drops the connection to Peer ");
+		builder.append(connectedPeer);
+		builder.append(" after it closed the connection.");
+		writeLog(builder.toString());
+	}
+
 	/**
 	 * Indicates that this peer has changed its preferred neighbors
 	 * 
@@ -200,6 +234,21 @@ public class Logger
 		writeLog(builder.toString());
 	}
 
+	/**
+	 * Indicates that a neighbor has unchoked this peer but has not answered its
+	 * requests for the snub timeout
+	 * 
+	 * @param peerID The neighbor that is snubbing this peer
+	 */
+	public void snubbedBy(int peerID)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" is snubbed by Peer ");
+		builder.append(peerID);
+		builder.append(".");
+		writeLog(builder.toString());
+	}
+
 	/**
 	 * Indicates that a peer is unchoked by a neighbor.
 	 * 
@@ -249,6 +298,127 @@ public class Logger
 		writeLog(builder.toString());
 	}
 
+	/**
+	 * Indicates that this peer received the "have batch" message for several
+	 * pieces
+	 * 
+	 * @param peer The peer who sent the message
+	 * @param pieces The piece indices contained in the message
+	 */
+	public void receiveHaveBatch(int peer, List<Integer> pieces)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" received the 'have' message from ");
+		builder.append(peer);
+		builder.append(" for the pieces ");
+		for (int index = 0; index < pieces.size(); ++index)
+		{
+			if (index > 0)
+			{
+				builder.append(", ");
+			}
+			builder.append(pieces.get(index));
+		}
+		builder.append(".");
+		writeLog(builder.toString());
+	}
+
+	/**
+	 * Indicates that this peer received the "cancel" message for a given piece
+	 * 
+	 * @param peer The peer who sent the message
+	 * @param piece The piece index contained in the message
+	 */
+	public void receiveCancel(int peer, int piece)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" received the 'cancel' message from ");
+		builder.append(peer);
+		builder.append(" for the piece ");
+		builder.append(piece);
+		builder.append(".");
+		writeLog(builder.toString());
+	}
+
+	/**
+	 * Indicates that this peer received a message it does not handle, either of
+	 * an unknown type or of an extension that is not enabled on the connection
+	 * 
+	 * @param peer The peer who sent the message
+	 * @param type The type of the message
+	 * @param length The length of the payload of the message in bytes
+	 */
+	public void receiveUnknown(int peer, String type, int length)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" ignored the '");
+		builder.append(type);
+		builder.append("' message from ");
+		builder.append(peer);
+		builder.append(" with ");
+		builder.append(length);
+		builder.append(" bytes of payload.");
+		writeLog(builder.toString());
+	}
+
+	/**
+	 * Indicates how many uploaded bytes were wasted on cancelled requests
+	 * 
+	 * @param wastedBytes The bytes of the pieces that were sent before their
+	 * request was cancelled
+	 * @param droppedBytes The bytes of the pieces that were not sent because their
+	 * request was cancelled while queued
+	 */
+	public void cancelledUploads(long wastedBytes, long droppedBytes)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" uploaded ");
+		builder.append(wastedBytes);
+		builder.append(" bytes for cancelled requests and dropped ");
+		builder.append(droppedBytes);
+		builder.append(" bytes of cancelled requests before sending them.");
+		writeLog(builder.toString());
+	}
+
+	/**
+	 * Indicates how many downloaded bytes were duplicates of pieces that had
+	 * already been received
+	 * 
+	 * @param duplicateBytes The bytes of the pieces received more than once
+	 * @param downloadedBytes The bytes of every piece received
+	 */
+	public void duplicateDownloads(long duplicateBytes, long downloadedBytes)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" downloaded ");
+		builder.append(downloadedBytes);
+		builder.append(" bytes of pieces, of which ");
+		builder.append(duplicateBytes);
+		builder.append(" bytes were duplicates, a duplicate ratio of ");
+		builder.append(String.format("%.4f", downloadedBytes == 0 ? 0.0 : (double) duplicateBytes / downloadedBytes));
+		builder.append(".");
+		writeLog(builder.toString());
+	}
+
+	/**
+	 * Indicates that the neighbors hold a full copy of the file between them and
+	 * that super seeding has ended
+	 * 
+	 * @param uploadedBytes The bytes this peer uploaded before the neighbors held
+	 * a full copy
+	 * @param fileSize The size of the file in bytes
+	 */
+	public void superSeedingCompleted(long uploadedBytes, long fileSize)
+	{
+		StringBuilder builder = createBuilder();
+		builder.append(" has seeded a full copy of the file after uploading ");
+		builder.append(uploadedBytes);
+		builder.append(" bytes, ");
+		builder.append(String.format("%.2f", (double) uploadedBytes / fileSize));
+		builder.append(" times the file size.");
+		writeLog(builder.toString());
+	}
+
 	/**
 	 * Indicates that this peer received an "interested" message
 	 * 
@@ -0,0 +1,97 @@
+package bittorrent.protocol.extensions;
+
+/**
+ * The optional protocol extensions that peers can negotiate in the handshake.
+ * 
+ * Each extension is identified by a bit of the reserved bytes of the handshake
+ * message. Bit 0 is the most significant bit of the first reserved byte. A peer
+ * sets the bits of the extensions it supports, and an extension is only used on
+ * a connection when both peers have set its bit. Peers that do not know about
+ * an extension leave its bit clear, so new extensions never change the
+ * messages exchanged with older peers.
+ * 
+ * Peers that predate the extensions reject a handshake whose reserved bytes are
+ * not zero, so no extension is supported unless it is listed in the Extensions
+ * option of the common config file.
+ */
+public enum Extension
+{
+	// @formatter:off
+	HAVE_ALL_NONE(0, "HaveAllNone"),
+	HAVE_BATCH(1, "HaveBatch"),
+	CANCEL(2, "Cancel"),
+	CHUNKED_PIECES(3, "ChunkedPieces");
+	// @formatter:on
+
+	// The number of capability bits carried in the handshake
+	public static final int CAPABILITY_BITS = 80;
+
+	private int bit;
+	private String format;
+
+	Extension(int bit, String format)
+	{
+		this.bit = bit;
+		this.format = format;
+	}
+
+	/**
+	 * Returns the bit of the extension in the reserved bytes of the handshake
+	 * 
+	 * @return The bit of the extension in the reserved bytes of the handshake
+	 */
+	public int getBit()
+	{
+		return this.bit;
+	}
+
+	/**
+	 * Returns the extension identified by the capability bit
+	 * 
+	 * @param bit The capability bit
+	 * @return The extension or null if no extension uses the bit
+	 */
+	public static Extension fromBit(int bit)
+	{
+		Extension extension = null;
+		for (Extension candidate : Extension.values())
+		{
+			if (candidate.bit == bit)
+			{
+				extension = candidate;
+				break;
+			}
+		}
+		return extension;
+	}
+
+	/**
+	 * Returns the format of the extension as shown in the common config file
+	 * 
+	 * @return The format of the extension as shown in the common config file
+	 */
+	public String getFormat()
+	{
+		return this.format;
+	}
+
+	/**
+	 * Parses the extension
+	 * 
+	 * @param word The extension as shown in the common config file
+	 * @return The extension or null if the word is not an extension
+	 */
+	public static Extension parse(String word)
+	{
+		Extension extension = null;
+		for (Extension candidate : Extension.values())
+		{
+			if (candidate.format.equals(word))
+			{
+				extension = candidate;
+				break;
+			}
+		}
+		return extension;
+	}
+}
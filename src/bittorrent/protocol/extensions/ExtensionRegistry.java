@@ -0,0 +1,86 @@
+package bittorrent.protocol.extensions;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import bittorrent.protocol.messages.HandshakeMessage;
+
+/**
+ * Keeps record of the extensions that this peer supports.
+ * 
+ * The supported extensions are announced as a capability bitmap in the
+ * reserved bytes of the handshake. When the handshake of the other peer is
+ * received, its bitmap is intersected with the supported extensions, and the
+ * result is the set of extensions enabled on that connection. Unknown bits set
+ * by the other peer are ignored.
+ */
+public class ExtensionRegistry
+{
+	private Set<Extension> supported;
+
+	/**
+	 * Creates a registry that supports no extension
+	 */
+	public ExtensionRegistry()
+	{
+		this.supported = EnumSet.noneOf(Extension.class);
+	}
+
+	/**
+	 * Creates a registry that supports the provided extensions
+	 * 
+	 * @param supported The supported extensions
+	 */
+	public ExtensionRegistry(Set<Extension> supported)
+	{
+		this.supported = supported.isEmpty() ? EnumSet.noneOf(Extension.class) : EnumSet.copyOf(supported);
+	}
+
+	/**
+	 * Checks if this peer supports the extension
+	 * 
+	 * @param extension The extension to check
+	 * @return True if this peer supports the extension
+	 */
+	public boolean isSupported(Extension extension)
+	{
+		return this.supported.contains(extension);
+	}
+
+	/**
+	 * Returns the capability bitmap of the supported extensions
+	 * 
+	 * @return The reserved bytes of the handshake with the bit of each supported
+	 * extension set
+	 */
+	public byte[] getCapabilities()
+	{
+		byte[] capabilities = new byte[HandshakeMessage.ZEROBITS.length];
+		for (Extension extension : this.supported)
+		{
+			int bit = extension.getBit();
+			capabilities[bit / 8] |= 0x80 >>> (bit % 8);
+		}
+		return capabilities;
+	}
+
+	/**
+	 * Determines the extensions enabled on a connection
+	 * 
+	 * @param capabilities The reserved bytes of the handshake of the other peer
+	 * @return The extensions supported by both peers
+	 */
+	public Set<Extension> negotiate(byte[] capabilities)
+	{
+		Set<Extension> enabled = EnumSet.noneOf(Extension.class);
+		for (Extension extension : this.supported)
+		{
+			int bit = extension.getBit();
+			if (bit / 8 < capabilities.length && (capabilities[bit / 8] & (0x80 >>> (bit % 8))) != 0)
+			{
+				enabled.add(extension);
+			}
+		}
+		return enabled;
+	}
+}
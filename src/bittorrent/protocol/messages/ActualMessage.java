@@ -2,6 +2,8 @@ package bittorrent.protocol.messages;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import bittorrent.utility.ByteUtility;
 
@@ -18,6 +20,8 @@ import bittorrent.utility.ByteUtility;
  * 	- Bitfield
  * 	- Request
  * 	- Piece
+ * 	- Have All, Have None, Have Batch, Cancel and Piece Chunk, which are only sent when the 
+ * 	  corresponding extension is enabled on the connection
  * Each of the actual message types have the value type indicated in the 
  * project description. In addition to creating messages, this class provides
  * methods for deserializing and serializing messages to byte arrays. 
@@ -25,8 +29,15 @@ import bittorrent.utility.ByteUtility;
 //@formatter:on
 public class ActualMessage
 {
+	// The encodings of the piece indices of a have batch message
+	public static final byte HAVE_BATCH_INDICES = 0;
+	public static final byte HAVE_BATCH_BITFIELD = 1;
+
 	private MessageType type;
 	private ByteBuffer payload;
+	private byte[] content;
+	private int contentOffset;
+	private int contentLength;
 
 	private ActualMessage(MessageType type)
 	{
@@ -125,6 +136,133 @@ public class ActualMessage
 		return message;
 	}
 
+	/**
+	 * Creates a have batch message.
+	 * 
+	 * Have batch messages announce several pieces at once. The first byte of the
+	 * payload is the encoding of the pieces. With HAVE_BATCH_INDICES, it is
+	 * followed by a 4-byte index for each piece. With HAVE_BATCH_BITFIELD, it is
+	 * followed by the 4-byte index of the first bitfield byte and the bitfield
+	 * bytes from that byte up to the byte of the last piece, in which only the
+	 * announced pieces are set. The smaller encoding is used.
+	 * 
+	 * @param indices The indices of the pieces to announce
+	 * @return A have batch message
+	 */
+	public static ActualMessage CreateHaveBatchMessage(List<Integer> indices)
+	{
+		MessageType type = MessageType.HAVE_BATCH;
+		int firstByte = Integer.MAX_VALUE;
+		int lastByte = 0;
+		for (int index : indices)
+		{
+			firstByte = Math.min(firstByte, index / 8);
+			lastByte = Math.max(lastByte, index / 8);
+		}
+		int byteCount = lastByte - firstByte + 1;
+
+		ByteBuffer payload;
+		if (4 + byteCount < 4 * indices.size())
+		{
+			payload = ByteBuffer.allocate(1 + 4 + byteCount);
+			payload.put(HAVE_BATCH_BITFIELD);
+			payload.putInt(firstByte);
+			for (int index : indices)
+			{
+				int position = 1 + 4 + index / 8 - firstByte;
+				payload.put(position, (byte) (payload.get(position) | (0x80 >>> (index % 8))));
+			}
+		}
+		else
+		{
+			payload = ByteBuffer.allocate(1 + 4 * indices.size());
+			payload.put(HAVE_BATCH_INDICES);
+			for (int index : indices)
+			{
+				payload.putInt(index);
+			}
+		}
+		ActualMessage message = new ActualMessage(type, payload.array());
+		return message;
+	}
+
+	/**
+	 * Reads the piece indices of the payload of a have batch message
+	 * 
+	 * The indices outside of the file are dropped, which includes those of spare
+	 * bits set in the last bitfield byte and those of a first bitfield byte too
+	 * large to hold any piece.
+	 * 
+	 * @param payload The payload of the message, positioned at the encoding byte
+	 * @param pieceCount The number of pieces of the file
+	 * @return The indices of the announced pieces
+	 */
+	public static List<Integer> readHaveBatch(ByteBuffer payload, int pieceCount)
+	{
+		List<Integer> indices = new ArrayList<Integer>();
+		byte encoding = payload.get();
+		if (encoding == HAVE_BATCH_BITFIELD)
+		{
+			// The index is kept as a long, since the first byte times 8 can overflow
+			long pieceIndex = payload.getInt() * 8L;
+			while (payload.hasRemaining())
+			{
+				byte bits = payload.get();
+				for (int bit = 0; bit < 8; ++bit)
+				{
+					long index = pieceIndex + bit;
+					if ((bits & (0x80 >>> bit)) != 0 && index >= 0 && index < pieceCount)
+					{
+						indices.add((int) index);
+					}
+				}
+				pieceIndex += 8;
+			}
+		}
+		else
+		{
+			while (payload.hasRemaining())
+			{
+				int index = payload.getInt();
+				if (index >= 0 && index < pieceCount)
+				{
+					indices.add(index);
+				}
+			}
+		}
+		return indices;
+	}
+
+	/**
+	 * Creates a have all message.
+	 * 
+	 * Have all messages contain no payload. They replace the bitfield message of a
+	 * peer with every piece when the HaveAllNone extension is enabled.
+	 * 
+	 * @return A have all message
+	 */
+	public static ActualMessage CreateHaveAllMessage()
+	{
+		MessageType type = MessageType.HAVE_ALL;
+		ActualMessage message = new ActualMessage(type);
+		return message;
+	}
+
+	/**
+	 * Creates a have none message.
+	 * 
+	 * Have none messages contain no payload. They replace the bitfield message of
+	 * a peer without any piece when the HaveAllNone extension is enabled.
+	 * 
+	 * @return A have none message
+	 */
+	public static ActualMessage CreateHaveNoneMessage()
+	{
+		MessageType type = MessageType.HAVE_NONE;
+		ActualMessage message = new ActualMessage(type);
+		return message;
+	}
+
 	/**
 	 * Creates a request message.
 	 * 
@@ -140,23 +278,72 @@ public class ActualMessage
 		return message;
 	}
 
+	/**
+	 * Creates a cancel message.
+	 * 
+	 * Cancel messages contain the 4-byte piece index field of the withdrawn
+	 * request as its payload.
+	 * 
+	 * @return A cancel message
+	 */
+	public static ActualMessage CreateCancelMessage(int index)
+	{
+		MessageType type = MessageType.CANCEL;
+		byte[] payload = ByteUtility.intToByteArray(index);
+		ActualMessage message = new ActualMessage(type, payload);
+		return message;
+	}
+
 	/**
 	 * Creates a piece message.
 	 * 
 	 * Piece messages contain a 4-byte piece index field and a piece of the file as
-	 * its payload.
+	 * its payload. The piece is referenced by the message rather than copied into
+	 * it, so it is only copied when the message is serialized.
 	 * 
 	 * @return A piece message
 	 */
 	public static ActualMessage CreatePieceMessage(int index, byte[] content)
 	{
 		MessageType type = MessageType.PIECE;
-		byte[] indexPayload = ByteUtility.intToByteArray(index);
-		byte[] payload = ByteUtility.concatenateByteArrays(indexPayload, content);
+		byte[] payload = ByteUtility.intToByteArray(index);
 		ActualMessage message = new ActualMessage(type, payload);
+		message.setContent(content, 0, content.length);
+		return message;
+	}
+
+	/**
+	 * Creates a piece chunk message.
+	 * 
+	 * Piece chunk messages contain a 4-byte piece index field, a 4-byte offset
+	 * field and part of a piece of the file, starting at the offset, as its
+	 * payload. The part of the piece is referenced by the message rather than
+	 * copied into it, so it is only copied when the message is serialized.
+	 * 
+	 * @param index The index of the piece
+	 * @param offset The offset of the chunk in the piece
+	 * @param content The content of the whole piece
+	 * @param length The number of bytes of the chunk
+	 * @return A piece chunk message
+	 */
+	public static ActualMessage CreatePieceChunkMessage(int index, int offset, byte[] content, int length)
+	{
+		MessageType type = MessageType.PIECE_CHUNK;
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putInt(index);
+		payload.putInt(offset);
+		ActualMessage message = new ActualMessage(type, payload.array());
+		message.setContent(content, offset, length);
 		return message;
 	}
 
+	private void setContent(byte[] content, int offset, int length)
+	{
+		this.content = content;
+		this.contentOffset = offset;
+		this.contentLength = length;
+	}
+
 	/**
 	 * Converts the byte buffer to an actual message
 	 * 
@@ -194,16 +381,23 @@ public class ActualMessage
 	/**
 	 * Serializes the message into a byte array
 	 * 
+	 * The content of a piece or piece chunk message is copied once, straight into
+	 * the serialized message.
+	 * 
 	 * @return The message as a byte array.
 	 */
 	public byte[] serialize()
 	{
-		byte[] length = ByteUtility.intToByteArray(getLength());
-		byte[] typeData = new byte[]
+		int length = this.getLength();
+		ByteBuffer data = ByteBuffer.allocate(4 + length);
+		data.putInt(length);
+		data.put(this.type.getValue());
+		data.put(this.payload.duplicate().rewind());
+		if (this.content != null)
 		{
-				this.type.getValue()
-		};
-		return ByteUtility.concatenateByteArrays(length, typeData, this.payload.array());
+			data.put(this.content, this.contentOffset, this.contentLength);
+		}
+		return data.array();
 	}
 
 	/**
@@ -226,13 +420,15 @@ public class ActualMessage
 	 */
 	public int getLength()
 	{
-		return payload.limit() + 1;
+		return payload.limit() + this.contentLength + 1;
 	}
 
 	/**
 	 * Returns the payload of the message
 	 * 
-	 * The payload excludes the type and length
+	 * The payload excludes the type and length. The payload of a piece or piece
+	 * chunk message only holds its index and offset fields, and its content is
+	 * returned by getContent.
 	 * 
 	 * @return the payload of the message
 	 */
@@ -240,4 +436,49 @@ public class ActualMessage
 	{
 		return this.payload;
 	}
+
+	/**
+	 * Checks if the message references the content of a piece
+	 * 
+	 * @return True if the message is a piece or piece chunk message
+	 */
+	public boolean hasContent()
+	{
+		return this.content != null;
+	}
+
+	/**
+	 * Returns the content of a piece or piece chunk message without copying it
+	 * 
+	 * The returned array is the one the message was created with. Pieces are
+	 * never modified once they are stored, so the array can be stored as is by the
+	 * receiver when it holds the whole piece.
+	 * 
+	 * @return The array that holds the content or null if the message has no
+	 * content
+	 */
+	public byte[] getContent()
+	{
+		return this.content;
+	}
+
+	/**
+	 * Returns the offset of the content in the array returned by getContent
+	 * 
+	 * @return The offset of the content
+	 */
+	public int getContentOffset()
+	{
+		return this.contentOffset;
+	}
+
+	/**
+	 * Returns the number of bytes of the content
+	 * 
+	 * @return The number of bytes of the content
+	 */
+	public int getContentLength()
+	{
+		return this.contentLength;
+	}
 }
@@ -6,19 +6,26 @@ import bittorrent.utility.ByteUtility;
 
 /**
  * The handshake message, as described in the project description
+ * 
+ * The ten bytes after the header are reserved. They carry the capability bitmap
+ * of the extensions the peer supports, which is all zero for a peer without
+ * extensions.
  */
 public class HandshakeMessage
 {
 	public static byte[] HEADER = "P2PFILESHARINGPROJ".getBytes();
 	public static byte[] ZEROBITS = new byte[10];
 
+	// The length of the handshake message in bytes
+	public static final int LENGTH = 32;
+
 	private byte[] payload;
 
-	private HandshakeMessage(int peerID)
+	private HandshakeMessage(int peerID, byte[] capabilities)
 	{
 		// Generate payload given peerID
 		byte[] peerIDByte = ByteBuffer.allocate(4).putInt(peerID).array();
-		this.payload = ByteUtility.concatenateByteArrays(HEADER, ZEROBITS, peerIDByte);
+		this.payload = ByteUtility.concatenateByteArrays(HEADER, capabilities, peerIDByte);
 	}
 
 	/**
@@ -39,7 +46,24 @@ public class HandshakeMessage
 	 */
 	public static HandshakeMessage createHandshakeMessage(int peerID)
 	{
-		HandshakeMessage message = new HandshakeMessage(peerID);
+		HandshakeMessage message = new HandshakeMessage(peerID, ZEROBITS);
+		return message;
+	}
+
+	/**
+	 * Creates a handshake message with the provided peer ID and capabilities
+	 * 
+	 * @param peerID The peer ID to add to the handshake message
+	 * @param capabilities The capability bitmap carried in the reserved bytes
+	 * @return A handshake message
+	 */
+	public static HandshakeMessage createHandshakeMessage(int peerID, byte[] capabilities)
+	{
+		if (capabilities.length != ZEROBITS.length)
+		{
+			throw new IllegalArgumentException("Error: The capabilities must be " + ZEROBITS.length + " bytes.");
+		}
+		HandshakeMessage message = new HandshakeMessage(peerID, capabilities);
 		return message;
 	}
 }
\ No newline at end of file
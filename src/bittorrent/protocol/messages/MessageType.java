@@ -22,7 +22,12 @@ public enum MessageType
 	BITFIELD((byte)5), 
 	REQUEST((byte)6), 
 	PIECE((byte)7),
-	UNKNOWN((byte)8);
+	CANCEL((byte)8),
+	HAVE_ALL((byte)14),
+	HAVE_NONE((byte)15),
+	HAVE_BATCH((byte)20),
+	PIECE_CHUNK((byte)21),
+	UNKNOWN((byte)-1);
 	// @formatter:on
 
 	private byte value;
@@ -2,19 +2,28 @@ package bittorrent.protocol.peer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousServerSocketChannel;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import bittorrent.BitTorrent;
 import bittorrent.app.BitTorrentSettings;
@@ -22,12 +31,24 @@ import bittorrent.config.CommonConfig;
 import bittorrent.config.PeerInfo;
 import bittorrent.config.PeerInfoConfig;
 import bittorrent.logging.Logger;
-import bittorrent.protocol.messages.ActualMessage;
+import bittorrent.protocol.extensions.ExtensionRegistry;
 import bittorrent.protocol.peer.connection.AllBitfields;
 import bittorrent.protocol.peer.connection.Bitfield;
 import bittorrent.protocol.peer.connection.ChokingProcess;
+import bittorrent.protocol.peer.connection.ConnectionRegistry;
+import bittorrent.protocol.peer.connection.DownloadLimiter;
 import bittorrent.protocol.peer.connection.OptimisticallyUnchokedProcess;
 import bittorrent.protocol.peer.connection.PeerConnection;
+import bittorrent.protocol.peer.connection.PieceScheduler;
+import bittorrent.protocol.peer.connection.RequestLedger;
+import bittorrent.protocol.peer.connection.SuperSeeder;
+import bittorrent.protocol.peer.connection.UploadLimiter;
+import bittorrent.protocol.peer.transport.AsynchronousTransportProvider;
+import bittorrent.protocol.peer.transport.LoopbackTransportProvider;
+import bittorrent.protocol.peer.transport.PeerTransport;
+import bittorrent.protocol.peer.transport.SelectorTransportProvider;
+import bittorrent.protocol.peer.transport.TransportProvider;
+import bittorrent.protocol.peer.transport.UtpTransportProvider;
 import bittorrent.utility.FileHandling;
 
 //@formatter:off
@@ -57,30 +78,91 @@ public class PeerProcess
 	private int peerID;
 	private int port;
 	private String host;
-	private List<PeerConnection> peerConnections;
-	private AsynchronousServerSocketChannel serverChannel;
+	private ConnectionRegistry peerConnections;
+	private TransportProvider transportProvider;
+	private SelectorTransportProvider localTransportProvider;
 	private Path peerDirectory;
 	private CommonConfig commonConfig;
 	private PeerInfoConfig peerConfig;
-	private Random random;
+	private PieceScheduler pieceScheduler;
 	private Logger logger;
 	private ChokingProcess chokingProcess;
 	private OptimisticallyUnchokedProcess optimisticallyProcess;
 	private boolean processStarted;
+	private ScheduledExecutorService scheduler;
+	private UploadLimiter uploadLimiter;
+	private DownloadLimiter downloadLimiter;
+	private ExtensionRegistry extensionRegistry;
+	private SuperSeeder superSeeder;
 
 	private AllBitfields allbitfields;
 	private HashMap<Integer, byte[]> pieces;
-	private ArrayList<Integer> pendingRequests;
+	private RequestLedger requestLedger;
+	private Set<Integer> droppedPeers;
+	private LongAdder wastedUploadBytes;
+	private LongAdder droppedUploadBytes;
+	private LongAdder downloadedBytes;
+	private LongAdder duplicateBytes;
+	private List<PendingRead> pendingReads;
+
+	/**
+	 * A read of a range of the file that waits for some of the pieces covering
+	 * the range
+	 * 
+	 * Each piece is copied into the destination buffer as soon as it is available,
+	 * without moving the position of the buffer until the whole range is copied.
+	 */
+	private static class PendingRead
+	{
+		private long offset;
+		private int length;
+		private int pieceSize;
+		private ByteBuffer destination;
+		private Set<Integer> missingPieces;
+		private CompletableFuture<Integer> future;
+
+		private PendingRead(long offset, int length, int pieceSize, ByteBuffer destination)
+		{
+			this.offset = offset;
+			this.length = length;
+			this.pieceSize = pieceSize;
+			this.destination = destination;
+			this.missingPieces = new HashSet<Integer>();
+			this.future = new CompletableFuture<Integer>();
+		}
+
+		private void copyPiece(int index, byte[] piece)
+		{
+			long pieceStart = (long) index * this.pieceSize;
+			long start = Math.max(pieceStart, this.offset);
+			long end = Math.min(pieceStart + piece.length, this.offset + this.length);
+			int position = this.destination.position() + (int) (start - this.offset);
+			this.destination.put(position, piece, (int) (start - pieceStart), (int) (end - start));
+		}
+
+		private void complete()
+		{
+			this.destination.position(this.destination.position() + this.length);
+			this.future.complete(this.length);
+		}
+	}
 
 	public PeerProcess(BitTorrentSettings settings)
 	{
 		this.peerID = settings.getStartPeerID();
 		this.port = settings.getStartPortNumber();
-		this.peerConnections = new ArrayList<PeerConnection>();
+		this.peerConnections = new ConnectionRegistry();
 		this.pieces = new HashMap<Integer, byte[]>();
-		this.pendingRequests = new ArrayList<Integer>();
-		this.random = new Random();
+		this.requestLedger = new RequestLedger();
+		this.droppedPeers = ConcurrentHashMap.newKeySet();
+		this.wastedUploadBytes = new LongAdder();
+		this.droppedUploadBytes = new LongAdder();
+		this.downloadedBytes = new LongAdder();
+		this.duplicateBytes = new LongAdder();
+		this.pendingReads = new ArrayList<PendingRead>();
+		this.pieceScheduler = new PieceScheduler(this);
 		this.allbitfields = new AllBitfields();
+		this.scheduler = createScheduler();
 
 		try
 		{
@@ -89,6 +171,9 @@ public class PeerProcess
 			this.commonConfig = CommonConfig.setCommonConfig(settings);
 			this.peerConfig = PeerInfoConfig.setPeerInfo(settings);
 			splitFile();
+			createRateLimiters();
+			createSuperSeeder();
+			this.extensionRegistry = new ExtensionRegistry(this.commonConfig.getExtensions());
 			acceptConnections();
 		}
 		catch (Exception e)
@@ -113,11 +198,18 @@ public class PeerProcess
 	{
 		this.peerID = peerID;
 		this.port = port;
-		this.peerConnections = new ArrayList<PeerConnection>();
+		this.peerConnections = new ConnectionRegistry();
 		this.pieces = new HashMap<Integer, byte[]>();
-		this.pendingRequests = new ArrayList<Integer>();
-		this.random = new Random();
+		this.requestLedger = new RequestLedger();
+		this.droppedPeers = ConcurrentHashMap.newKeySet();
+		this.wastedUploadBytes = new LongAdder();
+		this.droppedUploadBytes = new LongAdder();
+		this.downloadedBytes = new LongAdder();
+		this.duplicateBytes = new LongAdder();
+		this.pendingReads = new ArrayList<PendingRead>();
+		this.pieceScheduler = new PieceScheduler(this);
 		this.allbitfields = new AllBitfields();
+		this.scheduler = createScheduler();
 
 		try
 		{
@@ -125,6 +217,9 @@ public class PeerProcess
 			createLogger();
 			readConfigFiles();
 			splitFile();
+			createRateLimiters();
+			createSuperSeeder();
+			this.extensionRegistry = new ExtensionRegistry(this.commonConfig.getExtensions());
 			acceptConnections();
 		}
 		catch (Exception e)
@@ -147,6 +242,113 @@ public class PeerProcess
 		return this.peerID;
 	}
 
+	/**
+	 * Returns the scheduler shared by the asynchronous tasks of this peer
+	 * 
+	 * @return The scheduler shared by the asynchronous tasks of this peer
+	 */
+	public ScheduledExecutorService getScheduler()
+	{
+		return this.scheduler;
+	}
+
+	/**
+	 * Returns the limiter of the total upload rate
+	 * 
+	 * @return The limiter of the total upload rate or null if the upload rate is
+	 * not limited
+	 */
+	public UploadLimiter getUploadLimiter()
+	{
+		return this.uploadLimiter;
+	}
+
+	/**
+	 * Returns the limiter of the total download rate
+	 * 
+	 * @return The limiter of the total download rate or null if the download rate
+	 * is not limited
+	 */
+	public DownloadLimiter getDownloadLimiter()
+	{
+		return this.downloadLimiter;
+	}
+
+	/**
+	 * Returns the registry of the protocol extensions this peer supports
+	 * 
+	 * @return The registry of the protocol extensions this peer supports
+	 */
+	public ExtensionRegistry getExtensionRegistry()
+	{
+		return this.extensionRegistry;
+	}
+
+	/**
+	 * Returns the super seeder of this peer
+	 * 
+	 * @return The super seeder or null if this peer does not super seed
+	 */
+	public SuperSeeder getSuperSeeder()
+	{
+		return this.superSeeder;
+	}
+
+	/**
+	 * Returns the provider of the transports of the peer connections
+	 * 
+	 * @return The provider of the transports of the peer connections
+	 */
+	public TransportProvider getTransportProvider()
+	{
+		return this.transportProvider;
+	}
+
+	/**
+	 * Returns the provider of the transport used to connect with the peer
+	 * 
+	 * @param peerInfo The peer information of the peer to connect with
+	 * @return The provider of the transport used to connect with the peer
+	 */
+	public TransportProvider getTransportProvider(PeerInfo peerInfo)
+	{
+		if (this.isLocalSocketPeer(peerInfo))
+		{
+			return this.localTransportProvider;
+		}
+		return this.transportProvider;
+	}
+
+	/**
+	 * Returns the address used to connect with the peer
+	 * 
+	 * Peers on the same host with a Unix domain socket path are connected through
+	 * the socket path. Every other peer is connected through its host and port.
+	 * 
+	 * @param peerInfo The peer information of the peer to connect with
+	 * @return The address used to connect with the peer
+	 */
+	public SocketAddress getPeerAddress(PeerInfo peerInfo)
+	{
+		if (this.isLocalSocketPeer(peerInfo))
+		{
+			return UnixDomainSocketAddress.of(peerInfo.getSocketPath());
+		}
+		return new InetSocketAddress(peerInfo.getHostName(), peerInfo.getPort());
+	}
+
+	/**
+	 * Checks if the peer is on the same host and has a Unix domain socket path
+	 * 
+	 * @param peerInfo The peer information of the peer
+	 * @return True if the peer can be connected through a Unix domain socket
+	 */
+	protected boolean isLocalSocketPeer(PeerInfo peerInfo)
+	{
+		return this.localTransportProvider != null && peerInfo.getSocketPath() != null && this.host != null
+				&& this.host.equalsIgnoreCase(peerInfo.getHostName());
+	}
+
 	/**
 	 * Returns the map of pieces
 	 * 
@@ -170,53 +372,173 @@ public class PeerProcess
 	/**
 	 * Adds the piece to the corresponding index
 	 * 
+	 * A piece that has already been added is counted as a duplicate download and
+	 * is not added again. A new piece is copied into the pending reads that wait
+	 * for it, and the reads that have all of their pieces are completed.
+	 * 
 	 * @param piece The piece to add
 	 * @param index The index of the piece
+	 * @return True if the piece is new
 	 */
-	public synchronized void addPiece(byte[] piece, int index)
+	public boolean addPiece(byte[] piece, int index)
 	{
-		if (!this.pieces.containsKey(index))
+		List<PendingRead> completedReads = new ArrayList<PendingRead>();
+		synchronized (this)
 		{
+			this.downloadedBytes.add(piece.length);
+			if (this.pieces.containsKey(index))
+			{
+				this.duplicateBytes.add(piece.length);
+				return false;
+			}
 			this.pieces.put(index, piece);
+			Iterator<PendingRead> iterator = this.pendingReads.iterator();
+			while (iterator.hasNext())
+			{
+				PendingRead read = iterator.next();
+				if (read.missingPieces.remove(index))
+				{
+					read.copyPiece(index, piece);
+					if (read.missingPieces.isEmpty())
+					{
+						iterator.remove();
+						completedReads.add(read);
+					}
+				}
+			}
 		}
+		this.pieceScheduler.removeUrgent(index);
+
+		// The reads are completed outside of the lock, since completing a future
+		// runs the actions that depend on it
+		for (PendingRead read : completedReads)
+		{
+			read.complete();
+		}
+		return true;
 	}
 
 	/**
-	 * Determine a random piece to request available from the peer
+	 * Reads a range of bytes of the shared file into a buffer
 	 * 
-	 * The requested piece is random amongst the total available piece indices that
-	 * the peer has, but this peer does not have. Additionally, the pending pieces
-	 * that have been requested are removed from the choice of pieces.
+	 * The range starts at the offset and covers the remaining bytes of the buffer,
+	 * or the rest of the file if it is shorter. The pieces of the range that this
+	 * peer has are copied into the buffer straight away, and the returned future
+	 * is already complete if none are missing. Otherwise, the missing pieces are
+	 * requested before any other piece by the piece scheduler, and each of them is
+	 * copied into the buffer as it arrives. The buffer should not be used until
+	 * the future is complete, at which point its position has been moved past the
+	 * bytes read.
 	 * 
-	 * @param connection The peer connection to request a piece from
-	 * @return The piece index to request or -1 if there are no available pieces
+	 * @param offset The offset of the range in the file
+	 * @param destination The buffer to read the range into
+	 * @return A future of the number of bytes read, which fails with an
+	 * IllegalArgumentException if the offset is outside of the file or the buffer
+	 * is read-only
 	 */
-	public int determinePieceRequest(PeerConnection connection)
+	public CompletableFuture<Integer> read(long offset, ByteBuffer destination)
 	{
-		Bitfield myBitfield = new Bitfield(this);
-		Bitfield peerBitfield = this.allbitfields.getBitfield(connection);
-
-		int randomPieceIndex = -1;
-		if (peerBitfield != null)
+		// A read-only buffer is rejected before the read is registered, since a
+		// piece that arrives later could not be copied into it
+		if (destination.isReadOnly())
 		{
-			// Determine what new pieces the other peer can provide
-			List<Integer> requiredPieces = myBitfield.getRequiredPieces(peerBitfield);
-
-			if (requiredPieces.size() > 0)
+			return CompletableFuture
+					.failedFuture(new IllegalArgumentException("Error: the buffer to read into is read-only."));
+		}
+		long fileSize = this.commonConfig.getFileSize();
+		if (offset < 0 || offset > fileSize)
+		{
+			return CompletableFuture
+					.failedFuture(new IllegalArgumentException("Error: the offset to read is outside of the file."));
+		}
+		int pieceSize = this.commonConfig.getPieceSize();
+		int length = (int) Math.min(destination.remaining(), fileSize - offset);
+		PendingRead read = new PendingRead(offset, length, pieceSize, destination);
+		List<Integer> missingPieces = new ArrayList<Integer>();
+		if (length > 0)
+		{
+			int firstPiece = (int) (offset / pieceSize);
+			int lastPiece = (int) ((offset + length - 1) / pieceSize);
+			synchronized (this)
 			{
-				// Remove all pieces already requested
-				requiredPieces.removeAll(this.pendingRequests);
-				if (requiredPieces.size() > 0)
+				for (int index = firstPiece; index <= lastPiece; ++index)
 				{
-					int randomListIndex = this.random.nextInt(requiredPieces.size());
-					randomPieceIndex = requiredPieces.get(randomListIndex);
+					byte[] piece = this.pieces.get(index);
+					if (piece != null)
+					{
+						read.copyPiece(index, piece);
+					}
+					else
+					{
+						read.missingPieces.add(index);
+						missingPieces.add(index);
+					}
+				}
+				if (!missingPieces.isEmpty())
+				{
+					this.pendingReads.add(read);
 				}
 			}
-			else
-			{
-			}
 		}
-		return randomPieceIndex;
+		if (missingPieces.isEmpty())
+		{
+			read.complete();
+			return read.future;
+		}
+		this.pieceScheduler.addUrgent(missingPieces);
+		this.pieceScheduler.rebalance(null);
+		return read.future;
+	}
+
+	/**
+	 * Reads a range of bytes of the shared file, waiting until the pieces that
+	 * cover the range have been received
+	 * 
+	 * The streaming window of the piece scheduler is moved to the first piece of
+	 * the range, so that the range is downloaded first when the StreamingWindow
+	 * option is set. The function returns as soon as the covering pieces have
+	 * been received, however many other pieces are still missing.
+	 * 
+	 * The function blocks on the future of read(long, ByteBuffer), so the missing
+	 * pieces of the range are also requested before the rest of the window.
+	 * 
+	 * @param offset The offset of the range in the file
+	 * @param length The number of bytes to read
+	 * @return The bytes of the range
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public byte[] read(long offset, int length) throws InterruptedException
+	{
+		if (offset < 0 || length < 0 || offset + length > this.commonConfig.getFileSize())
+		{
+			throw new IllegalArgumentException("Error: the range to read is outside of the file.");
+		}
+		this.pieceScheduler.setReadPiece((int) (offset / this.commonConfig.getPieceSize()));
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		try
+		{
+			this.read(offset, buffer).get();
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException(e.getCause());
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Determines the piece to request from the peer
+	 * 
+	 * The piece is one that the peer has, that this peer does not have and that
+	 * has not been requested from another peer. It is chosen by the piece
+	 * scheduler, which gives rarer pieces to faster peers.
+	 * 
+	 * @param connection The peer connection to request a piece from
+	 * @return The piece index to request or -1 if there are no available pieces
+	 */
+	public int determinePieceRequest(PeerConnection connection)
+	{
+		return this.pieceScheduler.assign(connection);
 	}
 
 	/**
@@ -284,7 +606,8 @@ public class PeerProcess
 
 	public boolean hasMadeAllConnections()
 	{
-		int connectionCount = this.peerConnections.size();
+		// A peer whose connection was torn down is no longer waited for
+		int connectionCount = this.peerConnections.size() + this.droppedPeers.size();
 		int requiredCount = this.peerConfig.getPeers().size() - 1;
 		return connectionCount == requiredCount;
 	}
@@ -333,8 +656,8 @@ public class PeerProcess
 	public void checkNotInterested()
 	{
 		Bitfield myBitfield = new Bitfield(this);
-		HashMap<PeerConnection, Bitfield> bitfields = this.allbitfields.getBitfields();
-		for (HashMap.Entry<PeerConnection, Bitfield> entry : bitfields.entrySet())
+		Map<PeerConnection, Bitfield> bitfields = this.allbitfields.getBitfields();
+		for (Map.Entry<PeerConnection, Bitfield> entry : bitfields.entrySet())
 		{
 			PeerConnection connection = entry.getKey();
 			Bitfield peerBitfield = entry.getValue();
@@ -371,68 +694,120 @@ public class PeerProcess
 	/**
 	 * Returns the list of peer connections
 	 * 
+	 * Iterating over the list iterates over a snapshot of the connections.
+	 * 
 	 * @return The list peer connections
 	 */
 	public List<PeerConnection> getPeerConnections()
+	{
+		return this.peerConnections.getConnections();
+	}
+
+	/**
+	 * Returns the registry of peer connections
+	 * 
+	 * @return The registry of peer connections
+	 */
+	public ConnectionRegistry getConnectionRegistry()
 	{
 		return this.peerConnections;
 	}
 
+	/**
+	 * Returns the connection with the provided peer ID
+	 * 
+	 * @param peerID The ID of the connected peer
+	 * @return The connection with the peer or null if there is no connection
+	 */
+	public PeerConnection getPeerConnection(int peerID)
+	{
+		return this.peerConnections.get(peerID);
+	}
+
+	/**
+	 * Adds a connection to the list of peer connections
+	 * 
+	 * @param connection The connection to add
+	 */
+	public void addPeerConnection(PeerConnection connection)
+	{
+		this.peerConnections.add(connection);
+		connection.startIdleMonitor(this.scheduler);
+	}
+
+	/**
+	 * Removes a connection that has been torn down
+	 * 
+	 * The connection is removed from the registry, the rate limiters and the
+	 * bitfields, so it is no longer considered for unchoking or as a source of
+	 * pieces.
+	 * 
+	 * @param connection The connection to remove
+	 */
+	public void removePeerConnection(PeerConnection connection)
+	{
+		// Only a connection that completed the handshake is indexed by the peer ID
+		if (this.peerConnections.get(connection.getPeerID()) == connection)
+		{
+			this.droppedPeers.add(connection.getPeerID());
+		}
+		this.peerConnections.remove(connection);
+		if (this.uploadLimiter != null)
+		{
+			this.uploadLimiter.remove(connection);
+		}
+		if (this.downloadLimiter != null)
+		{
+			this.downloadLimiter.remove(connection);
+		}
+		this.allbitfields.removeBitfield(connection);
+	}
+
 	/**
 	 * Requests connections to each peer identified in the peer info list
 	 * 
-	 * If a request is denied, it is repeated up to CONNECTION_ATTEMPTS times. A one
-	 * second interval is added between each attempt.
+	 * The connection requests to all peers are made concurrently. If a request is
+	 * denied or times out, it is repeated up to CONNECTION_ATTEMPTS times with an
+	 * exponential backoff between each attempt, for at most CONNECTION_DEADLINE_MS.
+	 * This function returns once every peer is either connected or has exhausted
+	 * its attempts.
 	 * 
 	 * @param peerInfoList
 	 */
 	public void makeConnections(List<PeerInfo> peerInfoList)
 	{
+		List<CompletableFuture<Void>> attempts = new ArrayList<CompletableFuture<Void>>();
 		for (PeerInfo peerInfo : peerInfoList)
 		{
-			// Repeatedly attempt to connect with the peer
-			boolean madeConnection = false;
-			for (int attempt = 0; attempt < BitTorrent.CONNECTION_ATTEMPTS; ++attempt)
-			{
-				try
-				{
-					PeerConnection peerConnection = PeerConnection.connectWithPeer(this, peerInfo);
-					peerConnections.add(peerConnection);
-					peerConnection.sendHandshake();
-					madeConnection = true;
-					break;
-				}
-				catch (IOException e)
-				{
-					try
+			CompletableFuture<Void> attempt = PeerConnection.connectWithPeer(this, peerInfo, this.scheduler)
+					.handle((peerConnection, exception) ->
 					{
-						TimeUnit.SECONDS.sleep(1);
-					}
-					catch (InterruptedException e1)
-					{
-						e1.printStackTrace();
-					}
-				}
-			}
-			if (!madeConnection)
-			{
-				StringBuilder errorMessage = new StringBuilder("Error: peer ");
-				errorMessage.append(this.getPeerID());
-				errorMessage.append(" was unable to connect to");
-				errorMessage.append(peerInfo.getPeerID());
-				errorMessage.append(".");
-				System.err.print(errorMessage.toString());
-			}
+						if (exception == null)
+						{
+							this.addPeerConnection(peerConnection);
+							peerConnection.sendHandshake();
+						}
+						else
+						{
+							StringBuilder errorMessage = new StringBuilder("Error: peer ");
+							errorMessage.append(this.getPeerID());
+							errorMessage.append(" was unable to connect to ");
+							errorMessage.append(peerInfo.getPeerID());
+							errorMessage.append(".");
+							System.err.println(errorMessage.toString());
+						}
+						return null;
+					});
+			attempts.add(attempt);
 		}
+		CompletableFuture.allOf(attempts.toArray(new CompletableFuture<?>[0])).join();
 	}
 
 	/**
 	 * Requests connections to each peer identified in the peer config file
 	 * 
-	 * If a request is denied, it is repeated up to CONNECTION_ATTEMPTS times. A one
-	 * second interval is added between each attempt.
-	 * 
-	 * @param peerInfoList
+	 * The connection requests are made concurrently, as described in
+	 * makeConnections(List).
 	 */
 	public void makeConnections()
 	{
@@ -455,52 +830,120 @@ public class PeerProcess
 	}
 
 	/**
-	 * Broadcasts the have message to all peers
+	 * Withdraws the requests of a piece from every peer except the one that
+	 * provided it
 	 * 
-	 * @param piece The index of the piece to broadcast to all connections
+	 * @param source The connection that provided the piece
+	 * @param index The index of the piece
 	 */
-	public void broadcastHave(int index)
+	public void cancelRequests(PeerConnection source, int index)
 	{
-		ActualMessage HaveMessage = ActualMessage.CreateHaveMessage(index);
-		List<PeerConnection> peerConnections = this.getPeerConnections();
-		for (PeerConnection peer : peerConnections)
+		for (PeerConnection peer : this.peerConnections)
 		{
-			peer.sendMessage(HaveMessage);
+			if (peer != source)
+			{
+				peer.cancelRequest(index);
+			}
 		}
 	}
 
 	/**
-	 * Adds a piece index for a request
+	 * Records the bytes of a piece that was uploaded before its request was
+	 * cancelled
 	 * 
-	 * @param requestedIndex The requested piece index
+	 * @param bytes The size of the piece message in bytes
 	 */
-	public synchronized void addPendingRequest(Integer requestedIndex)
+	public void recordWastedUpload(long bytes)
 	{
-		if (!this.pendingRequests.contains(requestedIndex))
-		{
-			this.pendingRequests.add(requestedIndex);
-		}
+		this.wastedUploadBytes.add(bytes);
 	}
 
 	/**
-	 * Removes the requested piece index
+	 * Records the bytes of a queued piece that was not uploaded because its
+	 * request was cancelled
 	 * 
-	 * @param requestedIndex The requested piece index
+	 * @param bytes The size of the piece message in bytes
 	 */
-	public synchronized void removePendingRequest(Integer requestedIndex)
+	public void recordDroppedUpload(long bytes)
 	{
-		while (this.pendingRequests.remove(requestedIndex))
-		{
+		this.droppedUploadBytes.add(bytes);
+	}
+
+	/**
+	 * Returns the bytes uploaded for requests that were cancelled afterwards
+	 * 
+	 * @return The bytes uploaded for requests that were cancelled afterwards
+	 */
+	public long getWastedUploadBytes()
+	{
+		return this.wastedUploadBytes.sum();
+	}
+
+	/**
+	 * Returns the bytes not uploaded because their requests were cancelled
+	 * 
+	 * @return The bytes not uploaded because their requests were cancelled
+	 */
+	public long getDroppedUploadBytes()
+	{
+		return this.droppedUploadBytes.sum();
+	}
+
+	/**
+	 * Returns the bytes of every piece received, including the duplicates
+	 * 
+	 * @return The bytes of every piece received
+	 */
+	public long getDownloadedBytes()
+	{
+		return this.downloadedBytes.sum();
+	}
 
+	/**
+	 * Returns the bytes of the pieces received after they had already been received
+	 * from another peer
+	 * 
+	 * @return The bytes of the duplicate pieces received
+	 */
+	public long getDuplicateBytes()
+	{
+		return this.duplicateBytes.sum();
+	}
+
+	/**
+	 * Broadcasts the have message to all peers
+	 * 
+	 * Connections with the HaveBatch extension collect the announcements for a
+	 * few milliseconds and send them in a single message.
+	 * 
+	 * @param piece The index of the piece to broadcast to all connections
+	 */
+	public void broadcastHave(int index)
+	{
+		for (PeerConnection peer : this.peerConnections)
+		{
+			peer.sendHave(index);
 		}
 	}
 
 	/**
-	 * Clears the requested pieces
+	 * Returns the scheduler that assigns the pieces to request on each connection
+	 * 
+	 * @return The piece scheduler
 	 */
-	public synchronized void clearPendingRequests()
+	public PieceScheduler getPieceScheduler()
 	{
-		this.pendingRequests.clear();
+		return this.pieceScheduler;
+	}
+
+	/**
+	 * Returns the record of the piece requests in flight
+	 * 
+	 * @return The record of the piece requests in flight
+	 */
+	public RequestLedger getRequestLedger()
+	{
+		return this.requestLedger;
 	}
 
 	/**
@@ -527,6 +970,8 @@ public class PeerProcess
 	 */
 	public void runProtocol()
 	{
+		this.scheduler.scheduleAtFixedRate(this::tickRateMeters, 1, 1, TimeUnit.SECONDS);
+
 		long chokingInterval = this.commonConfig.getUnchokingInterval().getSeconds() * 1000;
 		// @formatter:off
 		this.chokingProcess = new ChokingProcess(
@@ -534,8 +979,7 @@ public class PeerProcess
 				this.logger,
 				this.peerConnections, 
 				commonConfig.getNumberOfPreferredNeightbors(),
-				chokingInterval,
-				hasAllPieces());
+				chokingInterval);
 		// @formatter:on
 
 		long optimisticallyInterval = this.commonConfig.getOptimisticUnchokingInterval().getSeconds() * 1000;
@@ -543,6 +987,7 @@ public class PeerProcess
 		this.optimisticallyProcess = new OptimisticallyUnchokedProcess(
 				this.logger,
 				this.peerConnections,
+				this.chokingProcess,
 				optimisticallyInterval);
 		// @formatter:on
 
@@ -563,6 +1008,8 @@ public class PeerProcess
 
 			}
 		}
+		this.logger.cancelledUploads(this.getWastedUploadBytes(), this.getDroppedUploadBytes());
+		this.logger.duplicateDownloads(this.getDuplicateBytes(), this.getDownloadedBytes());
 		StringBuilder message = new StringBuilder("Peer ");
 		message.append(this.peerID);
 		message.append(" has terminated.");
@@ -570,10 +1017,34 @@ public class PeerProcess
 
 		this.optimisticallyProcess.stopProcess();
 		this.chokingProcess.stopProcess();
+		if (this.uploadLimiter != null)
+		{
+			this.uploadLimiter.stopProcess();
+		}
+		if (this.downloadLimiter != null)
+		{
+			this.downloadLimiter.stopProcess();
+		}
 		this.closeConnections();
+		this.transportProvider.close();
+		if (this.localTransportProvider != null && this.localTransportProvider != this.transportProvider)
+		{
+			this.localTransportProvider.close();
+		}
+		this.scheduler.shutdownNow();
 		this.closeLog();
 	}
 
+	protected void tickRateMeters()
+	{
+		// Closes the current second of the transfer rate meters of each connection
+		for (PeerConnection connection : this.peerConnections)
+		{
+			connection.getDownloadMeter().tick();
+			connection.getUploadMeter().tick();
+		}
+	}
+
 	protected void initializeProcesses()
 	{
 		// Starts the choking and optimistically unchoking processes
@@ -609,6 +1080,43 @@ public class PeerProcess
 		this.logger.closeLog();
 	}
 
+	protected static ScheduledExecutorService createScheduler()
+	{
+		// Daemon threads so that the scheduler never keeps the process alive
+		return Executors.newSingleThreadScheduledExecutor((runnable) ->
+		{
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	protected void createRateLimiters()
+	{
+		// The rate limiters are only used when a maximum rate is configured
+		int maxUploadRate = this.commonConfig.getMaxUploadRate();
+		if (maxUploadRate > 0)
+		{
+			this.uploadLimiter = new UploadLimiter(maxUploadRate, this.commonConfig.getPieceSize());
+			this.uploadLimiter.startProcess();
+		}
+		int maxDownloadRate = this.commonConfig.getMaxDownloadRate();
+		if (maxDownloadRate > 0)
+		{
+			this.downloadLimiter = new DownloadLimiter(maxDownloadRate, this.commonConfig.getPieceSize());
+			this.downloadLimiter.startProcess();
+		}
+	}
+
+	protected void createSuperSeeder()
+	{
+		// Only a peer that starts with the file super seeds
+		if (this.commonConfig.isSuperSeeding() && this.hasAllPieces())
+		{
+			this.superSeeder = new SuperSeeder(this, this.logger);
+		}
+	}
+
 	protected void createPeerDirectory() throws IOException
 	{
 		StringBuilder peerDirectoryStr = new StringBuilder("peer_");
@@ -675,42 +1183,51 @@ public class PeerProcess
 
 	protected void acceptConnections() throws IOException
 	{
-		// Create an asynchronous server socket channel and bind it to a local address.
-		this.serverChannel = AsynchronousServerSocketChannel.open();
-		this.serverChannel.bind(new InetSocketAddress(this.host, this.port));
-
-		PeerProcess parent = this;
-		this.serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>()
-		{
-			/**
-			 * Connection request is received.
-			 * 
-			 * Establish a peer connection with the requester and delagate all future
-			 * messages to the peer connection handler.
-			 */
-			@Override
-			public void completed(AsynchronousSocketChannel peerChannel, Object attachment)
+		int bufferSize = this.commonConfig.getPieceSize() * BitTorrent.BUFFER_SCALE;
+		switch (this.commonConfig.getTransport())
+		{
+		case SELECTOR:
+			this.transportProvider = new SelectorTransportProvider("Peer " + this.peerID, bufferSize);
+			break;
+		case LOOPBACK:
+			this.transportProvider = new LoopbackTransportProvider();
+			break;
+		case UTP:
+			this.transportProvider = new UtpTransportProvider("Peer " + this.peerID, bufferSize,
+					new AsynchronousTransportProvider(bufferSize), this.commonConfig.getUtpEmulatedRate(),
+					this.commonConfig.getUtpEmulatedDelay());
+			break;
+		case ASYNCHRONOUS:
+		default:
+			this.transportProvider = new AsynchronousTransportProvider(bufferSize);
+			break;
+		}
+
+		// Establish a peer connection with each requester and delegate all future
+		// messages to the peer connection handler.
+		Consumer<PeerTransport> acceptHandler = (transport) ->
+		{
+			PeerConnection connection = new PeerConnection(this, transport);
+			addPeerConnection(connection);
+			transport.start(connection);
+		};
+		this.transportProvider.listen(new InetSocketAddress(this.host, this.port), acceptHandler);
+
+		// Peers on the same host connect through the Unix domain socket, if any
+		PeerInfo info = this.peerConfig.getPeerFromId(this.peerID);
+		if (info != null && info.getSocketPath() != null)
+		{
+			if (this.transportProvider instanceof SelectorTransportProvider)
 			{
-				if (serverChannel.isOpen())
-				{
-					// Continue to accept requests
-					serverChannel.accept(null, this);
-				}
-				if (peerChannel != null && peerChannel.isOpen())
-				{
-					PeerConnection connection = new PeerConnection(parent, peerChannel);
-					peerConnections.add(connection);
-					ByteBuffer buffer = ByteBuffer.allocate(commonConfig.getPieceSize() * BitTorrent.BUFFER_SCALE);
-					peerChannel.read(buffer, buffer, connection);
-				}
+				this.localTransportProvider = (SelectorTransportProvider) this.transportProvider;
 			}
-
-			@Override
-			public void failed(Throwable exc, Object attachment)
+			else
 			{
-
+				this.localTransportProvider = new SelectorTransportProvider("Peer " + this.peerID + " local",
+						bufferSize);
 			}
-		});
+			this.localTransportProvider.listen(UnixDomainSocketAddress.of(info.getSocketPath()), acceptHandler);
+		}
 	}
 
 	/**
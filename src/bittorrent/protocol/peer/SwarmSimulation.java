@@ -0,0 +1,224 @@
+package bittorrent.protocol.peer;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.BitTorrent;
+import bittorrent.config.PeerInfo;
+import bittorrent.config.PeerInfoConfig;
+import bittorrent.protocol.peer.connection.PeerConnection;
+
+/**
+ * Runs every peer of the PeerInfo.cfg file as threads of a single process and
+ * reports how efficiently the file was spread.
+ * 
+ * For each peer that starts without the file, the bytes of the pieces it
+ * downloaded and how many of them were duplicates are reported. For each peer
+ * that starts with the file, the bytes it had uploaded when the other peers
+ * first held a full copy of the file between them are reported, relative to
+ * the file size. The swarm is sampled every SAMPLE_INTERVAL_MS, so the uploaded
+ * bytes are accurate to within one sample. The time from the first connection
+ * until every peer has the file is also reported, to the same accuracy.
+ * 
+ * Setting the Transport option of the Common.cfg file to loopback runs the
+ * swarm without any sockets. Setting MaxUploadRate keeps the pieces in flight
+ * long enough for the request ledger to matter, and setting SuperSeeding to 1
+ * compares super seeding against a normal seeder. Each run is a single sample,
+ * so the reported figures vary between runs.
+ * 
+ * This is a developer and tester function, and is not intended to be called
+ * under normal operations of this BitTorrent implementation.
+ */
+public class SwarmSimulation
+{
+	// The number of milliseconds between samples of the swarm
+	public static final long SAMPLE_INTERVAL_MS = 10;
+
+	private List<PeerProcess> seeders;
+	private List<PeerProcess> leechers;
+	private long[] seederUploadedBytes;
+	private long downloadTimeMs;
+
+	/**
+	 * Creates the peer processes of every peer of the peer config file
+	 * 
+	 * @param peerConfig The peer configuration of the swarm
+	 */
+	public SwarmSimulation(PeerInfoConfig peerConfig)
+	{
+		this.seeders = new ArrayList<PeerProcess>();
+		this.leechers = new ArrayList<PeerProcess>();
+		for (PeerInfo peer : peerConfig.getPeers())
+		{
+			PeerProcess process = new PeerProcess(peer.getPeerID(), peer.getPort());
+			if (peer.getHasFile())
+			{
+				this.seeders.add(process);
+			}
+			else
+			{
+				this.leechers.add(process);
+			}
+		}
+		this.seederUploadedBytes = new long[this.seeders.size()];
+	}
+
+	/**
+	 * Runs the swarm until every peer has terminated
+	 * 
+	 * @throws InterruptedException If the thread is interrupted while waiting for
+	 * the peers
+	 */
+	public void run() throws InterruptedException
+	{
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<Thread>();
+		List<PeerProcess> processes = new ArrayList<PeerProcess>(this.seeders);
+		processes.addAll(this.leechers);
+		for (PeerProcess process : processes)
+		{
+			process.makeConnections();
+			Thread thread = new Thread(process::runProtocol);
+			thread.start();
+			threads.add(thread);
+		}
+
+		// Record the uploads of the seeders once the other peers hold a full copy,
+		// and the time at which every peer has the file
+		boolean hasFullCopy = false;
+		this.downloadTimeMs = -1;
+		while (this.downloadTimeMs == -1 && threads.stream().anyMatch(Thread::isAlive))
+		{
+			if (!hasFullCopy)
+			{
+				hasFullCopy = this.leechersHoldFullCopy();
+				for (int seeder = 0; seeder < this.seeders.size(); ++seeder)
+				{
+					this.seederUploadedBytes[seeder] = getUploadedBytes(this.seeders.get(seeder));
+				}
+			}
+			if (this.leechers.stream().allMatch(PeerProcess::hasAllPieces))
+			{
+				this.downloadTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			}
+			TimeUnit.MILLISECONDS.sleep(SAMPLE_INTERVAL_MS);
+		}
+
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+	}
+
+	/**
+	 * Prints the downloads of each leecher and the uploads of each seeder
+	 */
+	public void printReport()
+	{
+		long downloadedBytes = 0;
+		long duplicateBytes = 0;
+		for (PeerProcess leecher : this.leechers)
+		{
+			downloadedBytes += leecher.getDownloadedBytes();
+			duplicateBytes += leecher.getDuplicateBytes();
+			printDownloads("Peer " + leecher.getPeerID(), leecher.getDownloadedBytes(), leecher.getDuplicateBytes());
+		}
+		printDownloads("All peers", downloadedBytes, duplicateBytes);
+		if (this.downloadTimeMs != -1)
+		{
+			StringBuilder message = new StringBuilder("Every peer had the file after ");
+			message.append(this.downloadTimeMs);
+			message.append(" ms.");
+			System.out.println(message.toString());
+		}
+
+		for (int seeder = 0; seeder < this.seeders.size(); ++seeder)
+		{
+			PeerProcess process = this.seeders.get(seeder);
+			long fileSize = process.getCommonConfig().getFileSize();
+			StringBuilder message = new StringBuilder("Peer ");
+			message.append(process.getPeerID());
+			message.append(" uploaded ");
+			message.append(this.seederUploadedBytes[seeder]);
+			message.append(" bytes before the other peers held a full copy, ");
+			message.append(String.format("%.2f", (double) this.seederUploadedBytes[seeder] / fileSize));
+			message.append(" times the file size.");
+			System.out.println(message.toString());
+		}
+	}
+
+	private boolean leechersHoldFullCopy()
+	{
+		if (this.leechers.isEmpty())
+		{
+			return false;
+		}
+		Set<Integer> heldPieces = new HashSet<Integer>();
+		for (PeerProcess leecher : this.leechers)
+		{
+			// The pieces are added under the lock of the process
+			synchronized (leecher)
+			{
+				heldPieces.addAll(leecher.getPieces().keySet());
+			}
+		}
+		return heldPieces.size() == this.leechers.get(0).getCommonConfig().getNumberOfPieces();
+	}
+
+	private static long getUploadedBytes(PeerProcess process)
+	{
+		long uploadedBytes = 0;
+		for (PeerConnection connection : process.getConnectionRegistry())
+		{
+			uploadedBytes += connection.getUploadMeter().getTotal();
+		}
+		return uploadedBytes;
+	}
+
+	private static void printDownloads(String name, long downloadedBytes, long duplicateBytes)
+	{
+		StringBuilder message = new StringBuilder(name);
+		message.append(" downloaded ");
+		message.append(downloadedBytes);
+		message.append(" bytes of pieces, of which ");
+		message.append(duplicateBytes);
+		message.append(" bytes were duplicates, a duplicate ratio of ");
+		message.append(String.format("%.4f", downloadedBytes == 0 ? 0.0 : (double) duplicateBytes / downloadedBytes));
+		message.append(".");
+		System.out.println(message.toString());
+	}
+
+	/**
+	 * Runs the swarm described by the config files
+	 * 
+	 * @param args The optional paths of the Common.cfg and PeerInfo.cfg files, in
+	 * that order
+	 */
+	public static void main(String[] args)
+	{
+		if (args.length > 0)
+		{
+			BitTorrent.COMMON_CONFIG_FILE = Paths.get(args[0]);
+		}
+		if (args.length > 1)
+		{
+			BitTorrent.PEER_CONFIG_FILE = Paths.get(args[1]);
+		}
+		try
+		{
+			PeerInfoConfig peerConfig = PeerInfoConfig.ReadPeerInfoConfig(BitTorrent.PEER_CONFIG_FILE);
+			SwarmSimulation simulation = new SwarmSimulation(peerConfig);
+			simulation.run();
+			simulation.printReport();
+		}
+		catch (IOException | InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,67 +1,161 @@
-package bittorrent.protocol.peer.connection;
-
-import java.util.HashMap;
-
-/**
- * Keeps Record of the bitfields of all the neighbors of a process
- * 
- * Has functions to add a bitfield, update a bitfield, and get a bitfield
- */
-public class AllBitfields
-{
-	private HashMap<PeerConnection, Bitfield> bitfields;
-
-	public AllBitfields()
-	{
-		this.bitfields = new HashMap<PeerConnection, Bitfield>();
-	}
-
-	/**
-	 * Adds the Bitfield of a peer to the Map
-	 */
-	public synchronized void addBitfield(PeerConnection connection, Bitfield bitfield)
-	{
-		this.bitfields.put(connection, bitfield);
-	}
-
-	/**
-	 * Adds the Bitfield of a peer to the Map
-	 */
-	public synchronized void addBitfield(PeerConnection connection, byte[] bitfield)
-	{
-		Bitfield newBitfield = new Bitfield(connection.getProcess(), bitfield);
-		this.bitfields.put(connection, newBitfield);
-	}
-
-	/**
-	 * Upadtes the Bitfield of a peer after receiving Have Message
-	 * 
-	 * @param peerId The peerId of the peer whose bitfield needs to be updated
-	 * @param index The index of the piece that needs to be updated
-	 */
-	public synchronized void updateBitfield(PeerConnection connection, int index)
-	{
-		Bitfield bitfield = this.bitfields.get(connection);
-		bitfield.updateBitfield(index);
-	}
-
-	/**
-	 * Returns all bitfields belonging to each of the registered peer connections
-	 * 
-	 * @return All bitfields belonging to each of the registered peer connections
-	 */
-	public HashMap<PeerConnection, Bitfield> getBitfields()
-	{
-		return this.bitfields;
-	}
-
-	/**
-	 * Get the bitfield of a peer
-	 * 
-	 * @param connection The peer connection of the peer whose Bitfield is required
-	 */
-	public Bitfield getBitfield(PeerConnection connection)
-	{
-		return this.bitfields.get(connection);
-	}
-}
+package bittorrent.protocol.peer.connection;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Keeps Record of the bitfields of all the neighbors of a process
+ * 
+ * Has functions to add a bitfield, update a bitfield, and get a bitfield
+ * 
+ * The number of neighbors that have each piece is updated along with the
+ * bitfields, so the availability of a piece is read without scanning them.
+ */
+public class AllBitfields
+{
+	private ConcurrentHashMap<PeerConnection, Bitfield> bitfields;
+	private volatile AtomicIntegerArray availability;
+
+	public AllBitfields()
+	{
+		this.bitfields = new ConcurrentHashMap<PeerConnection, Bitfield>();
+	}
+
+	/**
+	 * Adds the Bitfield of a peer to the Map
+	 */
+	public synchronized void addBitfield(PeerConnection connection, Bitfield bitfield)
+	{
+		this.replaceBitfield(connection, bitfield);
+	}
+
+	/**
+	 * Adds the Bitfield of a peer to the Map
+	 */
+	public synchronized void addBitfield(PeerConnection connection, byte[] bitfield)
+	{
+		Bitfield newBitfield = new Bitfield(connection.getProcess(), bitfield);
+		this.replaceBitfield(connection, newBitfield);
+	}
+
+	/**
+	 * Records that a peer has all of the pieces without allocating its Bitfield
+	 * 
+	 * @param connection The peer connection of the peer
+	 */
+	public synchronized void addFullBitfield(PeerConnection connection)
+	{
+		this.replaceBitfield(connection, Bitfield.createFull(connection.getProcess()));
+	}
+
+	/**
+	 * Records that a peer has none of the pieces without allocating its Bitfield
+	 * 
+	 * The Bitfield is allocated once the peer announces its first piece.
+	 * 
+	 * @param connection The peer connection of the peer
+	 */
+	public synchronized void addEmptyBitfield(PeerConnection connection)
+	{
+		this.replaceBitfield(connection, Bitfield.createEmpty(connection.getProcess()));
+	}
+
+	/**
+	 * Removes the Bitfield of a peer whose connection has been torn down
+	 * 
+	 * @param connection The peer connection of the removed peer
+	 */
+	public synchronized void removeBitfield(PeerConnection connection)
+	{
+		Bitfield bitfield = this.bitfields.remove(connection);
+		if (bitfield != null)
+		{
+			this.count(bitfield, -1);
+		}
+	}
+
+	/**
+	 * Upadtes the Bitfield of a peer after receiving Have Message
+	 * 
+	 * @param peerId The peerId of the peer whose bitfield needs to be updated
+	 * @param index The index of the piece that needs to be updated
+	 */
+	public synchronized void updateBitfield(PeerConnection connection, int index)
+	{
+		Bitfield bitfield = this.bitfields.get(connection);
+		if (bitfield != null && bitfield.updateBitfield(index))
+		{
+			this.getAvailability(bitfield).incrementAndGet(index);
+		}
+	}
+
+	/**
+	 * Returns all bitfields belonging to each of the registered peer connections
+	 * 
+	 * @return All bitfields belonging to each of the registered peer connections
+	 */
+	public Map<PeerConnection, Bitfield> getBitfields()
+	{
+		return this.bitfields;
+	}
+
+	/**
+	 * Get the bitfield of a peer
+	 * 
+	 * @param connection The peer connection of the peer whose Bitfield is required
+	 */
+	public Bitfield getBitfield(PeerConnection connection)
+	{
+		return this.bitfields.get(connection);
+	}
+
+	/**
+	 * Returns the number of neighbors that have a piece
+	 * 
+	 * @param index The index of the piece
+	 * @return The number of neighbors whose bitfield has the piece
+	 */
+	public int getAvailability(int index)
+	{
+		AtomicIntegerArray availability = this.availability;
+		return availability == null ? 0 : availability.get(index);
+	}
+
+	private void replaceBitfield(PeerConnection connection, Bitfield bitfield)
+	{
+		Bitfield previous = this.bitfields.put(connection, bitfield);
+		if (previous != null)
+		{
+			this.count(previous, -1);
+		}
+		this.count(bitfield, 1);
+	}
+
+	private void count(Bitfield bitfield, int delta)
+	{
+		if (bitfield.isEmpty())
+		{
+			return;
+		}
+		AtomicIntegerArray availability = this.getAvailability(bitfield);
+		boolean isFull = bitfield.isFull();
+		for (int index = 0; index < availability.length(); ++index)
+		{
+			if (isFull || bitfield.hasPiece(index))
+			{
+				availability.addAndGet(index, delta);
+			}
+		}
+	}
+
+	private AtomicIntegerArray getAvailability(Bitfield bitfield)
+	{
+		if (this.availability == null)
+		{
+			// The number of pieces is only known once the configuration has been read
+			this.availability = new AtomicIntegerArray(bitfield.getPieceCount());
+		}
+		return this.availability;
+	}
+}
@@ -1,5 +1,7 @@
 package bittorrent.protocol.peer.connection;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,10 +16,16 @@ import bittorrent.protocol.peer.PeerProcess;
  * indices 8 - 15, and so forth.
  * 
  * Additional methods for processing modifications to the bitfield are provided
+ * 
+ * A bitfield of a peer that has all of the pieces or none of them is not
+ * allocated. The bytes of such a bitfield are computed when they are read, and
+ * the array is only allocated when it is requested with getBitfield or when a
+ * piece is added to an empty bitfield.
  */
 public class Bitfield
 {
-	private byte[] bitfield;
+	private volatile byte[] bitfield;
+	private boolean isFull;
 	private PeerProcess process;
 
 	/**
@@ -29,6 +37,14 @@ public class Bitfield
 	{
 		this.process = process;
 
+		// Avoid scanning every piece index when this peer has all or none of them
+		int pieceCount = process.getPieceCount();
+		if (pieceCount == 0 || pieceCount == process.getCommonConfig().getNumberOfPieces())
+		{
+			this.isFull = pieceCount != 0;
+			return;
+		}
+
 		int numBytes = process.getCommonConfig().getBitfieldPieceCount();
 		this.bitfield = new byte[numBytes];
 		int totalpieces = process.getCommonConfig().getNumberOfPieces();
@@ -58,6 +74,68 @@ public class Bitfield
 		this.bitfield = bitfield;
 	}
 
+	/**
+	 * Creates a bitfield of a peer that has all of the pieces
+	 * 
+	 * @param process The process the bitfield belongs to
+	 * @return A bitfield with every piece
+	 */
+	public static Bitfield createFull(PeerProcess process)
+	{
+		Bitfield bitfield = new Bitfield(process, null);
+		bitfield.isFull = true;
+		return bitfield;
+	}
+
+	/**
+	 * Reads the bitfield of a bitfield message
+	 * 
+	 * A bitfield with all or none of the pieces is not copied from the message.
+	 * 
+	 * @param process The process the bitfield belongs to
+	 * @param payload The payload of the bitfield message
+	 * @return The bitfield of the message
+	 */
+	public static Bitfield readBitfield(PeerProcess process, ByteBuffer payload)
+	{
+		int numBytes = process.getCommonConfig().getBitfieldPieceCount();
+		if (payload.remaining() < numBytes)
+		{
+			throw new BufferUnderflowException();
+		}
+		Bitfield full = createFull(process);
+		boolean isFull = true;
+		boolean isEmpty = true;
+		for (int index = 0; index < numBytes && (isFull || isEmpty); ++index)
+		{
+			byte bits = payload.get(payload.position() + index);
+			isFull &= bits == full.getByte(index);
+			isEmpty &= bits == 0;
+		}
+		if (isFull)
+		{
+			return full;
+		}
+		if (isEmpty)
+		{
+			return createEmpty(process);
+		}
+		byte[] bits = new byte[numBytes];
+		payload.get(bits);
+		return new Bitfield(process, bits);
+	}
+
+	/**
+	 * Creates a bitfield of a peer that has none of the pieces
+	 * 
+	 * @param process The process the bitfield belongs to
+	 * @return A bitfield without any piece
+	 */
+	public static Bitfield createEmpty(PeerProcess process)
+	{
+		return new Bitfield(process, null);
+	}
+
 	/**
 	 * Determines if the peer has all of the pieces
 	 * 
@@ -65,11 +143,16 @@ public class Bitfield
 	 */
 	public boolean hasAllPieces()
 	{
+		byte[] bits = this.bitfield;
+		if (bits == null)
+		{
+			return this.isFull;
+		}
 		boolean hasAllPieces = true;
 		int totalPieceCount = this.process.getPieceCount();
 
 		int currentPieceIndex = 0;
-		for (byte b : this.bitfield)
+		for (byte b : bits)
 		{
 			boolean[] boolArray = new boolean[8];
 			boolArray[7] = ((b & 0x01) != 0);
@@ -101,19 +184,66 @@ public class Bitfield
 		return hasAllPieces;
 	}
 
+	/**
+	 * Checks if the bitfield has the piece
+	 * 
+	 * @param index The index of the piece
+	 * @return True if the bitfield has the piece
+	 */
+	public boolean hasPiece(int index)
+	{
+		return (this.getByte(index / 8) & (0x80 >>> (index % 8))) != 0;
+	}
+
+	/**
+	 * Returns the number of pieces of the file the bitfield describes
+	 * 
+	 * @return The number of pieces of the file
+	 */
+	public int getPieceCount()
+	{
+		return this.process.getCommonConfig().getNumberOfPieces();
+	}
+
+	/**
+	 * Checks if the bitfield has at least one piece
+	 * 
+	 * @return True if the bitfield has at least one piece
+	 */
+	public boolean hasAnyPiece()
+	{
+		byte[] bits = this.bitfield;
+		if (bits == null)
+		{
+			return this.isFull;
+		}
+		for (byte b : bits)
+		{
+			if (b != 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Gets a list of indices that the peerBitfield has, but this does not
 	 */
 	public List<Integer> getRequiredPieces(Bitfield peerBitfield)
 	{
 		List<Integer> requiredIndices = new ArrayList<Integer>();
-		int byteCount = this.bitfield.length;
+		if (this.bitfield == null && this.isFull || peerBitfield.bitfield == null && !peerBitfield.isFull)
+		{
+			return requiredIndices;
+		}
+		int byteCount = this.process.getCommonConfig().getBitfieldPieceCount();
 
 		int pieceIndex = 0;
 		for (int index = 0; index < byteCount; ++index)
 		{
-			byte myByte = this.bitfield[index];
-			byte peerByte = peerBitfield.getBitfield()[index];
+			byte myByte = this.getByte(index);
+			byte peerByte = peerBitfield.getByte(index);
 
 			byte differentPieces = (byte) (myByte ^ peerByte);
 			byte requiredPieces = (byte) (differentPieces & peerByte);
@@ -143,9 +273,16 @@ public class Bitfield
 	 * Updates the piece index
 	 * 
 	 * @param index The index of the bit
+	 * @return True if the bitfield did not have the piece before
 	 */
-	public void updateBitfield(int index)
+	public synchronized boolean updateBitfield(int index)
 	{
+		if (this.bitfield == null && this.isFull || this.hasPiece(index))
+		{
+			return false;
+		}
+		byte[] bitfield = this.getBitfield();
+
 		// Updating the bit representing the piece
 		int posByte = index / 8;
 		int posBit = index % 8;
@@ -153,6 +290,7 @@ public class Bitfield
 		oldByte = (byte) (((0xFF7F >> posBit) & oldByte) & 0x00FF);
 		byte newByte = (byte) ((1 << (8 - (posBit + 1))) | oldByte);
 		bitfield[posByte] = newByte;
+		return true;
 	}
 
 	/*
@@ -164,7 +302,21 @@ public class Bitfield
 	public boolean isInterested(Bitfield compareBitfield)
 	{
 		// TODO received a null pointer here
-		return this.isInterested(compareBitfield.bitfield);
+		if (compareBitfield.bitfield == null && !compareBitfield.isFull)
+		{
+			return false;
+		}
+		int byteCount = this.process.getCommonConfig().getBitfieldPieceCount();
+		for (int i = 0; i < byteCount; i++)
+		{
+			byte myByte = this.getByte(i);
+			byte hasPieces = (byte) (myByte | compareBitfield.getByte(i));
+			if (hasPieces != myByte)
+			{
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/*
@@ -177,7 +329,7 @@ public class Bitfield
 	{
 		for (int i = 0; i < compareBitfield.length; i++)
 		{
-			byte myByte = this.bitfield[i];
+			byte myByte = this.getByte(i);
 			byte peerbyte = compareBitfield[i];
 			byte hasPieces = (byte) (myByte | peerbyte);
 			if (hasPieces != myByte)
@@ -196,8 +348,65 @@ public class Bitfield
 	 * 
 	 * @return the bitfield array
 	 */
-	public byte[] getBitfield()
+	public synchronized byte[] getBitfield()
 	{
+		if (this.bitfield == null)
+		{
+			int numBytes = this.process.getCommonConfig().getBitfieldPieceCount();
+			byte[] bits = new byte[numBytes];
+			for (int index = 0; index < numBytes; ++index)
+			{
+				bits[index] = this.getByte(index);
+			}
+			this.bitfield = bits;
+		}
 		return this.bitfield;
 	}
+
+	/**
+	 * Checks if the bitfield is known to have all of the pieces without reading its
+	 * bytes
+	 * 
+	 * @return True if the bitfield was created with every piece and has not been
+	 * allocated since
+	 */
+	public boolean isFull()
+	{
+		return this.bitfield == null && this.isFull;
+	}
+
+	/**
+	 * Checks if the bitfield is known to have none of the pieces without reading
+	 * its bytes
+	 * 
+	 * @return True if the bitfield was created without any piece and has not been
+	 * allocated since
+	 */
+	public boolean isEmpty()
+	{
+		return this.bitfield == null && !this.isFull;
+	}
+
+	/**
+	 * Returns a byte of the bitfield, computing it if the bitfield is not allocated
+	 * 
+	 * The spare bits of the last byte of a full bitfield are clear.
+	 * 
+	 * @param index The index of the byte
+	 * @return The byte of the bitfield
+	 */
+	private byte getByte(int index)
+	{
+		byte[] bits = this.bitfield;
+		if (bits != null)
+		{
+			return bits[index];
+		}
+		if (!this.isFull)
+		{
+			return 0;
+		}
+		int remainingPieces = this.process.getCommonConfig().getNumberOfPieces() - index * 8;
+		return remainingPieces >= 8 ? (byte) 0xFF : (byte) (0xFF00 >> remainingPieces);
+	}
 }
@@ -8,23 +8,57 @@ import bittorrent.protocol.messages.ActualMessage;
 import bittorrent.protocol.peer.PeerProcess;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 
+/**
+ * A threaded process that selects the preferred neighbors every unchoking
+ * interval.
+ * 
+ * The interested neighbors are ranked by their measured transfer rate over the
+ * last few seconds, and the fastest NumberOfPreferredNeighbors are unchoked.
+ * While this peer is still downloading, neighbors are ranked by the rate they
+ * upload to this peer, so the upload slots go to the peers that reciprocate
+ * best. Once this peer has all of the pieces, neighbors are ranked by the rate
+ * this peer uploads to them, so the slots go to the peers that can take the
+ * pieces fastest. Neighbors with equal rates are ranked randomly.
+ * 
+ * Neighbors that are snubbing this peer, by leaving its requests unanswered
+ * after unchoking it, are never preferred. Their upload slots are handed out by
+ * the OptimisticallyUnchokedProcess instead.
+ * 
+ * A selection never runs at the same time as a rotation of the optimistically
+ * unchoked neighbors, which synchronizes on this process.
+ */
 public class ChokingProcess extends TimerTask
 {
 	private PeerProcess parent;
 	private Logger logger;
 
 	private long periodMs;
-	private List<PeerConnection> connections;
+	private ConnectionRegistry connections;
 	private int maxPreferredNeighbors;
 	private Random rn;
 	private Timer timerProcess;
-	private Boolean hasAllPieces;
 
-	public ChokingProcess(PeerProcess parent, Logger logger, List<PeerConnection> connections, int maxPreferredNeighbors, long periodMs,
-			boolean allPieces)
+	/**
+	 * An interested neighbor and its rate at the time of the selection
+	 */
+	private static class Candidate
+	{
+		private PeerConnection connection;
+		private double rate;
+
+		private Candidate(PeerConnection connection, double rate)
+		{
+			this.connection = connection;
+			this.rate = rate;
+		}
+	}
+
+	public ChokingProcess(PeerProcess parent, Logger logger, ConnectionRegistry connections, int maxPreferredNeighbors, long periodMs)
 	{
 		this.parent = parent;
 		this.logger = logger;
@@ -33,7 +67,6 @@ public class ChokingProcess extends TimerTask
 		this.timerProcess = new Timer(true);
 		this.rn = new Random();
 		this.maxPreferredNeighbors = maxPreferredNeighbors;
-		this.hasAllPieces = allPieces;
 	}
 
 	public void startProcess()
@@ -58,86 +91,42 @@ public class ChokingProcess extends TimerTask
 		this.calculatePreferredNeighbors();
 	}
 
-	protected void calculatePreferredNeighbors()
+	protected synchronized void calculatePreferredNeighbors()
 	{
+		// The optimistically unchoked neighbors are kept, since they are rotated by
+		// the OptimisticallyUnchokedProcess on its own interval
 		for (PeerConnection connection : this.connections)
 		{
 			connection.setPreferred(false);
-			connection.setOptimisticallyUnchoked(false);
 		}
-		List<PeerConnection> interestedNeighbors = new ArrayList<PeerConnection>();
+
+		// Rank the interested neighbors by the rate they download to this peer, or
+		// by the rate this peer uploads to them once it has all of the pieces. The
+		// rates are read once, so that the ranking is consistent while sorting.
+		boolean isSeeding = this.parent.hasAllPieces();
+		List<Candidate> candidates = new ArrayList<Candidate>();
 		for (PeerConnection connection : this.connections)
 		{
-			if (connection.getInterested())
+			boolean isSnubbed = connection.checkSnubbed();
+			if (connection.getInterested() && !isSnubbed)
 			{
-				interestedNeighbors.add(connection);
+				TransferRateMeter meter = isSeeding ? connection.getUploadMeter() : connection.getDownloadMeter();
+				candidates.add(new Candidate(connection, meter.getRate()));
 			}
 		}
-		List<PeerConnection> preferredNeighbors = new ArrayList<PeerConnection>();
-		int numOfInterested = interestedNeighbors.size();
 
-		// sets preferred connections to true for MaxPreferredNeighbors
-		// if MaxPreferred connections > # of connections, sets all to preferred.
-		if (this.maxPreferredNeighbors < numOfInterested)
-		{
-			for (int i = 0; i < this.maxPreferredNeighbors; i++)
-			{
-				int num;
-
-				// good for complete file
-				if (this.hasAllPieces)
-				{
-					do
-					{
-						num = rn.nextInt(numOfInterested);
-					} while (interestedNeighbors.get(num).getPreferred());
-					interestedNeighbors.get(num).setPreferred(true);
-					preferredNeighbors.add(interestedNeighbors.get(num));
-				}
-				// Pick highest downloading speed
-				else
-				{
-					int max = 0;
-					num = 0;
-					for (int j = 0; j < this.maxPreferredNeighbors - i; j++)
-					{
-						if (interestedNeighbors.get(j).getDownloads() > max)
-						{
-							num = j;
-							max = interestedNeighbors.get(j).getDownloads();
-						}
-						else if (interestedNeighbors.get(j).getDownloads() == max)
-						{
-							// if tied, randomly choose between the 2 if the previous is chosen, we do
-							// nothing, so 50% chance this if is called.
-							if (rn.nextBoolean())
-							{
-								num = j;
-								max = interestedNeighbors.get(j).getDownloads();
-							}
-						}
-					}
-					interestedNeighbors.get(num).setPreferred(true);
-					preferredNeighbors.add(interestedNeighbors.get(num));
-					interestedNeighbors.remove(num);
-				}
-			}
-		}
-		else
-		{
-			for (int i = 0; i < numOfInterested; i++)
-			{
-				PeerConnection connection = interestedNeighbors.get(i);
-				connection.setPreferred(true);
-				preferredNeighbors.add(connection);
-			}
-		}
-		// resets download speeds for next iteration
-		for (int i = 0; i < this.connections.size(); i++)
+		// Shuffling before the stable sort breaks ties between equal rates randomly
+		Collections.shuffle(candidates, this.rn);
+		candidates.sort(Comparator.comparingDouble((Candidate candidate) -> candidate.rate).reversed());
+
+		List<PeerConnection> preferredNeighbors = new ArrayList<PeerConnection>();
+		int preferredCount = Math.min(this.maxPreferredNeighbors, candidates.size());
+		for (int index = 0; index < preferredCount; ++index)
 		{
-			this.connections.get(i).resetDownloadRate();
+			PeerConnection connection = candidates.get(index).connection;
+			connection.setPreferred(true);
+			preferredNeighbors.add(connection);
 		}
-		this.parent.clearPendingRequests();
 		this.sendChokeUnchoke();
 
 		// Logs new preferred Neighbors
@@ -169,9 +158,4 @@ public class ChokingProcess extends TimerTask
 
 		}
 	}
-
-	public void updateHasAllPieces(boolean allPieces)
-	{
-		this.hasAllPieces = allPieces;
-	}
 }
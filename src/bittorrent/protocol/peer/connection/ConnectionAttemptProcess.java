@@ -0,0 +1,160 @@
+package bittorrent.protocol.peer.connection;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import bittorrent.BitTorrent;
+import bittorrent.config.PeerInfo;
+import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.transport.PeerTransport;
+import bittorrent.protocol.peer.transport.TransportProvider;
+
+/**
+ * An asynchronous process that repeatedly attempts to connect with a peer.
+ * 
+ * Each attempt is made through the transport provider of the parent process
+ * and is abandoned after CONNECTION_TIMEOUT_MS. Failed attempts are
+ * retried up to CONNECTION_ATTEMPTS times, where the delay between attempts
+ * grows exponentially with a random jitter. However many attempts are left, no
+ * attempt is pending or scheduled past CONNECTION_DEADLINE_MS after the first
+ * one, so an unreachable peer holds up the parent process no longer than the
+ * original attempts one second apart did. No thread is blocked while an
+ * attempt is pending, so attempts to multiple peers can be made concurrently.
+ * Once the scheduler is shut down, no further attempt is made and the returned
+ * future fails, so a caller waiting on it is never left blocked.
+ */
+public class ConnectionAttemptProcess
+{
+	private PeerProcess parent;
+	private PeerInfo peerInfo;
+	private TransportProvider provider;
+	private SocketAddress address;
+	private ScheduledExecutorService scheduler;
+	private CompletableFuture<PeerConnection> result;
+	private Random random;
+	private int attempt;
+	private long deadline;
+
+	/**
+	 * Initializes the connection attempt process
+	 * 
+	 * @param parent The parent process
+	 * @param peerInfo The peer information of the peer to connect with
+	 * @param provider The provider of the transport to connect with
+	 * @param address The address of the peer to connect with
+	 * @param scheduler The scheduler used for timeouts and delayed attempts
+	 */
+	public ConnectionAttemptProcess(PeerProcess parent, PeerInfo peerInfo, TransportProvider provider,
+			SocketAddress address, ScheduledExecutorService scheduler)
+	{
+		this.parent = parent;
+		this.peerInfo = peerInfo;
+		this.provider = provider;
+		this.address = address;
+		this.scheduler = scheduler;
+		this.result = new CompletableFuture<PeerConnection>();
+		this.random = new Random();
+		this.attempt = 0;
+	}
+
+	/**
+	 * Starts the connection attempts
+	 * 
+	 * @return A future that completes with the connection or exceptionally if all
+	 * attempts fail
+	 */
+	public CompletableFuture<PeerConnection> startProcess()
+	{
+		this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BitTorrent.CONNECTION_DEADLINE_MS);
+		this.makeAttempt();
+		return this.result;
+	}
+
+	/**
+	 * Returns the delay before the next attempt
+	 * 
+	 * The delay is chosen uniformly between zero and the exponential backoff for
+	 * the current attempt, which is capped at CONNECTION_BACKOFF_MAX_MS.
+	 * 
+	 * @return The delay in milliseconds before the next attempt
+	 */
+	protected long getBackoffDelay()
+	{
+		int shift = Math.min(this.attempt, 20);
+		long backoff = Math.min((long) BitTorrent.CONNECTION_BACKOFF_BASE_MS << shift,
+				BitTorrent.CONNECTION_BACKOFF_MAX_MS);
+		return (long) (this.random.nextDouble() * backoff);
+	}
+
+	private void makeAttempt()
+	{
+		CompletableFuture<PeerTransport> pending = this.provider.connect(this.address);
+
+		// Abandoning the pending attempt closes it. The last attempt is cut short at
+		// the deadline.
+		long timeoutMs = Math.min(BitTorrent.CONNECTION_TIMEOUT_MS, this.getRemainingMs());
+		ScheduledFuture<?> timeout;
+		try
+		{
+			timeout = this.scheduler.schedule(
+					() -> pending.completeExceptionally(new IOException("Error: Connection attempt timed out.")),
+					timeoutMs, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			pending.completeExceptionally(e);
+			this.abort();
+			return;
+		}
+		pending.whenComplete((transport, exception) ->
+		{
+			timeout.cancel(false);
+			if (exception == null)
+			{
+				this.result.complete(PeerConnection.createInitiatedConnection(this.parent, transport));
+			}
+			else
+			{
+				this.failed();
+			}
+		});
+	}
+
+	private void failed()
+	{
+		this.attempt++;
+		long delay = this.getBackoffDelay();
+		if (this.attempt < BitTorrent.CONNECTION_ATTEMPTS && delay < this.getRemainingMs())
+		{
+			try
+			{
+				this.scheduler.schedule(this::makeAttempt, delay, TimeUnit.MILLISECONDS);
+				return;
+			}
+			catch (RejectedExecutionException e)
+			{
+				// The parent process is shutting down, so no further attempt is made
+			}
+		}
+		this.abort();
+	}
+
+	private long getRemainingMs()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(this.deadline - System.nanoTime());
+	}
+
+	private void abort()
+	{
+		// The result is always completed, since the parent process waits for it
+		StringBuilder errorMessage = new StringBuilder("Error: Unable to connect to peer ");
+		errorMessage.append(this.peerInfo.getPeerID());
+		this.result.completeExceptionally(new IOException(errorMessage.toString()));
+	}
+}
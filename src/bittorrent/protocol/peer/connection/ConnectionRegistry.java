@@ -0,0 +1,104 @@
+package bittorrent.protocol.peer.connection;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps record of all connections of a peer process.
+ * 
+ * Connections are added as soon as the channel is established, and are indexed
+ * by the peer ID once the handshake has been received. Iterating over the
+ * registry iterates over a snapshot of the connections and takes no lock, so
+ * connections can be added or removed while the choking processes and the have
+ * broadcasts are iterating.
+ */
+public class ConnectionRegistry implements Iterable<PeerConnection>
+{
+	private CopyOnWriteArrayList<PeerConnection> connections;
+	private ConcurrentHashMap<Integer, PeerConnection> connectionsByID;
+
+	public ConnectionRegistry()
+	{
+		this.connections = new CopyOnWriteArrayList<PeerConnection>();
+		this.connectionsByID = new ConcurrentHashMap<Integer, PeerConnection>();
+	}
+
+	/**
+	 * Adds a connection to the registry
+	 * 
+	 * @param connection The connection to add
+	 */
+	public void add(PeerConnection connection)
+	{
+		this.connections.addIfAbsent(connection);
+	}
+
+	/**
+	 * Indexes the connection by the peer ID of the connected peer
+	 * 
+	 * This should be called once the handshake has been received.
+	 * 
+	 * @param connection The connection to index
+	 */
+	public void register(PeerConnection connection)
+	{
+		this.connections.addIfAbsent(connection);
+		this.connectionsByID.put(connection.getPeerID(), connection);
+	}
+
+	/**
+	 * Removes the connection from the registry
+	 * 
+	 * @param connection The connection to remove
+	 */
+	public void remove(PeerConnection connection)
+	{
+		this.connections.remove(connection);
+		this.connectionsByID.remove(connection.getPeerID(), connection);
+	}
+
+	/**
+	 * Returns the connection with the provided peer ID
+	 * 
+	 * @param peerID The ID of the connected peer
+	 * @return The connection with the peer or null if there is no connection
+	 */
+	public PeerConnection get(int peerID)
+	{
+		return this.connectionsByID.get(peerID);
+	}
+
+	/**
+	 * Returns the number of connections
+	 * 
+	 * @return The number of connections
+	 */
+	public int size()
+	{
+		return this.connections.size();
+	}
+
+	/**
+	 * Returns a read only list of the connections
+	 * 
+	 * Iterating over the list iterates over a snapshot of the connections.
+	 * 
+	 * @return A read only list of the connections
+	 */
+	public List<PeerConnection> getConnections()
+	{
+		return Collections.unmodifiableList(this.connections);
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the connections
+	 */
+	@Override
+	public Iterator<PeerConnection> iterator()
+	{
+		return this.connections.iterator();
+	}
+}
@@ -0,0 +1,191 @@
+package bittorrent.protocol.peer.connection;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A threaded process that limits the total download rate of a peer process.
+ * 
+ * The download rate is limited by throttling the requests that are sent, so
+ * received data never has to be dropped. Each request costs the size of a piece
+ * message in credit. Every PERIOD_MS the credit allowed by the rate is divided
+ * between the connections that are requesting pieces, in proportion to their
+ * measured download rate. Every requesting connection receives at least a small
+ * share so that new connections can establish a rate. Credit that a connection
+ * cannot hold is added to a shared pool that any connection may use, so the
+ * credit of idle connections is not wasted.
+ */
+public class DownloadLimiter extends TimerTask
+{
+	// The rate in milliseconds that credit is distributed
+	public static final long PERIOD_MS = 100;
+
+	// The number of milliseconds of the rate that can be held as credit
+	public static final long BURST_MS = 500;
+
+	// The number of milliseconds after its last request that a connection is no
+	// longer given credit
+	public static final long DEMAND_TIMEOUT_MS = 1000;
+
+	// The fraction of the credit that is divided equally between the connections
+	public static final double MINIMUM_SHARE = 0.1;
+
+	private long maxRate;
+	private double requestCost;
+	private double burst;
+	private double pool;
+	private long lastRefill;
+	private Timer timerProcess;
+	private ConcurrentHashMap<PeerConnection, Account> accounts;
+
+	/**
+	 * The credit of a single connection
+	 */
+	private static class Account
+	{
+		private double credit;
+		private long lastDemand;
+	}
+
+	/**
+	 * Initializes the download limiter
+	 * 
+	 * @param maxRate The maximum total download rate in bytes per second
+	 * @param pieceSize The size of a piece in bytes
+	 */
+	public DownloadLimiter(long maxRate, int pieceSize)
+	{
+		this.maxRate = maxRate;
+		// A request results in a piece message, which includes the 4-byte length,
+		// 1-byte type and 4-byte index fields
+		this.requestCost = pieceSize + 9;
+		this.burst = Math.max(maxRate * BURST_MS / 1000.0, this.requestCost);
+		this.pool = 0;
+		this.timerProcess = new Timer(true);
+		this.accounts = new ConcurrentHashMap<PeerConnection, Account>();
+	}
+
+	/**
+	 * Starts the download limiter
+	 */
+	public void startProcess()
+	{
+		this.lastRefill = System.nanoTime();
+		this.timerProcess.scheduleAtFixedRate(this, 0, PERIOD_MS);
+	}
+
+	/**
+	 * Stops the download limiter
+	 */
+	public void stopProcess()
+	{
+		this.timerProcess.cancel();
+		this.timerProcess.purge();
+	}
+
+	/**
+	 * Returns the maximum total download rate in bytes per second
+	 * 
+	 * @return The maximum total download rate in bytes per second
+	 */
+	public long getMaxRate()
+	{
+		return this.maxRate;
+	}
+
+	/**
+	 * Attempts to take the credit for a single request
+	 * 
+	 * The credit of the connection is used first, and then the shared pool.
+	 * Calling this function also marks the connection as requesting pieces.
+	 * 
+	 * @param connection The connection that will send the request
+	 * @return True if the request may be sent
+	 */
+	public synchronized boolean tryAcquire(PeerConnection connection)
+	{
+		Account account = this.accounts.computeIfAbsent(connection, (key) -> new Account());
+		account.lastDemand = System.nanoTime();
+		if (account.credit + this.pool < this.requestCost)
+		{
+			return false;
+		}
+		double fromAccount = Math.min(account.credit, this.requestCost);
+		account.credit -= fromAccount;
+		this.pool -= this.requestCost - fromAccount;
+		return true;
+	}
+
+	/**
+	 * Removes the credit of the connection
+	 * 
+	 * @param connection The connection to remove
+	 */
+	public void remove(PeerConnection connection)
+	{
+		this.accounts.remove(connection);
+	}
+
+	@Override
+	public synchronized void run()
+	{
+		long now = System.nanoTime();
+		double budget = this.maxRate * (now - this.lastRefill) / 1e9;
+		this.lastRefill = now;
+		this.distribute(budget, now);
+	}
+
+	/**
+	 * Divides credit between the connections that are requesting pieces
+	 * 
+	 * @param budget The credit to divide in bytes
+	 * @param now The current time in nanoseconds
+	 */
+	synchronized void distribute(double budget, long now)
+	{
+		// Determine the connections that are requesting pieces and their weights
+		long demandTimeout = DEMAND_TIMEOUT_MS * 1000000;
+		int requesting = 0;
+		double totalRate = 0;
+		for (Map.Entry<PeerConnection, Account> entry : this.accounts.entrySet())
+		{
+			if (now - entry.getValue().lastDemand < demandTimeout)
+			{
+				requesting++;
+				totalRate += entry.getKey().getDownloadMeter().getRate();
+			}
+		}
+
+		double overflow = budget;
+		if (requesting > 0)
+		{
+			overflow = 0;
+			for (Map.Entry<PeerConnection, Account> entry : this.accounts.entrySet())
+			{
+				Account account = entry.getValue();
+				if (now - account.lastDemand >= demandTimeout)
+				{
+					continue;
+				}
+				double weight = MINIMUM_SHARE / requesting;
+				if (totalRate > 0)
+				{
+					weight += (1 - MINIMUM_SHARE) * entry.getKey().getDownloadMeter().getRate() / totalRate;
+				}
+				else
+				{
+					weight += (1 - MINIMUM_SHARE) / requesting;
+				}
+
+				// A connection holds at most its share of the burst, but always a request
+				double limit = Math.max(this.requestCost, this.burst * weight);
+				double credit = account.credit + budget * weight;
+				account.credit = Math.min(credit, limit);
+				overflow += credit - account.credit;
+			}
+		}
+		this.pool = Math.min(this.burst, this.pool + overflow);
+	}
+}
@@ -5,32 +5,79 @@ import java.util.List;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import bittorrent.logging.Logger;
 import bittorrent.protocol.messages.ActualMessage;
 
+/**
+ * A threaded process that rotates the optimistically unchoked neighbor every
+ * optimistic unchoking interval.
+ * 
+ * The new neighbor is picked randomly among the interested neighbors that are
+ * not preferred. A neighbor that connected within the last NEW_PEER_ROUNDS
+ * intervals, or that has none of the pieces, is NEW_PEER_WEIGHT times as likely
+ * to be picked, since it has nothing to reciprocate with until it is given its
+ * first pieces. The previous optimistically unchoked neighbor loses its flag and
+ * is choked, unless it is picked again or has become a preferred neighbor.
+ * 
+ * Each neighbor that is snubbing this peer gives up its upload slot to an extra
+ * optimistic unchoke, so that the slot goes to a neighbor that may reciprocate.
+ * Snubbing neighbors are never optimistically unchoked themselves.
+ * 
+ * The optimistic flags are only changed by this process, and a rotation never
+ * runs at the same time as the selection of the preferred neighbors by the
+ * ChokingProcess, so that the two agree on which neighbors are unchoked.
+ */
 public class OptimisticallyUnchokedProcess extends TimerTask
 {
+	// The weight of a newly connected or piece-less neighbor relative to the others
+	public static final int NEW_PEER_WEIGHT = 3;
+
+	// The number of optimistic unchoking intervals a neighbor counts as newly
+	// connected for
+	public static final int NEW_PEER_ROUNDS = 3;
+
 	private Logger logger;
 	private long periodMs;
-	private List<PeerConnection> connections;
+	private ConnectionRegistry connections;
+	private ChokingProcess choker;
 	private Random rn;
 	private Timer timerProcess;
+	private List<PeerConnection> optimisticNeighbors;
+
+	/**
+	 * A neighbor that may be optimistically unchoked and its weight
+	 */
+	private static class Candidate
+	{
+		private PeerConnection connection;
+		private int weight;
+
+		private Candidate(PeerConnection connection, int weight)
+		{
+			this.connection = connection;
+			this.weight = weight;
+		}
+	}
 
-	public OptimisticallyUnchokedProcess(Logger logger, List<PeerConnection> connections, long periodMs)
+	public OptimisticallyUnchokedProcess(Logger logger, ConnectionRegistry connections, ChokingProcess choker,
+			long periodMs)
 	{
 		this.logger = logger;
 		this.periodMs = periodMs;
 		this.connections = connections;
+		this.choker = choker;
 		this.timerProcess = new Timer(true);
 		this.rn = new Random();
+		this.optimisticNeighbors = new ArrayList<PeerConnection>();
 	}
 
 	public void startProcess()
 	{
 		this.timerProcess.scheduleAtFixedRate(this, 0, this.periodMs);
 	}
-	
+
 	public void stopProcess()
 	{
 		this.timerProcess.cancel();
@@ -45,24 +92,76 @@ public class OptimisticallyUnchokedProcess extends TimerTask
 	@Override
 	public void run()
 	{
-		int numOfConnections = this.connections.size();
-		List<PeerConnection> ChokedButInterested = new ArrayList<PeerConnection>();
-		for (int i = 0; i < numOfConnections; i++)
+		synchronized (this.choker)
+		{
+			this.rotateOptimisticNeighbors();
+		}
+	}
+
+	protected void rotateOptimisticNeighbors()
+	{
+		long now = System.nanoTime();
+		long newPeerNanos = TimeUnit.MILLISECONDS.toNanos(NEW_PEER_ROUNDS * this.periodMs);
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		int unchokeCount = 1;
+		for (PeerConnection connection : this.connections)
+		{
+			if (connection.isSnubbed())
+			{
+				++unchokeCount;
+			}
+			else if (!connection.getPreferred() && connection.getInterested())
+			{
+				boolean isNew = now - connection.getConnectionTime() < newPeerNanos;
+				Bitfield bitfield = connection.getProcess().getAllbitfields().getBitfield(connection);
+				boolean hasNoPieces = bitfield != null && !bitfield.hasAnyPiece();
+				int weight = isNew || hasNoPieces ? NEW_PEER_WEIGHT : 1;
+				candidates.add(new Candidate(connection, weight));
+			}
+		}
+
+		// Picks the neighbors one at a time, each with a chance proportional to its
+		// weight
+		List<PeerConnection> picked = new ArrayList<PeerConnection>();
+		while (picked.size() < unchokeCount && !candidates.isEmpty())
 		{
-			if (!this.connections.get(i).getPreferred() && this.connections.get(i).getInterested())
+			int totalWeight = 0;
+			for (Candidate candidate : candidates)
+			{
+				totalWeight += candidate.weight;
+			}
+			int target = this.rn.nextInt(totalWeight);
+			int index = 0;
+			while (target >= candidates.get(index).weight)
 			{
-				ChokedButInterested.add(this.connections.get(i));
+				target -= candidates.get(index).weight;
+				++index;
 			}
+			picked.add(candidates.remove(index).connection);
 		}
-		PeerConnection peer;
-		if (!ChokedButInterested.isEmpty())
+
+		// The previous neighbors are choked unless they stay unchoked for another reason
+		for (PeerConnection connection : this.optimisticNeighbors)
+		{
+			connection.setOptimisticallyUnchoked(false);
+			if (!picked.contains(connection) && !connection.getPreferred() && !connection.getChoked())
+			{
+				ActualMessage message = ActualMessage.CreateChokeMessage();
+				connection.sendMessage(message);
+				connection.setChoked(true);
+			}
+		}
+		for (PeerConnection peer : picked)
 		{
-			peer = ChokedButInterested.get(rn.nextInt(ChokedButInterested.size()));
 			peer.setOptimisticallyUnchoked(true);
-			ActualMessage message = ActualMessage.CreateUnchokeMessage();
-			peer.sendMessage(message);
-			peer.setChoked(false);
+			if (peer.getChoked())
+			{
+				ActualMessage message = ActualMessage.CreateUnchokeMessage();
+				peer.sendMessage(message);
+				peer.setChoked(false);
+			}
 			this.logger.changeOptimisticallyUnchoked(peer);
 		}
+		this.optimisticNeighbors = picked;
 	}
 }
@@ -0,0 +1,261 @@
+package bittorrent.protocol.peer.connection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bittorrent.protocol.extensions.Extension;
+import bittorrent.protocol.messages.ActualMessage;
+import bittorrent.protocol.peer.transport.PeerTransport;
+
+/**
+ * The outgoing messages of a peer connection, ordered by priority.
+ *
+ * Control messages, such as choke, have and request messages, are always
+ * written before piece data. When the ChunkedPieces extension is enabled, a
+ * piece is written as piece chunk messages of at most CHUNK_SIZE bytes, and the
+ * control messages queued meanwhile are written between the chunks. A control
+ * message therefore waits for at most one chunk instead of several whole
+ * pieces. Without the extension a piece is written as a single piece message.
+ *
+ * A transport that queues its writes is only given more piece data while it
+ * holds less than QUEUED_LIMIT bytes, and its drain handler resumes the queue.
+ * The queue is drained by whichever thread adds a message or drains the
+ * transport, but only one thread writes at a time. Once the last queued piece
+ * has been handed to the transport, the connection is told so that the upload
+ * limiter can give it more pieces.
+ */
+public class OutboundQueue
+{
+	// The largest number of piece bytes in a single piece chunk message
+	public static final int CHUNK_SIZE = 16384;
+
+	// The number of bytes queued in the transport before no more piece data is
+	// written to it
+	public static final int QUEUED_LIMIT = 2 * CHUNK_SIZE;
+
+	private PeerConnection connection;
+	private PeerTransport transport;
+	private ConcurrentLinkedQueue<Object> controlMessages;
+	private ConcurrentLinkedQueue<OutgoingPiece> pieces;
+	private volatile OutgoingPiece current;
+	private volatile int currentIndex;
+	private AtomicInteger pendingDrains;
+
+	/**
+	 * A piece waiting to be written
+	 */
+	private static class OutgoingPiece
+	{
+		private int index;
+		private byte[] content;
+		private int offset;
+
+		private OutgoingPiece(int index, byte[] content)
+		{
+			this.index = index;
+			this.content = content;
+			this.offset = 0;
+		}
+	}
+
+	/**
+	 * Creates the queue of a connection
+	 *
+	 * @param connection The connection that the messages are sent on
+	 * @param transport The transport of the connection
+	 */
+	public OutboundQueue(PeerConnection connection, PeerTransport transport)
+	{
+		this.connection = connection;
+		this.transport = transport;
+		this.controlMessages = new ConcurrentLinkedQueue<Object>();
+		this.pieces = new ConcurrentLinkedQueue<OutgoingPiece>();
+		this.currentIndex = -1;
+		this.pendingDrains = new AtomicInteger(0);
+		this.transport.setDrainHandler(this::drain);
+	}
+
+	/**
+	 * Queues a control message
+	 *
+	 * @param message The message to send
+	 */
+	public void add(ActualMessage message)
+	{
+		this.controlMessages.add(message);
+		this.drain();
+	}
+
+	/**
+	 * Queues raw bytes, such as a handshake or a keep-alive message, as a control
+	 * message
+	 *
+	 * @param message The bytes to send
+	 */
+	public void add(ByteBuffer message)
+	{
+		this.controlMessages.add(message);
+		this.drain();
+	}
+
+	/**
+	 * Queues a piece
+	 *
+	 * @param index The index of the piece
+	 * @param content The content of the piece
+	 */
+	public void addPiece(int index, byte[] content)
+	{
+		this.pieces.add(new OutgoingPiece(index, content));
+		this.drain();
+	}
+
+	/**
+	 * Removes a queued piece whose writing has not started
+	 *
+	 * @param index The index of the piece
+	 * @return True if the piece was queued and has been removed
+	 */
+	public boolean cancel(int index)
+	{
+		return this.pieces.removeIf(piece -> piece.index == index);
+	}
+
+	/**
+	 * Checks if the piece is queued or being written
+	 * 
+	 * @param index The index of the piece
+	 * @return True if the rest of the piece is still to be written
+	 */
+	public boolean contains(int index)
+	{
+		return this.currentIndex == index || this.pieces.stream().anyMatch(piece -> piece.index == index);
+	}
+
+	/**
+	 * Checks if the piece is being written
+	 *
+	 * @param index The index of the piece
+	 * @return True if part of the piece has been written, but not all of it
+	 */
+	public boolean isWriting(int index)
+	{
+		return this.currentIndex == index;
+	}
+
+	/**
+	 * Checks if a piece is queued or being written
+	 *
+	 * This is called from the thread of the upload limiter while another thread
+	 * drains the queue, so the current piece is volatile.
+	 *
+	 * @return True if piece data is still to be handed to the transport
+	 */
+	public boolean hasPendingPieces()
+	{
+		return this.current != null || !this.pieces.isEmpty();
+	}
+
+	/**
+	 * Removes every queued message
+	 */
+	public void clear()
+	{
+		this.controlMessages.clear();
+		this.pieces.clear();
+	}
+
+	/**
+	 * Writes the queued messages to the transport
+	 */
+	public void drain()
+	{
+		if (this.pendingDrains.getAndIncrement() != 0)
+		{
+			// The thread that is draining the queue writes the new messages
+			return;
+		}
+		int missed = 1;
+		do
+		{
+			this.writeMessages();
+			missed = this.pendingDrains.addAndGet(-missed);
+		}
+		while (missed != 0);
+	}
+
+	private void writeMessages()
+	{
+		while (this.transport.isOpen())
+		{
+			Object message = this.controlMessages.poll();
+			if (message != null)
+			{
+				if (message instanceof ActualMessage)
+				{
+					this.transport.write((ActualMessage) message);
+				}
+				else
+				{
+					this.transport.write((ByteBuffer) message);
+				}
+				continue;
+			}
+
+			if (this.transport.getQueuedBytes() >= QUEUED_LIMIT)
+			{
+				// The drain handler of the transport resumes the queue
+				return;
+			}
+			if (this.current == null)
+			{
+				// The piece becomes current before it leaves the queue, so other threads
+				// always see it in one place or the other. A piece cancelled in between is
+				// skipped.
+				OutgoingPiece next = this.pieces.peek();
+				if (next == null)
+				{
+					return;
+				}
+				this.current = next;
+				if (!this.pieces.remove(next))
+				{
+					this.current = null;
+					continue;
+				}
+			}
+			this.writeChunk();
+		}
+	}
+
+	private void writeChunk()
+	{
+		OutgoingPiece piece = this.current;
+		int length = piece.content.length - piece.offset;
+		if (this.connection.isExtensionEnabled(Extension.CHUNKED_PIECES))
+		{
+			length = Math.min(length, CHUNK_SIZE);
+			this.currentIndex = piece.index;
+			this.transport.write(ActualMessage.CreatePieceChunkMessage(piece.index, piece.offset, piece.content,
+					length));
+		}
+		else
+		{
+			this.transport.write(ActualMessage.CreatePieceMessage(piece.index, piece.content));
+		}
+		piece.offset += length;
+		this.connection.getUploadMeter().record(length);
+
+		if (piece.offset == piece.content.length)
+		{
+			this.current = null;
+			this.currentIndex = -1;
+			this.connection.recordUpload(piece.index);
+			if (this.pieces.isEmpty())
+			{
+				this.connection.uploadDrained();
+			}
+		}
+	}
+}
@@ -1,22 +1,31 @@
 package bittorrent.protocol.peer.connection;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.StandardSocketOptions;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import bittorrent.BitTorrent;
 import bittorrent.config.PeerInfo;
 import bittorrent.logging.Logger;
+import bittorrent.protocol.extensions.Extension;
 import bittorrent.protocol.messages.ActualMessage;
 import bittorrent.protocol.messages.HandshakeMessage;
 import bittorrent.protocol.messages.MessageType;
 import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.transport.PeerTransport;
 
 /**
  * Represents a connection between two peers.
@@ -24,82 +33,156 @@ import bittorrent.protocol.peer.PeerProcess;
  * Each peer maintains its own connection with the other peer. In other words,
  * each TCP connection will generate two instances of this class: one for each
  * peer.
+ * 
+ * The bytes of the connection are carried by a transport, which delivers the
+ * received bytes to the receive function. The message handling is the same for
+ * every transport.
+ * 
+ * A keep-alive message is sent whenever nothing else has been sent for
+ * KEEP_ALIVE_INTERVAL seconds. If nothing is received from the other peer for
+ * IDLE_TIMEOUT seconds, the other peer is considered dead and the connection is
+ * torn down, so that it no longer holds an unchoke slot or a pending request. A
+ * connection that the other peer closes is torn down as soon as the transport
+ * finds it closed.
+ * 
+ * The handshake carries the extensions each peer supports. The extensions
+ * supported by both peers are enabled once the handshake of the other peer is
+ * received, and the messages of an extension are only sent on connections
+ * where it is enabled.
+ * 
+ * When the HaveBatch extension is enabled, the pieces announced to the other
+ * peer within HAVE_BATCH_DELAY_MS of each other are sent together in a single
+ * have batch message.
+ * 
+ * When the Cancel extension is enabled, a request that is no longer needed is
+ * withdrawn with a cancel message, so that the other peer does not upload a
+ * piece that would be discarded. A cancelled request that is still queued for
+ * upload is dropped. A cancel that arrives after the piece was sent is counted
+ * as wasted upload.
+ * 
+ * Outgoing messages pass through an OutboundQueue, which writes control
+ * messages before piece data. When the ChunkedPieces extension is enabled,
+ * pieces are sent in chunks, which are reassembled here before the piece is
+ * stored.
+ * 
+ * The messages are handled on the thread of the transport, while the choking
+ * processes, the request processes, the idle monitor and the rate limiters use
+ * the connection from their own threads. The flags they share are volatile and
+ * the collections they share are guarded by their own locks.
  */
-public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
+public class PeerConnection
 {
-	private AsynchronousSocketChannel peerChannel;
+	// The number of recently uploaded pieces remembered to account for cancels
+	// that arrive after the piece was sent
+	public static final int RECENT_UPLOADS = 16;
+
+	private PeerTransport transport;
 	private PeerProcess parent;
 	private boolean initiatedConnection;
-	private boolean isConnected;
-	private boolean isPreferred;
-	private boolean isChoked;
-	private boolean isOptimisticallyUnchoked;
-	private boolean isInterested;
-	private boolean receivedBitfield;
-	private int peerID;
-	private int downloadRate;
-	private RequestPieceProcess requestor;
+	private volatile boolean isConnected;
+	private volatile boolean isPreferred;
+	private volatile boolean isChoked;
+	private volatile boolean isOptimisticallyUnchoked;
+	private volatile boolean isInterested;
+	private volatile boolean receivedBitfield;
+	private volatile int peerID;
+	private TransferRateMeter downloadMeter;
+	private TransferRateMeter uploadMeter;
+	private volatile RequestPieceProcess requestor;
+	private RequestTimer requestTimer;
+	private volatile long lastReceived;
+	private volatile long lastSent;
+	private long connectionTime;
+	private volatile long unchokedAt;
+	private volatile long lastPieceData;
+	private volatile boolean isSnubbed;
+	private volatile ScheduledFuture<?> idleMonitor;
+	private AtomicBoolean isTornDown;
+	private volatile Set<Extension> extensions;
+	private List<Integer> pendingHaves;
+	private ScheduledFuture<?> haveFlush;
+	private ArrayDeque<Integer> recentUploads;
+	private OutboundQueue outbound;
+	private HashMap<Integer, PartialPiece> partialPieces;
+
+	/**
+	 * A piece that is received in chunks
+	 */
+	private static class PartialPiece
+	{
+		private byte[] content;
+		private int receivedBytes;
+	}
 
 	/**
 	 * Creates a peer connection.
 	 * 
-	 * This constructor assumes that the peer channel is already established. If the
-	 * peer channel is not established, make a connection using the
+	 * This constructor assumes that the transport is already established. If the
+	 * transport is not established, make a connection using the
 	 * PeerConnection.connectWithPeer function.
 	 * 
 	 * @param parent The parent process
-	 * @param peerChannel The connected peer channel
+	 * @param transport The connected transport
 	 */
-	public PeerConnection(PeerProcess parent, AsynchronousSocketChannel peerChannel)
+	public PeerConnection(PeerProcess parent, PeerTransport transport)
 	{
 		this.parent = parent;
-		this.peerChannel = peerChannel;
+		this.transport = transport;
+		this.outbound = new OutboundQueue(this, transport);
+		this.partialPieces = new HashMap<Integer, PartialPiece>();
 		this.isConnected = false;
 		this.initiatedConnection = false;
 		this.isChoked = true;
 		this.isInterested = false;
 		this.receivedBitfield = false;
 		this.isOptimisticallyUnchoked = false;
-		try
-		{
-			int bufferSize = this.parent.getCommonConfig().getPieceSize() * BitTorrent.BUFFER_SCALE;
-			this.peerChannel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
-			this.peerChannel.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
-			this.peerChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-		}
-		this.downloadRate = 0;
+		this.downloadMeter = new TransferRateMeter();
+		this.uploadMeter = new TransferRateMeter();
+		this.requestTimer = new RequestTimer(BitTorrent.REQUEST_TIMEOUT * 1000);
+		this.lastReceived = System.nanoTime();
+		this.lastSent = this.lastReceived;
+		this.connectionTime = this.lastReceived;
+		this.unchokedAt = this.lastReceived;
+		this.lastPieceData = this.lastReceived;
+		this.isSnubbed = false;
+		this.isTornDown = new AtomicBoolean(false);
+		this.extensions = EnumSet.noneOf(Extension.class);
+		this.pendingHaves = new ArrayList<Integer>();
+		this.recentUploads = new ArrayDeque<Integer>();
 	}
 
 	/**
 	 * Request a connection with the identified peer
 	 * 
+	 * The connection is made asynchronously. Failed attempts are retried with an
+	 * exponential backoff, as described in ConnectionAttemptProcess. A peer on the
+	 * same host with a Unix domain socket path is connected through the socket.
+	 * 
 	 * @param parent The parent process
 	 * @param peerInfo The peer information
+	 * @param scheduler The scheduler used for timeouts and delayed attempts
+	 * @return A future that completes with the connection handler
+	 */
+	public static CompletableFuture<PeerConnection> connectWithPeer(PeerProcess parent, PeerInfo peerInfo,
+			ScheduledExecutorService scheduler)
+	{
+		ConnectionAttemptProcess attempts = new ConnectionAttemptProcess(parent, peerInfo,
+				parent.getTransportProvider(peerInfo), parent.getPeerAddress(peerInfo), scheduler);
+		return attempts.startProcess();
+	}
+
+	/**
+	 * Creates a connection over a transport that this peer connected
+	 * 
+	 * @param parent The parent process
+	 * @param transport The connected transport
 	 * @return A connection handler
-	 * @throws IOException
 	 */
-	public static PeerConnection connectWithPeer(PeerProcess parent, PeerInfo peerInfo) throws IOException
+	static PeerConnection createInitiatedConnection(PeerProcess parent, PeerTransport transport)
 	{
-		AsynchronousSocketChannel peer = AsynchronousSocketChannel.open();
-		InetSocketAddress hostAddress = new InetSocketAddress(peerInfo.getHostName(), peerInfo.getPort());
-		try
-		{
-			peer.connect(hostAddress).get();
-		}
-		catch (InterruptedException | ExecutionException e)
-		{
-			StringBuilder errorMessage = new StringBuilder("Error: Unable to connect to peer ");
-			errorMessage.append(peerInfo.getPeerID());
-			throw new IOException(errorMessage.toString());
-		}
-		PeerConnection connection = new PeerConnection(parent, peer);
+		PeerConnection connection = new PeerConnection(parent, transport);
 		connection.initiatedConnection = true;
-		ByteBuffer buffer = ByteBuffer.allocate(parent.getCommonConfig().getPieceSize() * 4);
-		peer.read(buffer, buffer, connection);
+		transport.start(connection);
 		return connection;
 	}
 
@@ -199,7 +282,7 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	 * 
 	 * @param connected
 	 */
-	public synchronized void setConnected(boolean connected)
+	public void setConnected(boolean connected)
 	{
 		this.isConnected = connected;
 	}
@@ -244,6 +327,50 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 		return this.isOptimisticallyUnchoked;
 	}
 
+	/**
+	 * Returns the time the connection was created
+	 * 
+	 * @return The time the connection was created, as given by System.nanoTime
+	 */
+	public long getConnectionTime()
+	{
+		return this.connectionTime;
+	}
+
+	/**
+	 * Determines if the other peer is snubbing this peer and records the result
+	 * 
+	 * The other peer snubs this peer when it has unchoked this peer and a request
+	 * is outstanding, but no piece data has been received from it for the snub
+	 * timeout since the unchoke or the last piece data. A snub is logged once,
+	 * when it is first detected.
+	 * 
+	 * @return True if the other peer is snubbing this peer
+	 */
+	public boolean checkSnubbed()
+	{
+		RequestPieceProcess requestor = this.requestor;
+		long since = this.lastPieceData - this.unchokedAt > 0 ? this.lastPieceData : this.unchokedAt;
+		long timeout = this.parent.getCommonConfig().getSnubTimeout().toNanos();
+		boolean snubbed = requestor != null && requestor.hasRequested() && System.nanoTime() - since >= timeout;
+		if (snubbed && !this.isSnubbed)
+		{
+			this.getLogger().snubbedBy(this.peerID);
+		}
+		this.isSnubbed = snubbed;
+		return snubbed;
+	}
+
+	/**
+	 * Indicates if the other peer was snubbing this peer when last checked
+	 * 
+	 * @return True if the other peer was snubbing this peer when last checked
+	 */
+	public boolean isSnubbed()
+	{
+		return this.isSnubbed;
+	}
+
 	/**
 	 * Determines if the bitfield message has been received from the other peer.
 	 * 
@@ -255,21 +382,57 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	}
 
 	/**
-	 * Resets the download rate
+	 * Checks if the extension is enabled on this connection
+	 * 
+	 * An extension is enabled once the handshake has been received if both peers
+	 * support it.
+	 * 
+	 * @param extension The extension to check
+	 * @return True if both peers support the extension
+	 */
+	public boolean isExtensionEnabled(Extension extension)
+	{
+		return this.extensions.contains(extension);
+	}
+
+	/**
+	 * Returns the timer of the piece requests sent to the other peer
+	 * 
+	 * @return The timer of the piece requests sent to the other peer
+	 */
+	public RequestTimer getRequestTimer()
+	{
+		return this.requestTimer;
+	}
+
+	/**
+	 * Returns the time piece data was last received from the other peer
+	 * 
+	 * @return The time piece data was last received, as given by System.nanoTime
 	 */
-	public void resetDownloadRate()
+	public long getLastPieceData()
 	{
-		this.downloadRate = 0;
+		return this.lastPieceData;
 	}
 
 	/**
-	 * Returns the download rate
+	 * Returns the meter of the bytes downloaded from the other peer
 	 * 
-	 * @return The download rate
+	 * @return The meter of the bytes downloaded from the other peer
 	 */
-	public int getDownloads()
+	public TransferRateMeter getDownloadMeter()
 	{
-		return this.downloadRate;
+		return this.downloadMeter;
+	}
+
+	/**
+	 * Returns the meter of the bytes uploaded to the other peer
+	 * 
+	 * @return The meter of the bytes uploaded to the other peer
+	 */
+	public TransferRateMeter getUploadMeter()
+	{
+		return this.uploadMeter;
 	}
 
 	/**
@@ -286,10 +449,29 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 
 	/**
 	 * Sends a bitfield associated with the peer process' pieces
+	 * 
+	 * If the HaveAllNone extension is enabled, a peer with all or none of the
+	 * pieces sends a have all or a have none message instead of the bitfield.
+	 * While super seeding, the bitfield has none of the pieces.
 	 */
 	public void sendBitfield()
 	{
-		Bitfield bitfield = new Bitfield(this.parent);
+		SuperSeeder superSeeder = this.parent.getSuperSeeder();
+		boolean isSuperSeeding = superSeeder != null && superSeeder.isActive();
+		if (this.isExtensionEnabled(Extension.HAVE_ALL_NONE))
+		{
+			if (!isSuperSeeding && this.parent.hasAllPieces())
+			{
+				this.sendMessage(ActualMessage.CreateHaveAllMessage());
+				return;
+			}
+			if (isSuperSeeding || !this.parent.hasPieces())
+			{
+				this.sendMessage(ActualMessage.CreateHaveNoneMessage());
+				return;
+			}
+		}
+		Bitfield bitfield = isSuperSeeding ? Bitfield.createEmpty(this.parent) : new Bitfield(this.parent);
 		byte[] bits = bitfield.getBitfield();
 		ActualMessage bitfieldMessage = ActualMessage.CreateBitfieldMessage(bits);
 		this.sendMessage(bitfieldMessage);
@@ -300,10 +482,105 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	 */
 	public void sendHandshake()
 	{
-		HandshakeMessage message = HandshakeMessage.createHandshakeMessage(this.getMyID());
+		byte[] capabilities = this.parent.getExtensionRegistry().getCapabilities();
+		HandshakeMessage message = HandshakeMessage.createHandshakeMessage(this.getMyID(), capabilities);
 		sendMessage(ByteBuffer.wrap(message.getPayload()));
 	}
 
+	/**
+	 * Announces a piece to the connected peer
+	 * 
+	 * If the HaveBatch extension is enabled, the piece is sent with the other
+	 * pieces announced within HAVE_BATCH_DELAY_MS. Otherwise a have message is
+	 * sent immediately.
+	 * 
+	 * @param index The index of the piece
+	 */
+	public void sendHave(int index)
+	{
+		if (!this.isExtensionEnabled(Extension.HAVE_BATCH))
+		{
+			this.sendMessage(ActualMessage.CreateHaveMessage(index));
+			return;
+		}
+		synchronized (this.pendingHaves)
+		{
+			this.pendingHaves.add(index);
+			if (this.pendingHaves.size() > 1)
+			{
+				return;
+			}
+			try
+			{
+				this.haveFlush = this.parent.getScheduler().schedule(this::flushHaves, BitTorrent.HAVE_BATCH_DELAY_MS,
+						TimeUnit.MILLISECONDS);
+				return;
+			}
+			catch (RejectedExecutionException e)
+			{
+				// The parent process is shutting down, so send the piece immediately
+			}
+		}
+		this.flushHaves();
+	}
+
+	private void flushHaves()
+	{
+		List<Integer> indices;
+		synchronized (this.pendingHaves)
+		{
+			indices = new ArrayList<Integer>(this.pendingHaves);
+			this.pendingHaves.clear();
+			this.haveFlush = null;
+		}
+		if (indices.size() == 1)
+		{
+			this.sendMessage(ActualMessage.CreateHaveMessage(indices.get(0)));
+		}
+		else if (indices.size() > 1)
+		{
+			this.sendMessage(ActualMessage.CreateHaveBatchMessage(indices));
+		}
+	}
+
+	/**
+	 * Withdraws the request of a piece that is no longer needed from this peer
+	 * 
+	 * A cancel message is only sent if the Cancel extension is enabled and the
+	 * request has been sent. The requestor moves on to another piece either way.
+	 * 
+	 * @param index The index of the piece that is no longer needed
+	 */
+	public void cancelRequest(int index)
+	{
+		RequestPieceProcess requestor = this.requestor;
+		if (requestor == null || requestor.getPieceIndex() != index)
+		{
+			return;
+		}
+		if (requestor.hasRequested() && this.sendCancel(index))
+		{
+			this.discardPartialPiece(index);
+		}
+		requestor.setPieceIndex(-1);
+	}
+
+	/**
+	 * Sends a cancel message for the piece if the Cancel extension is enabled
+	 * 
+	 * @param index The index of the piece of the withdrawn request
+	 * @return True if the cancel message was sent
+	 */
+	public boolean sendCancel(int index)
+	{
+		if (!this.isExtensionEnabled(Extension.CANCEL))
+		{
+			return false;
+		}
+		this.sendMessage(ActualMessage.CreateCancelMessage(index));
+		return true;
+	}
+
 	/**
 	 * Sends isInterested message to the connected peer
 	 */
@@ -322,6 +599,89 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 		this.sendMessage(NotInterestedMessage);
 	}
 
+	/**
+	 * Sends the piece with the provided index to the connected peer
+	 * 
+	 * Nothing is sent if the parent process does not have the piece. The piece is
+	 * written once the queued control messages have been written.
+	 * 
+	 * @param index The index of the piece to send
+	 */
+	public void sendPiece(int index)
+	{
+		byte[] content = this.parent.getPieces().get(index);
+		if (content != null)
+		{
+			this.lastSent = System.nanoTime();
+			this.outbound.addPiece(index, content);
+		}
+	}
+
+	/**
+	 * Checks if pieces handed to the connection are still waiting to be written
+	 * 
+	 * @return True if the outbound queue holds piece data
+	 */
+	public boolean isUploading()
+	{
+		return this.outbound.hasPendingPieces();
+	}
+
+	/**
+	 * Records that the outbound queue has handed every queued piece to the
+	 * transport
+	 */
+	void uploadDrained()
+	{
+		UploadLimiter limiter = this.parent.getUploadLimiter();
+		if (limiter != null)
+		{
+			limiter.resume(this);
+		}
+	}
+
+	/**
+	 * Records that the outbound queue has written all of a piece
+	 * 
+	 * @param index The index of the piece
+	 */
+	void recordUpload(int index)
+	{
+		synchronized (this.recentUploads)
+		{
+			if (this.recentUploads.size() == RECENT_UPLOADS)
+			{
+				this.recentUploads.pollFirst();
+			}
+			this.recentUploads.addLast(index);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes sent for the piece message of the provided index
+	 * 
+	 * The size includes the length, type and piece index fields.
+	 * 
+	 * @param index The index of the piece
+	 * @return The size of the piece message or 0 if the parent process does not
+	 * have the piece
+	 */
+	public int getPieceMessageSize(int index)
+	{
+		byte[] content = this.parent.getPieces().get(index);
+		return content == null ? 0 : content.length + 9;
+	}
+
+	/**
+	 * Sends a keep-alive message to the connected peer
+	 * 
+	 * A keep-alive message is a length of zero without a type or payload.
+	 */
+	public void sendKeepAlive()
+	{
+		this.sendMessage(ByteBuffer.allocate(4));
+	}
+
 	/**
 	 * Sends a message string to the connected peer
 	 * 
@@ -339,20 +699,10 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	 * 
 	 * @param message The message to send to the connected peer
 	 */
-	public synchronized void sendMessage(ByteBuffer message)
+	public void sendMessage(ByteBuffer message)
 	{
-		Future<Integer> writeResult = this.peerChannel.write(message);
-		if (this.peerChannel.isOpen())
-		{
-			try
-			{
-				writeResult.get();
-			}
-			catch (InterruptedException | ExecutionException e)
-			{
-				
-			}
-		}
+		this.lastSent = System.nanoTime();
+		this.outbound.add(message);
 	}
 
 	/**
@@ -362,8 +712,27 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	 */
 	public void sendMessage(ActualMessage message)
 	{
-		byte[] byteMessage = message.serialize();
-		this.sendMessage(ByteBuffer.wrap(byteMessage));
+		this.lastSent = System.nanoTime();
+		this.outbound.add(message);
+	}
+
+	/**
+	 * Starts sending keep-alive messages and watching for an idle connection
+	 * 
+	 * @param scheduler The scheduler that runs the periodic check
+	 */
+	public void startIdleMonitor(ScheduledExecutorService scheduler)
+	{
+		long periodMs = BitTorrent.KEEP_ALIVE_INTERVAL * 1000 / 2;
+		try
+		{
+			this.idleMonitor = scheduler.scheduleAtFixedRate(this::checkIdle, periodMs, periodMs,
+					TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// The parent process is shutting down
+		}
 	}
 
 	/**
@@ -373,14 +742,32 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	{
 		try
 		{
-			if (this.peerChannel.isOpen())
+			if (this.idleMonitor != null)
 			{
-				this.peerChannel.close();
+				this.idleMonitor.cancel(false);
+			}
+			synchronized (this.pendingHaves)
+			{
+				if (this.haveFlush != null)
+				{
+					this.haveFlush.cancel(false);
+				}
+				this.pendingHaves.clear();
+			}
+			this.outbound.clear();
+			synchronized (this.partialPieces)
+			{
+				this.partialPieces.clear();
+			}
+			if (this.transport.isOpen())
+			{
+				this.transport.close();
 			}
 			this.setConnected(false);
-			if (this.requestor != null)
+			RequestPieceProcess requestor = this.requestor;
+			if (requestor != null)
 			{
-				this.requestor.cancel();
+				requestor.stopProcess();
 			}
 		}
 		catch (IOException e)
@@ -390,75 +777,218 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	}
 
 	/**
-	 * Handler for when a message is received.
+	 * Closes the connection and removes every trace of it from the parent process
+	 * 
+	 * The piece requested from the other peer is released so that it can be
+	 * requested from another peer. Calling this function more than once has no
+	 * effect.
+	 */
+	public void teardown()
+	{
+		if (!this.isTornDown.compareAndSet(false, true))
+		{
+			return;
+		}
+		this.closeConnection();
+		this.parent.getRequestLedger().removePeer(this);
+		this.parent.removePeerConnection(this);
+		this.parent.getPieceScheduler().rebalance(this);
+		SuperSeeder superSeeder = this.parent.getSuperSeeder();
+		if (superSeeder != null)
+		{
+			superSeeder.removePeer(this);
+		}
+	}
+
+	/**
+	 * Tears down the connection once the transport finds that the other peer has
+	 * closed it
+	 * 
+	 * The transport calls this as soon as the other end is closed, so that a peer
+	 * that leaves is removed straight away. The idle timeout only applies to peers
+	 * that stop answering without closing the connection.
+	 */
+	public void peerClosed()
+	{
+		if (this.isConnected && !this.isTornDown.get())
+		{
+			this.getLogger().connectionClosed(this.peerID);
+		}
+		this.teardown();
+	}
+
+	private void checkIdle()
+	{
+		long now = System.nanoTime();
+		if (now - this.lastReceived >= TimeUnit.SECONDS.toNanos(BitTorrent.IDLE_TIMEOUT))
+		{
+			this.getLogger().connectionTimedOut(this.peerID);
+			this.teardown();
+		}
+		else if (this.isConnected && now - this.lastSent >= TimeUnit.SECONDS.toNanos(BitTorrent.KEEP_ALIVE_INTERVAL))
+		{
+			this.sendKeepAlive();
+		}
+	}
+
+	/**
+	 * Handles the bytes received by the transport.
+	 * 
+	 * Every complete message in the buffer is handled. An incomplete message at the
+	 * end of the buffer is left in the buffer, so that the transport can receive
+	 * the rest of the message.
+	 * 
+	 * The payload of each message is passed to its handler as a read-only slice
+	 * of the buffer, without copying it. The transport reuses the buffer once this
+	 * function returns, so a handler copies the bytes it keeps, like a piece that
+	 * is copied once into its storage.
+	 * 
+	 * @param buffer The received bytes, ready to be read
 	 */
-	@Override
-	public void completed(Integer result, ByteBuffer buffer)
+	public void receive(ByteBuffer buffer)
 	{
-		buffer.flip();
+		if (buffer.hasRemaining())
+		{
+			this.lastReceived = System.nanoTime();
+		}
 		try
 		{
 			while (buffer.hasRemaining())
 			{
 				if (!this.isConnected)
 				{
+					if (buffer.remaining() < HandshakeMessage.LENGTH)
+					{
+						break;
+					}
 					this.receivedHandshake(buffer);
 				}
 				else
 				{
-					int length = buffer.getInt();
+					if (buffer.remaining() < 4)
+					{
+						break;
+					}
+					int length = buffer.getInt(buffer.position());
 					if (length == 0)
 					{
-						buffer.clear();
+						// A keep-alive message, which only resets the idle timeout
+						buffer.getInt();
+					}
+					else if (length < 0 || length + 4 > buffer.capacity())
+					{
+						throw new IOException("Error: Message length incorrect.");
+					}
+					else if (buffer.remaining() < length + 4)
+					{
+						break;
 					}
 					else
 					{
+						buffer.getInt();
 						MessageType type = MessageType.parse(buffer.get());
-						byte[] payload = new byte[length - 1];
-						buffer.get(payload, 0, payload.length);
-						ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
-						switch (type)
-						{
-						case BITFIELD:
-							this.receivedBitfield(payloadBuffer);
-							break;
-						case CHOKE:
-							this.receivedChoke(payloadBuffer);
-							break;
-						case HAVE:
-							this.receivedHave(payloadBuffer);
-							break;
-						case INTERESTED:
-							this.receivedInterested(payloadBuffer);
-							break;
-						case NOT_INTERESTED:
-							this.receivedNotInterested(payloadBuffer);
-							break;
-						case PIECE:
-							this.receivedPiece(payloadBuffer);
-							break;
-						case REQUEST:
-							this.recievedRequest(payloadBuffer);
-							break;
-						case UNCHOKE:
-							this.receivedUnchoke(payloadBuffer);
-							break;
-						default:
-							this.receiveUnknown(payloadBuffer);
-							break;
-						}
+						ByteBuffer payload = buffer.slice(buffer.position(), length - 1).asReadOnlyBuffer();
+						buffer.position(buffer.position() + length - 1);
+						this.dispatch(type, payload);
 					}
 				}
 			}
 		}
 		catch (IOException | BufferUnderflowException e)
 		{
-			
+			buffer.position(buffer.limit());
 		}
-		finally
+	}
+
+	/**
+	 * Handles a message received by a transport that carries message objects.
+	 * 
+	 * The payload of the message is read through a read-only duplicate, so the
+	 * message itself is not modified. The content of a piece message is stored
+	 * as is, without copying it, and the content of a piece chunk message is
+	 * copied once into the piece being reassembled.
+	 * 
+	 * @param message The received message
+	 */
+	public void receive(ActualMessage message)
+	{
+		this.lastReceived = System.nanoTime();
+		try
+		{
+			ByteBuffer payload = message.getPayload().asReadOnlyBuffer();
+			if (!message.hasContent())
+			{
+				this.dispatch(message.getType(), payload);
+				return;
+			}
+			byte[] content = message.getContent();
+			int offset = message.getContentOffset();
+			int length = message.getContentLength();
+			if (message.getType() == MessageType.PIECE)
+			{
+				byte[] piece = offset == 0 && length == content.length ? content
+						: Arrays.copyOfRange(content, offset, offset + length);
+				this.receivedPiece(payload.getInt(), piece);
+			}
+			else if (message.getType() == MessageType.PIECE_CHUNK)
+			{
+				int index = payload.getInt();
+				int chunkOffset = payload.getInt();
+				this.receivedPieceChunk(index, chunkOffset, ByteBuffer.wrap(content, offset, length).asReadOnlyBuffer());
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+
+		}
+	}
+
+	private void dispatch(MessageType type, ByteBuffer payloadBuffer)
+	{
+		switch (type)
 		{
-			buffer.clear();
-			this.peerChannel.read(buffer, buffer, this);
+		case BITFIELD:
+			this.receivedBitfield(payloadBuffer);
+			break;
+		case CANCEL:
+			this.receivedCancel(payloadBuffer);
+			break;
+		case CHOKE:
+			this.receivedChoke(payloadBuffer);
+			break;
+		case HAVE:
+			this.receivedHave(payloadBuffer);
+			break;
+		case HAVE_BATCH:
+			this.receivedHaveBatch(payloadBuffer);
+			break;
+		case HAVE_ALL:
+			this.receivedHaveAll(payloadBuffer);
+			break;
+		case HAVE_NONE:
+			this.receivedHaveNone(payloadBuffer);
+			break;
+		case INTERESTED:
+			this.receivedInterested(payloadBuffer);
+			break;
+		case NOT_INTERESTED:
+			this.receivedNotInterested(payloadBuffer);
+			break;
+		case PIECE:
+			this.receivedPiece(payloadBuffer);
+			break;
+		case PIECE_CHUNK:
+			this.receivedPieceChunk(payloadBuffer);
+			break;
+		case REQUEST:
+			this.recievedRequest(payloadBuffer);
+			break;
+		case UNCHOKE:
+			this.receivedUnchoke(payloadBuffer);
+			break;
+		default:
+			this.receiveUnknown(type, payloadBuffer);
+			break;
 		}
 	}
 
@@ -472,17 +1002,14 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 			throw new IOException("Error: Handshake header incorrect.");
 		}
 
-		// Verify that zerobits is correct
-		for (int index = 0; index < 10; ++index)
-		{
-			byte zero = payload.get();
-			if (zero != 0)
-			{
-				throw new IOException("Error: Handshake zerobits incorrect.");
-			}
-		}
+		// Enable the extensions that both peers support
+		byte[] capabilities = new byte[HandshakeMessage.ZEROBITS.length];
+		payload.get(capabilities);
+		this.extensions = this.parent.getExtensionRegistry().negotiate(capabilities);
+
 		// TODO verify that the peer ID is the expected one
 		this.peerID = payload.getInt();
+		this.parent.getConnectionRegistry().register(this);
 
 		this.setConnected(true);
 		if (!this.initiatedConnection)
@@ -502,7 +1029,51 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	private void receivedChoke(ByteBuffer payload)
 	{
 		this.getLogger().receiveChoke(this.peerID);
-		this.requestor.stopProcess();
+		if (this.requestor != null)
+		{
+			this.requestor.stopProcess();
+			// Withdraw the outstanding request
+			int index = this.requestor.getPieceIndex();
+			if (index != -1 && this.requestor.hasRequested() && this.sendCancel(index))
+			{
+				this.discardPartialPiece(index);
+			}
+			this.requestor = null;
+		}
+		// A peer that chokes this peer discards its requests, so another peer may
+		// provide the pieces
+		this.parent.getRequestLedger().removePeer(this);
+		this.parent.getPieceScheduler().rebalance(this);
+	}
+
+	private void discardPartialPiece(int index)
+	{
+		synchronized (this.partialPieces)
+		{
+			this.partialPieces.remove(index);
+		}
+	}
+
+	private void receivedCancel(ByteBuffer payload)
+	{
+		int index = payload.getInt();
+		this.getLogger().receiveCancel(this.peerID, index);
+
+		UploadLimiter limiter = this.parent.getUploadLimiter();
+		if ((limiter != null && limiter.cancel(this, index)) || this.outbound.cancel(index))
+		{
+			this.parent.recordDroppedUpload(this.getPieceMessageSize(index));
+			return;
+		}
+		boolean wasSent = this.outbound.isWriting(index);
+		synchronized (this.recentUploads)
+		{
+			wasSent |= this.recentUploads.remove(index);
+		}
+		if (wasSent)
+		{
+			this.parent.recordWastedUpload(this.getPieceMessageSize(index));
+		}
 	}
 
 	private void receivedUnchoke(ByteBuffer payload)
@@ -511,8 +1082,9 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 
 		if (this.requestor == null)
 		{
+			this.unchokedAt = System.nanoTime();
 			int pieceToRequest = this.parent.determinePieceRequest(this);
-			this.requestor = new RequestPieceProcess(this, pieceToRequest, BitTorrent.REQUEST_TIMEOUT * 1000);
+			this.requestor = new RequestPieceProcess(this, pieceToRequest);
 			this.requestor.startProcess();
 		}
 	}
@@ -532,15 +1104,85 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 	private void receivedHave(ByteBuffer payload)
 	{
 		int index = payload.getInt();
+		if (index < 0 || index >= this.parent.getCommonConfig().getNumberOfPieces())
+		{
+			// A piece outside of the file is ignored, since no bitfield has a bit for it
+			return;
+		}
 		this.getLogger().receiveHave(this.peerID, index);
 
 		// Update the peers list of pieces it has
 		this.parent.getAllbitfields().updateBitfield(this, index);
+		SuperSeeder superSeeder = this.parent.getSuperSeeder();
+		if (superSeeder != null)
+		{
+			superSeeder.receivedHave(this, index);
+		}
 
 		// Check if you have the piece and send interested accordingly.
 		if (!(this.parent.getPieces().containsKey(index)))
 		{
 			this.sendInterested();
+			this.requestIfIdle();
+		}
+	}
+
+	/**
+	 * Looks for a piece to request straight away if the other peer has unchoked
+	 * this peer but no piece is being requested from it
+	 * 
+	 * This is called when the other peer announces a new piece, or when pieces
+	 * requested from another peer have been released, instead of waiting for the
+	 * next period of the requestor.
+	 */
+	public void requestIfIdle()
+	{
+		RequestPieceProcess requestor = this.requestor;
+		if (requestor != null && requestor.getPieceIndex() == -1)
+		{
+			requestor.requestNow();
+		}
+	}
+
+	/**
+	 * Indicates if the other peer has unchoked this peer
+	 * 
+	 * @return True if pieces are being requested from the other peer
+	 */
+	public boolean isUnchokedByPeer()
+	{
+		return this.requestor != null;
+	}
+
+	private void receivedHaveBatch(ByteBuffer payload)
+	{
+		if (!this.isExtensionEnabled(Extension.HAVE_BATCH))
+		{
+			this.receiveUnknown(MessageType.HAVE_BATCH, payload);
+			return;
+		}
+		// The indices outside of the file are dropped, since no bitfield has a bit
+		// for them
+		int pieceCount = this.parent.getCommonConfig().getNumberOfPieces();
+		List<Integer> indices = ActualMessage.readHaveBatch(payload, pieceCount);
+		this.getLogger().receiveHaveBatch(this.peerID, indices);
+
+		// Update the peers list of pieces it has and send interested once
+		boolean isInterested = false;
+		SuperSeeder superSeeder = this.parent.getSuperSeeder();
+		for (int index : indices)
+		{
+			this.parent.getAllbitfields().updateBitfield(this, index);
+			isInterested |= !this.parent.getPieces().containsKey(index);
+			if (superSeeder != null)
+			{
+				superSeeder.receivedHave(this, index);
+			}
+		}
+		if (isInterested)
+		{
+			this.sendInterested();
+			this.requestIfIdle();
 		}
 	}
 
@@ -552,11 +1194,35 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 //		builder.append(this.peerID);
 //		this.getLogger().writeLog(builder.toString());
 
-		int numBytes = this.parent.getCommonConfig().getBitfieldPieceCount();
-		byte[] bits = new byte[numBytes];
-		payload.get(bits);
-		Bitfield bitfield = new Bitfield(this.parent, bits);
+		Bitfield bitfield = Bitfield.readBitfield(this.parent, payload);
 		this.parent.addBitfield(this, bitfield);
+		this.sendInterestAfterBitfield();
+	}
+
+	private void receivedHaveAll(ByteBuffer payload)
+	{
+		if (!this.isExtensionEnabled(Extension.HAVE_ALL_NONE))
+		{
+			this.receiveUnknown(MessageType.HAVE_ALL, payload);
+			return;
+		}
+		this.parent.getAllbitfields().addFullBitfield(this);
+		this.sendInterestAfterBitfield();
+	}
+
+	private void receivedHaveNone(ByteBuffer payload)
+	{
+		if (!this.isExtensionEnabled(Extension.HAVE_ALL_NONE))
+		{
+			this.receiveUnknown(MessageType.HAVE_NONE, payload);
+			return;
+		}
+		this.parent.getAllbitfields().addEmptyBitfield(this);
+		this.sendInterestAfterBitfield();
+	}
+
+	private void sendInterestAfterBitfield()
+	{
 		if (this.parent.isInterested(this))
 		{
 			this.sendInterested();
@@ -566,66 +1232,161 @@ public class PeerConnection implements CompletionHandler<Integer, ByteBuffer>
 			this.sendNotInterested();
 		}
 		this.receivedBitfield = true;
+
+		SuperSeeder superSeeder = this.parent.getSuperSeeder();
+		if (superSeeder != null)
+		{
+			superSeeder.addPeer(this);
+		}
 	}
 
 	private void recievedRequest(ByteBuffer payload)
 	{
 		int index = payload.getInt();
+		if (this.outbound.contains(index))
+		{
+			// A request sent again while its piece is still being sent is answered once
+			return;
+		}
 		if (this.parent.getPieces().containsKey(index))
 		{
-			// If the parent has the key, create the piece message and send it
-			byte[] content = this.parent.getPieces().get(index);
-			ActualMessage message = ActualMessage.CreatePieceMessage(index, content);
-			this.sendMessage(message);
+			// If the parent has the key, send the piece or queue it when the upload rate
+			// is limited
+			UploadLimiter limiter = this.parent.getUploadLimiter();
+			if (limiter != null)
+			{
+				limiter.enqueue(this, index);
+			}
+			else
+			{
+				this.sendPiece(index);
+			}
 		}
 	}
 
 	private void receivedPiece(ByteBuffer payload)
 	{
-		// Adds the piece to the map of keys
+		// Adds the piece to the map of keys, which is the only copy of the received
+		// bytes
 		int index = payload.getInt();
 		byte[] piece = new byte[payload.remaining()];
 		payload.get(piece);
-		this.parent.addPiece(piece, index);
-		this.parent.removePendingRequest(index);
-		int pieceCount = this.parent.getPieceCount();
-		this.getLogger().receivePiece(this.peerID, index, pieceCount);
-		this.downloadRate = this.downloadRate + piece.length;
+		this.receivedPiece(index, piece);
+	}
+
+	private void receivedPiece(int index, byte[] piece)
+	{
+		this.downloadMeter.record(piece.length);
+		this.lastPieceData = System.nanoTime();
+		this.completePiece(index, piece);
+	}
 
-		// Trigger the have message and Check Not Interested status
-		this.parent.broadcastHave(index);
-		this.parent.checkNotInterested();
+	private void receivedPieceChunk(ByteBuffer payload)
+	{
+		int index = payload.getInt();
+		int offset = payload.getInt();
+		this.receivedPieceChunk(index, offset, payload);
+	}
 
-		// Check if this is the last piece this peer needed
-		this.requestor.stopProcess();
-		if (this.parent.hasAllPieces())
+	private void receivedPieceChunk(int index, int offset, ByteBuffer payload)
+	{
+		if (!this.isExtensionEnabled(Extension.CHUNKED_PIECES))
+		{
+			this.receiveUnknown(MessageType.PIECE_CHUNK, payload);
+			return;
+		}
+		int length = payload.remaining();
+		this.downloadMeter.record(length);
+		this.lastPieceData = System.nanoTime();
+
+		// The chunks are copied straight into the storage of the piece
+		byte[] piece = null;
+		synchronized (this.partialPieces)
 		{
-			this.parent.completeDownload();
+			PartialPiece partial = this.partialPieces.get(index);
+			if (partial == null)
+			{
+				// The rest of a piece whose request was withdrawn is ignored
+				if (offset != 0 || index < 0 || index >= this.parent.getCommonConfig().getNumberOfPieces())
+				{
+					return;
+				}
+				partial = new PartialPiece();
+				partial.content = new byte[this.parent.getCommonConfig().getPieceSize(index)];
+				this.partialPieces.put(index, partial);
+			}
+			if (offset < 0 || offset + length > partial.content.length)
+			{
+				return;
+			}
+			payload.get(partial.content, offset, length);
+			partial.receivedBytes += length;
+			if (partial.receivedBytes >= partial.content.length)
+			{
+				this.partialPieces.remove(index);
+				piece = partial.content;
+			}
+		}
+		if (piece != null)
+		{
+			this.completePiece(index, piece);
 		}
 		else
 		{
-			int pieceToRequest = this.parent.determinePieceRequest(this);
-			this.requestor = new RequestPieceProcess(this, pieceToRequest, BitTorrent.REQUEST_TIMEOUT * 1000);
-			this.requestor.startProcess();
+			// The piece is still arriving, so its request is kept from timing out
+			RequestPieceProcess requestor = this.requestor;
+			long timeoutMs = requestor != null ? requestor.getTimeoutMs() : this.requestTimer.getTimeoutMs(0);
+			this.parent.getRequestLedger().extend(this, index, timeoutMs);
 		}
 	}
 
-	private void receiveUnknown(ByteBuffer message)
+	private void completePiece(int index, byte[] piece)
 	{
-		String receivedMessage = new String(message.array());
-		StringBuilder fullMessage = new StringBuilder("Peer ");
-		fullMessage.append(this.parent.getPeerID());
-		fullMessage.append(" received the message: ");
-		fullMessage.append(receivedMessage);
-		System.out.println(fullMessage);
+		this.requestTimer.pieceReceived(index);
+		this.parent.getRequestLedger().removePiece(index);
+		boolean isNew = this.parent.addPiece(piece, index);
+		if (isNew)
+		{
+			int pieceCount = this.parent.getPieceCount();
+			this.getLogger().receivePiece(this.peerID, index, pieceCount);
+
+			// Trigger the have message, withdraw the requests of the piece from other
+			// peers and Check Not Interested status
+			this.parent.broadcastHave(index);
+			this.parent.cancelRequests(this, index);
+			this.parent.checkNotInterested();
+		}
+
+		// Check if this is the last piece this peer needed
+		boolean isRequesting = this.requestor != null;
+		if (isRequesting)
+		{
+			this.requestor.stopProcess();
+			this.requestor = null;
+		}
+		if (this.parent.hasAllPieces())
+		{
+			// A duplicate of a piece received after the download has completed is
+			// dropped
+			if (isNew)
+			{
+				this.parent.completeDownload();
+			}
+		}
+		else if (isRequesting)
+		{
+			// Only continue requesting if the other peer has not choked this peer
+			int pieceToRequest = this.parent.determinePieceRequest(this);
+			this.requestor = new RequestPieceProcess(this, pieceToRequest);
+			this.requestor.startProcess();
+		}
 	}
 
-	/**
-	 * Handler for when a message is received incorrectly.
-	 */
-	@Override
-	public void failed(Throwable exc, ByteBuffer message)
+	private void receiveUnknown(MessageType type, ByteBuffer message)
 	{
-
+		// The message is skipped, since this peer does not know how to handle it
+		int length = message.remaining();
+		message.position(message.limit());
+		this.getLogger().receiveUnknown(this.peerID, type.toString(), length);
 	}
 }
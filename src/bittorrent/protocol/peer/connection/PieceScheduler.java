@@ -0,0 +1,278 @@
+package bittorrent.protocol.peer.connection;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+import bittorrent.protocol.peer.PeerProcess;
+
+/**
+ * Assigns the next piece to request on each connection from a view of every
+ * connection of the parent process.
+ * 
+ * The pieces a connection can provide, that this peer lacks and that are not
+ * requested elsewhere are ranked from the rarest to the most common among the
+ * neighbors. The connection is ranked among the connections that have unchoked
+ * this peer by its download rate, divided by one more than the number of its
+ * requests in flight. The fastest connection is given the rarest piece, the
+ * slowest connection the most common piece, and the others a piece in between
+ * in proportion to their rank. Rare pieces are therefore fetched quickly and
+ * spread to the neighbors early, while a slow connection works on pieces that
+ * can still be found elsewhere if it stalls. Without any rate measurements,
+ * every connection is given the rarest piece. The availability of each piece is
+ * kept up to date by AllBitfields and the requests of each connection are
+ * counted by the RequestLedger, so an assignment takes a single pass over the
+ * pieces.
+ * 
+ * When the StreamingWindow option is set, the pieces in the window that starts
+ * at the piece of the read position of the application take priority over any
+ * other piece, and the earliest of them is assigned first. The read position is
+ * moved by the reads of the parent process. Outside of the window, the pieces
+ * are assigned as described above.
+ * 
+ * The pieces that a pending read of the parent process waits for are urgent.
+ * They take priority over the streaming window, and the earliest of them is
+ * assigned first, so that a read of an arbitrary range of the file is answered
+ * within a few round trips. A piece stops being urgent once it is received.
+ * 
+ * When a peer chokes this peer, its requests are released and the idle
+ * connections are given work straight away, so that the released pieces are
+ * picked up by the other connections.
+ */
+public class PieceScheduler
+{
+	private PeerProcess parent;
+	private Random random;
+	private volatile int readPiece;
+	private Set<Integer> urgentPieces;
+
+	/**
+	 * Creates the scheduler of a peer process
+	 * 
+	 * @param parent The parent process
+	 */
+	public PieceScheduler(PeerProcess parent)
+	{
+		this.parent = parent;
+		this.random = new Random();
+		this.readPiece = 0;
+		this.urgentPieces = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Marks pieces as urgent until they are received
+	 * 
+	 * @param indices The indices of the pieces a read waits for
+	 */
+	public void addUrgent(Collection<Integer> indices)
+	{
+		this.urgentPieces.addAll(indices);
+	}
+
+	/**
+	 * Clears the urgency of a piece that has been received
+	 * 
+	 * @param index The index of the piece
+	 */
+	public void removeUrgent(int index)
+	{
+		this.urgentPieces.remove(index);
+	}
+
+	/**
+	 * Moves the streaming window to the piece that the application reads from
+	 * 
+	 * @param index The index of the piece at the read position
+	 */
+	public void setReadPiece(int index)
+	{
+		this.readPiece = index;
+	}
+
+	/**
+	 * Determines the next piece to request on a connection
+	 * 
+	 * The piece is reserved for the connection in the request ledger until its
+	 * request is sent or the connection gives it up.
+	 * 
+	 * @param connection The connection to request a piece from
+	 * @return The index of the piece to request or -1 if there are no available
+	 * pieces
+	 */
+	public int assign(PeerConnection connection)
+	{
+		// The piece is reserved under the lock of the ledger, so that no other
+		// connection is given the same piece before its request is sent
+		RequestLedger ledger = this.parent.getRequestLedger();
+		synchronized (ledger)
+		{
+			int index = this.choose(connection, ledger);
+			if (index != -1)
+			{
+				ledger.reserve(connection, index);
+			}
+			return index;
+		}
+	}
+
+	private int choose(PeerConnection connection, RequestLedger ledger)
+	{
+		AllBitfields allBitfields = this.parent.getAllbitfields();
+		Bitfield peerBitfield = allBitfields.getBitfield(connection);
+		if (peerBitfield == null || peerBitfield.isEmpty())
+		{
+			return -1;
+		}
+		HashMap<Integer, byte[]> pieces = this.parent.getPieces();
+		IntPredicate isRequired = (index) -> peerBitfield.hasPiece(index) && !pieces.containsKey(index)
+				&& !ledger.isRequested(index);
+		return this.select(this.parent.getCommonConfig().getNumberOfPieces(), isRequired, allBitfields::getAvailability,
+				this.parent.getCommonConfig().getStreamingWindow(), () -> this.rankConnection(connection, ledger));
+	}
+
+	/**
+	 * Selects the piece to request among the pieces that a connection may request
+	 * 
+	 * The urgent pieces come first, then the pieces of the streaming window, and
+	 * then the piece at the position given by the rank of the connection among
+	 * the pieces ordered from the rarest to the most common. The pieces are
+	 * grouped by their availability instead of being sorted, and a piece is
+	 * chosen at random among the pieces of the group at that position.
+	 * 
+	 * @param pieceCount The number of pieces of the file
+	 * @param isRequired Tests if a piece may be requested on the connection
+	 * @param availability The number of neighbors that have a piece
+	 * @param window The number of pieces of the streaming window or 0
+	 * @param rank The rank of the connection from 0, the slowest, to 1, the
+	 * fastest
+	 * @return The index of the piece to request or -1 if no piece may be requested
+	 */
+	int select(int pieceCount, IntPredicate isRequired, IntUnaryOperator availability, int window, DoubleSupplier rank)
+	{
+		// The earliest urgent piece comes first
+		int urgentPiece = -1;
+		for (int index : this.urgentPieces)
+		{
+			if (index >= 0 && index < pieceCount && (urgentPiece == -1 || index < urgentPiece) && isRequired.test(index))
+			{
+				urgentPiece = index;
+			}
+		}
+		if (urgentPiece != -1)
+		{
+			return urgentPiece;
+		}
+
+		// Then the earliest piece in the streaming window
+		if (window > 0)
+		{
+			int windowStart = Math.max(this.readPiece, 0);
+			int windowEnd = (int) Math.min(pieceCount, (long) windowStart + window);
+			for (int index = windowStart; index < windowEnd; ++index)
+			{
+				if (isRequired.test(index))
+				{
+					return index;
+				}
+			}
+		}
+
+		// Group the pieces by the number of neighbors that have them
+		int[] candidates = new int[pieceCount];
+		int[] candidateAvailability = new int[pieceCount];
+		int candidateCount = 0;
+		int maxAvailability = 0;
+		for (int index = 0; index < pieceCount; ++index)
+		{
+			if (isRequired.test(index))
+			{
+				int count = Math.max(availability.applyAsInt(index), 0);
+				candidates[candidateCount] = index;
+				candidateAvailability[candidateCount] = count;
+				maxAvailability = Math.max(maxAvailability, count);
+				++candidateCount;
+			}
+		}
+		if (candidateCount == 0)
+		{
+			return -1;
+		}
+		int[] groupSizes = new int[maxAvailability + 1];
+		for (int candidate = 0; candidate < candidateCount; ++candidate)
+		{
+			++groupSizes[candidateAvailability[candidate]];
+		}
+
+		// Find the group at the position of the connection, from the rarest to the
+		// most common, and pick one of its pieces at random
+		int position = (int) Math.round((1.0 - rank.getAsDouble()) * (candidateCount - 1));
+		int group = 0;
+		while (position >= groupSizes[group])
+		{
+			position -= groupSizes[group];
+			++group;
+		}
+		int choice = this.random.nextInt(groupSizes[group]);
+		for (int candidate = 0; candidate < candidateCount; ++candidate)
+		{
+			if (candidateAvailability[candidate] == group && choice-- == 0)
+			{
+				return candidates[candidate];
+			}
+		}
+		return -1;
+	}
+
+	private double rankConnection(PeerConnection connection, RequestLedger ledger)
+	{
+		// Rank the connection by its rate among the connections that have unchoked
+		// this peer
+		double rate = this.getEffectiveRate(connection, ledger);
+		int slowerCount = 0;
+		int fasterCount = 0;
+		for (PeerConnection other : this.parent.getConnectionRegistry())
+		{
+			if (other == connection || !other.isUnchokedByPeer())
+			{
+				continue;
+			}
+			double otherRate = this.getEffectiveRate(other, ledger);
+			if (otherRate < rate)
+			{
+				++slowerCount;
+			}
+			else if (otherRate > rate)
+			{
+				++fasterCount;
+			}
+		}
+		return slowerCount + fasterCount == 0 ? 1.0 : (double) slowerCount / (slowerCount + fasterCount);
+	}
+
+	/**
+	 * Gives work to the idle connections after the requests of a connection have
+	 * been released, or after the priorities of the pieces have changed
+	 * 
+	 * @param source The connection whose requests were released, or null
+	 */
+	public void rebalance(PeerConnection source)
+	{
+		for (PeerConnection connection : this.parent.getConnectionRegistry())
+		{
+			if (connection != source)
+			{
+				connection.requestIfIdle();
+			}
+		}
+	}
+
+	private double getEffectiveRate(PeerConnection connection, RequestLedger ledger)
+	{
+		return connection.getDownloadMeter().getRate() / (1 + ledger.getRequestCount(connection));
+	}
+}
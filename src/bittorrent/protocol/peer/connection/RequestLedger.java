@@ -0,0 +1,267 @@
+package bittorrent.protocol.peer.connection;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps record of the piece requests in flight, keyed by the connection that a
+ * request was sent on and the index of the requested piece.
+ * 
+ * A piece is reserved for a connection as soon as it is assigned to it, before
+ * the request is sent, so that it is not assigned to another connection while
+ * the request waits for download credit. A reservation has no deadline. It is
+ * kept until the request is sent or until the connection gives up the piece.
+ * 
+ * Each request that has been sent has its own deadline. A piece with a request
+ * in flight is not requested on another connection until the request is
+ * answered, or until it is released because it timed out, because the other
+ * peer choked this peer or because the other peer disconnected. Sending the
+ * same request again does not extend its deadline, so a peer that never answers
+ * cannot hold on to a piece. Receiving part of the piece does extend it, in the
+ * same way that it restarts the wait of the request piece process, so a piece
+ * that is still arriving on a slow link is not assigned to another connection.
+ * 
+ * The number of entries of each piece is kept alongside the entries, and the
+ * deadlines are kept in the order they expire, so checking a piece or counting
+ * the requests of a connection does not scan the ledger.
+ */
+public class RequestLedger
+{
+	private HashMap<PeerConnection, HashMap<Integer, Request>> requests;
+	private HashMap<Integer, Integer> pieceCounts;
+	private PriorityQueue<Request> deadlines;
+
+	/**
+	 * A reserved piece and the deadline of its request once it is sent
+	 */
+	private static class Request
+	{
+		private PeerConnection connection;
+		private int index;
+		private boolean isSent;
+		private long deadline;
+
+		private Request(PeerConnection connection, int index)
+		{
+			this.connection = connection;
+			this.index = index;
+		}
+	}
+
+	public RequestLedger()
+	{
+		this.requests = new HashMap<PeerConnection, HashMap<Integer, Request>>();
+		this.pieceCounts = new HashMap<Integer, Integer>();
+		this.deadlines = new PriorityQueue<Request>((first, second) -> Long.signum(first.deadline - second.deadline));
+	}
+
+	/**
+	 * Reserves a piece for a connection before its request is sent
+	 * 
+	 * A piece that already has an entry on the connection keeps it.
+	 * 
+	 * @param connection The connection the request will be sent on
+	 * @param index The index of the piece
+	 */
+	public synchronized void reserve(PeerConnection connection, int index)
+	{
+		HashMap<Integer, Request> pending = this.requests.computeIfAbsent(connection,
+				(key) -> new HashMap<Integer, Request>());
+		if (!pending.containsKey(index))
+		{
+			this.put(pending, new Request(connection, index));
+		}
+	}
+
+	/**
+	 * Records a request that has been sent
+	 * 
+	 * @param connection The connection the request was sent on
+	 * @param index The index of the requested piece
+	 * @param timeoutMs The time in milliseconds before the request times out
+	 */
+	public synchronized void add(PeerConnection connection, int index, long timeoutMs)
+	{
+		this.releaseExpired();
+		HashMap<Integer, Request> pending = this.requests.computeIfAbsent(connection,
+				(key) -> new HashMap<Integer, Request>());
+		Request request = pending.get(index);
+		if (request == null)
+		{
+			request = new Request(connection, index);
+			this.put(pending, request);
+		}
+		if (!request.isSent)
+		{
+			request.isSent = true;
+			request.deadline = System.nanoTime() + timeoutMs * 1000000;
+			this.deadlines.add(request);
+		}
+	}
+
+	/**
+	 * Extends the deadline of a request whose piece is still arriving
+	 * 
+	 * Only a request that has been sent and has not timed out is extended.
+	 * 
+	 * @param connection The connection the request was sent on
+	 * @param index The index of the requested piece
+	 * @param timeoutMs The time in milliseconds from now before the request times
+	 * out
+	 */
+	public synchronized void extend(PeerConnection connection, int index, long timeoutMs)
+	{
+		this.releaseExpired();
+		HashMap<Integer, Request> pending = this.requests.get(connection);
+		if (pending == null)
+		{
+			return;
+		}
+		Request request = pending.get(index);
+		if (request == null || !request.isSent)
+		{
+			return;
+		}
+
+		// The entry is replaced, since the deadline of a queued entry cannot change
+		Request extended = new Request(connection, index);
+		extended.isSent = true;
+		extended.deadline = System.nanoTime() + timeoutMs * 1000000;
+		pending.put(index, extended);
+		this.deadlines.add(extended);
+	}
+
+	/**
+	 * Releases a request that was withdrawn
+	 * 
+	 * @param connection The connection the request was sent on
+	 * @param index The index of the requested piece
+	 */
+	public synchronized void remove(PeerConnection connection, int index)
+	{
+		HashMap<Integer, Request> pending = this.requests.get(connection);
+		if (pending != null)
+		{
+			this.remove(pending, index);
+		}
+	}
+
+	/**
+	 * Releases the reservation of a piece whose request was never sent
+	 * 
+	 * A request that has been sent keeps its deadline, since the other peer may
+	 * still answer it.
+	 * 
+	 * @param connection The connection the piece was reserved for
+	 * @param index The index of the piece
+	 */
+	public synchronized void release(PeerConnection connection, int index)
+	{
+		HashMap<Integer, Request> pending = this.requests.get(connection);
+		if (pending != null)
+		{
+			Request request = pending.get(index);
+			if (request != null && !request.isSent)
+			{
+				this.remove(pending, index);
+			}
+		}
+	}
+
+	/**
+	 * Releases every request of a piece once the piece has been received
+	 * 
+	 * @param index The index of the piece
+	 */
+	public synchronized void removePiece(int index)
+	{
+		if (!this.pieceCounts.containsKey(index))
+		{
+			return;
+		}
+		for (HashMap<Integer, Request> pending : this.requests.values())
+		{
+			this.remove(pending, index);
+		}
+	}
+
+	/**
+	 * Releases every request sent to a peer that choked this peer or disconnected
+	 * 
+	 * @param connection The connection of the peer
+	 */
+	public synchronized void removePeer(PeerConnection connection)
+	{
+		HashMap<Integer, Request> pending = this.requests.remove(connection);
+		if (pending != null)
+		{
+			for (int index : pending.keySet())
+			{
+				this.decrementPiece(index);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of requests in flight on a connection
+	 * 
+	 * @param connection The connection the requests were sent on
+	 * @return The number of reservations and requests that have not timed out
+	 */
+	public synchronized int getRequestCount(PeerConnection connection)
+	{
+		this.releaseExpired();
+		HashMap<Integer, Request> pending = this.requests.get(connection);
+		return pending == null ? 0 : pending.size();
+	}
+
+	/**
+	 * Checks if a piece is reserved or has a request in flight
+	 * 
+	 * The requests that have timed out are released first.
+	 * 
+	 * @param index The index of the piece
+	 * @return True if the piece is reserved or requested on any connection
+	 */
+	public synchronized boolean isRequested(int index)
+	{
+		this.releaseExpired();
+		return this.pieceCounts.containsKey(index);
+	}
+
+	private void releaseExpired()
+	{
+		// A deadline whose entry was replaced or removed is discarded when it expires
+		long now = System.nanoTime();
+		Request request = this.deadlines.peek();
+		while (request != null && now - request.deadline >= 0)
+		{
+			this.deadlines.poll();
+			HashMap<Integer, Request> pending = this.requests.get(request.connection);
+			if (pending != null && pending.get(request.index) == request)
+			{
+				this.remove(pending, request.index);
+			}
+			request = this.deadlines.peek();
+		}
+	}
+
+	private void put(HashMap<Integer, Request> pending, Request request)
+	{
+		pending.put(request.index, request);
+		this.pieceCounts.merge(request.index, 1, Integer::sum);
+	}
+
+	private void remove(HashMap<Integer, Request> pending, int index)
+	{
+		if (pending.remove(index) != null)
+		{
+			this.decrementPiece(index);
+		}
+	}
+
+	private void decrementPiece(int index)
+	{
+		this.pieceCounts.computeIfPresent(index, (key, count) -> count == 1 ? null : count - 1);
+	}
+}
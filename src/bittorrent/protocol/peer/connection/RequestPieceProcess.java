@@ -8,27 +8,48 @@ import bittorrent.protocol.messages.ActualMessage;
 /**
  * A threaded process that continually requests pieces from the other
  * connection.
+ * 
+ * A request is sent again once it times out without an answer. The timeout is
+ * given by the request timer of the connection, which adapts it to the measured
+ * response times of the other peer and doubles it each time the same request is
+ * sent again. Piece data received from the other peer restarts the wait, so a
+ * piece that is still arriving on a slow link is not requested again.
+ * 
+ * When the download rate of the parent process is limited, a request is only
+ * sent once the download limiter grants the credit for it. The piece stays
+ * reserved for the connection in the request ledger while it waits, and the
+ * reservation is released if the process gives up the piece before the request
+ * is sent.
  */
 public class RequestPieceProcess extends TimerTask
 {
-	private long periodMs;
+	// The time in milliseconds between checks for a request to send
+	public static final long CHECK_PERIOD_MS = 50;
+
 	private Timer timerProcess;
-	private int pieceIndex;
+	private volatile int pieceIndex;
 	private PeerConnection connection;
+	private DownloadLimiter limiter;
+	private RequestTimer requestTimer;
+	private long lastRequest;
+	private volatile int retransmits;
+	private volatile boolean hasRequested;
 
 	/**
 	 * Initializes the request piece process
 	 * 
 	 * @param connection The connection to request pieces from
 	 * @param pieceIndex The index of the piece to request
-	 * @param periodMs The rate in milliseconds to request the piece
 	 */
-	public RequestPieceProcess(PeerConnection connection, int pieceIndex, long periodMs)
+	public RequestPieceProcess(PeerConnection connection, int pieceIndex)
 	{
 		this.pieceIndex = pieceIndex;
 		this.connection = connection;
-		this.periodMs = periodMs;
 		this.timerProcess = new Timer(true);
+		this.limiter = connection.getProcess().getDownloadLimiter();
+		this.requestTimer = connection.getRequestTimer();
+		this.lastRequest = 0;
+		this.retransmits = 0;
 	}
 
 	/**
@@ -36,7 +57,7 @@ public class RequestPieceProcess extends TimerTask
 	 */
 	public void startProcess()
 	{
-		this.timerProcess.scheduleAtFixedRate(this, 0, this.periodMs);
+		this.timerProcess.scheduleAtFixedRate(this, 0, CHECK_PERIOD_MS);
 	}
 
 	/**
@@ -46,6 +67,36 @@ public class RequestPieceProcess extends TimerTask
 	{
 		this.timerProcess.cancel();
 		this.timerProcess.purge();
+		this.releaseReservation(this.pieceIndex);
+	}
+
+	/**
+	 * Looks for a piece to request straight away, instead of at the next period,
+	 * if no piece is being requested
+	 * 
+	 * The search runs on the thread of the process, so it never overlaps with a
+	 * periodic run.
+	 */
+	public void requestNow()
+	{
+		try
+		{
+			this.timerProcess.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					if (RequestPieceProcess.this.pieceIndex == -1)
+					{
+						RequestPieceProcess.this.run();
+					}
+				}
+			}, 0);
+		}
+		catch (IllegalStateException e)
+		{
+			// The process has been stopped
+		}
 	}
 
 	/**
@@ -55,7 +106,39 @@ public class RequestPieceProcess extends TimerTask
 	 */
 	public void setPieceIndex(int pieceIndex)
 	{
+		this.releaseReservation(this.pieceIndex);
 		this.pieceIndex = pieceIndex;
+		this.hasRequested = false;
+	}
+
+	private void releaseReservation(int index)
+	{
+		// Only a piece whose request has not been sent is released, a request in
+		// flight keeps its deadline
+		if (index != -1 && !this.hasRequested)
+		{
+			this.connection.getProcess().getRequestLedger().release(this.connection, index);
+		}
+	}
+
+	/**
+	 * Checks if the request for the current piece has been sent
+	 * 
+	 * @return True if the request has been sent at least once
+	 */
+	public boolean hasRequested()
+	{
+		return this.hasRequested;
+	}
+
+	/**
+	 * Returns the time to wait for the current piece before it is requested again
+	 * 
+	 * @return The timeout in milliseconds of the current request
+	 */
+	public long getTimeoutMs()
+	{
+		return this.requestTimer.getTimeoutMs(this.retransmits);
 	}
 
 	/**
@@ -74,12 +157,49 @@ public class RequestPieceProcess extends TimerTask
 		if (this.pieceIndex == -1)
 		{
 			this.pieceIndex = this.connection.getParent().determinePieceRequest(this.connection);
+			this.hasRequested = false;
+		}
+		int index = this.pieceIndex;
+		if (index == -1)
+		{
+			return;
+		}
+		long now = System.nanoTime();
+		boolean isRetransmit = this.hasRequested;
+		if (isRetransmit)
+		{
+			// Wait for the timeout since the request or the last piece data received
+			long lastProgress = this.lastRequest;
+			long lastPieceData = this.connection.getLastPieceData();
+			if (lastPieceData - lastProgress > 0)
+			{
+				lastProgress = lastPieceData;
+			}
+			long timeoutMs = this.requestTimer.getTimeoutMs(this.retransmits);
+			if (now - lastProgress < timeoutMs * 1000000)
+			{
+				return;
+			}
+		}
+		if (this.limiter != null && !this.limiter.tryAcquire(this.connection))
+		{
+			// Wait until there is credit to send the request
+			return;
+		}
+		if (isRetransmit)
+		{
+			++this.retransmits;
 		}
-		if (this.pieceIndex != -1)
+		else
 		{
-			ActualMessage requestMessage = ActualMessage.CreateRequestMessage(this.pieceIndex);
-			this.connection.sendMessage(requestMessage);
-			this.connection.getProcess().addPendingRequest(this.pieceIndex);
+			this.retransmits = 0;
 		}
+		ActualMessage requestMessage = ActualMessage.CreateRequestMessage(index);
+		this.connection.sendMessage(requestMessage);
+		this.requestTimer.requestSent(index, isRetransmit);
+		long timeoutMs = this.requestTimer.getTimeoutMs(this.retransmits);
+		this.connection.getProcess().getRequestLedger().add(this.connection, index, timeoutMs);
+		this.lastRequest = now;
+		this.hasRequested = true;
 	}
 }
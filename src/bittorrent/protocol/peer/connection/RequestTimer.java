@@ -0,0 +1,126 @@
+package bittorrent.protocol.peer.connection;
+
+/**
+ * Estimates the time the other peer takes to answer a piece request and
+ * derives the timeout of the requests of a connection from it.
+ * 
+ * The response time of a request is measured from the moment it is sent until
+ * the whole piece has been received, so it covers both the round trip time and
+ * the transfer time of the piece. The samples are smoothed as in the
+ * retransmission timer of TCP, described by Jacobson and Karels: the smoothed
+ * response time moves by ALPHA of each error and its mean deviation by BETA,
+ * and the timeout is the smoothed time plus K deviations. Until the first
+ * sample, the timeout is the initial timeout.
+ * 
+ * The timeout doubles with each time a request is sent again, up to
+ * MAX_TIMEOUT_MS. A request that has been sent more than once gives no sample,
+ * since the piece may answer any of the copies.
+ */
+public class RequestTimer
+{
+	// The gain of the smoothed response time
+	public static final double ALPHA = 0.125;
+
+	// The gain of the mean deviation of the response time
+	public static final double BETA = 0.25;
+
+	// The number of mean deviations added to the smoothed response time
+	public static final int K = 4;
+
+	// The shortest and longest timeout in milliseconds
+	public static final long MIN_TIMEOUT_MS = 1000;
+	public static final long MAX_TIMEOUT_MS = 60000;
+
+	private long initialTimeoutMs;
+	private double smoothedTime;
+	private double deviation;
+	private boolean hasSample;
+	private int sampledIndex;
+	private long sentTime;
+	private boolean isAmbiguous;
+
+	/**
+	 * Initializes the timer
+	 * 
+	 * @param initialTimeoutMs The timeout in milliseconds until the first sample
+	 */
+	public RequestTimer(long initialTimeoutMs)
+	{
+		this.initialTimeoutMs = initialTimeoutMs;
+		this.hasSample = false;
+		this.sampledIndex = -1;
+	}
+
+	/**
+	 * Records that a request has been sent
+	 * 
+	 * @param index The index of the requested piece
+	 * @param isRetransmit True if the request has been sent before
+	 */
+	public synchronized void requestSent(int index, boolean isRetransmit)
+	{
+		if (isRetransmit && index == this.sampledIndex)
+		{
+			this.isAmbiguous = true;
+		}
+		else
+		{
+			this.sampledIndex = index;
+			this.sentTime = System.nanoTime();
+			this.isAmbiguous = isRetransmit;
+		}
+	}
+
+	/**
+	 * Records that a piece has been received and takes a sample of the response
+	 * time if the piece was requested only once
+	 * 
+	 * @param index The index of the received piece
+	 */
+	public synchronized void pieceReceived(int index)
+	{
+		if (index != this.sampledIndex)
+		{
+			return;
+		}
+		this.sampledIndex = -1;
+		if (this.isAmbiguous)
+		{
+			return;
+		}
+		double sample = (System.nanoTime() - this.sentTime) / 1000000.0;
+		if (!this.hasSample)
+		{
+			this.smoothedTime = sample;
+			this.deviation = sample / 2;
+			this.hasSample = true;
+		}
+		else
+		{
+			this.deviation = (1 - BETA) * this.deviation + BETA * Math.abs(this.smoothedTime - sample);
+			this.smoothedTime = (1 - ALPHA) * this.smoothedTime + ALPHA * sample;
+		}
+	}
+
+	/**
+	 * Returns the timeout of a request
+	 * 
+	 * @param retransmits The number of times the request has been sent again
+	 * @return The time in milliseconds to wait for the piece before the request is
+	 * sent again
+	 */
+	public synchronized long getTimeoutMs(int retransmits)
+	{
+		long timeout = this.initialTimeoutMs;
+		if (this.hasSample)
+		{
+			timeout = Math.round(this.smoothedTime + K * this.deviation);
+		}
+		timeout = Math.max(timeout, MIN_TIMEOUT_MS);
+		for (int count = 0; count < retransmits && timeout < MAX_TIMEOUT_MS; ++count)
+		{
+			timeout *= 2;
+		}
+		return Math.min(timeout, MAX_TIMEOUT_MS);
+	}
+}
@@ -0,0 +1,267 @@
+package bittorrent.protocol.peer.connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import bittorrent.logging.Logger;
+import bittorrent.protocol.peer.PeerProcess;
+
+/**
+ * Reveals the pieces of the initial seeder one at a time, so that each piece is
+ * uploaded by the seeder about once before the neighbors hold a full copy.
+ * 
+ * While super seeding, this peer announces none of its pieces in its bitfield.
+ * Instead each neighbor is offered a single piece with a have message. The
+ * offered piece is the one that the fewest neighbors are known to have and that
+ * has been offered the fewest times, preferring pieces that are not currently
+ * offered to another neighbor. A neighbor is only offered a new piece once
+ * another neighbor announces the piece offered to it, which shows that the
+ * piece has been passed on instead of being requested again from this peer. A
+ * neighbor that announces its own piece while no other neighbor lacks it has
+ * nobody to pass it on to, so it is offered a new piece straight away.
+ * 
+ * Once every piece has been announced by a neighbor, the neighbors hold a full
+ * copy between them. Super seeding then ends and every piece is announced to
+ * every neighbor, so that the rest of the download proceeds normally.
+ */
+public class SuperSeeder
+{
+	private PeerProcess parent;
+	private Logger logger;
+	private int pieceCount;
+	private Random random;
+	private boolean isActive;
+	private HashMap<PeerConnection, Integer> offers;
+	private int[] offerCounts;
+	private int[] holderCounts;
+	private int heldPieceCount;
+
+	/**
+	 * Starts super seeding the pieces of the parent process
+	 * 
+	 * @param parent The parent process, which has all of the pieces
+	 * @param logger The logger of the parent process
+	 */
+	public SuperSeeder(PeerProcess parent, Logger logger)
+	{
+		this.parent = parent;
+		this.logger = logger;
+		this.pieceCount = parent.getCommonConfig().getNumberOfPieces();
+		this.random = new Random();
+		this.isActive = true;
+		this.offers = new HashMap<PeerConnection, Integer>();
+		this.offerCounts = new int[this.pieceCount];
+		this.holderCounts = new int[this.pieceCount];
+		this.heldPieceCount = 0;
+	}
+
+	/**
+	 * Indicates if this peer is still super seeding
+	 * 
+	 * @return True if the pieces are still revealed one at a time
+	 */
+	public synchronized boolean isActive()
+	{
+		return this.isActive;
+	}
+
+	/**
+	 * Offers the first piece to a neighbor once its bitfield has been received
+	 * 
+	 * @param connection The connection of the neighbor
+	 */
+	public void addPeer(PeerConnection connection)
+	{
+		int index;
+		boolean isComplete;
+		synchronized (this)
+		{
+			if (!this.isActive)
+			{
+				return;
+			}
+			Bitfield bitfield = this.parent.getAllbitfields().getBitfield(connection);
+			if (bitfield != null)
+			{
+				for (int piece = 0; piece < this.pieceCount; ++piece)
+				{
+					if (bitfield.hasPiece(piece))
+					{
+						this.addHolder(piece);
+					}
+				}
+			}
+			index = this.offerPiece(connection);
+			isComplete = this.checkComplete();
+		}
+		if (isComplete)
+		{
+			this.revealAllPieces();
+		}
+		else if (index != -1)
+		{
+			connection.sendHave(index);
+		}
+	}
+
+	/**
+	 * Forgets the piece offered to a neighbor whose connection has been torn down
+	 * 
+	 * @param connection The connection of the neighbor
+	 */
+	public synchronized void removePeer(PeerConnection connection)
+	{
+		this.offers.remove(connection);
+	}
+
+	/**
+	 * Handles a piece announced by a neighbor
+	 * 
+	 * This should be called after the bitfield of the neighbor has been updated.
+	 * 
+	 * @param source The connection of the neighbor that announced the piece
+	 * @param index The index of the piece
+	 */
+	public void receivedHave(PeerConnection source, int index)
+	{
+		Map<PeerConnection, Integer> newOffers = new HashMap<PeerConnection, Integer>();
+		boolean isComplete;
+		synchronized (this)
+		{
+			if (!this.isActive || index < 0 || index >= this.pieceCount)
+			{
+				return;
+			}
+			this.addHolder(index);
+
+			List<PeerConnection> offeredTo = new ArrayList<PeerConnection>();
+			for (Map.Entry<PeerConnection, Integer> offer : this.offers.entrySet())
+			{
+				if (offer.getValue() == index)
+				{
+					offeredTo.add(offer.getKey());
+				}
+			}
+			for (PeerConnection connection : offeredTo)
+			{
+				// Another neighbor has the piece, or the neighbor has nobody to pass it on to
+				if (connection != source || !this.isLackedByOthers(source, index))
+				{
+					int next = this.offerPiece(connection);
+					if (next != -1)
+					{
+						newOffers.put(connection, next);
+					}
+				}
+			}
+			isComplete = this.checkComplete();
+		}
+		if (isComplete)
+		{
+			this.revealAllPieces();
+			return;
+		}
+		for (Map.Entry<PeerConnection, Integer> offer : newOffers.entrySet())
+		{
+			offer.getKey().sendHave(offer.getValue());
+		}
+	}
+
+	private void addHolder(int index)
+	{
+		if (this.holderCounts[index]++ == 0)
+		{
+			++this.heldPieceCount;
+		}
+	}
+
+	private boolean isLackedByOthers(PeerConnection source, int index)
+	{
+		for (Map.Entry<PeerConnection, Bitfield> entry : this.parent.getAllbitfields().getBitfields().entrySet())
+		{
+			if (entry.getKey() != source && !entry.getValue().hasPiece(index))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int offerPiece(PeerConnection connection)
+	{
+		this.offers.remove(connection);
+		Bitfield bitfield = this.parent.getAllbitfields().getBitfield(connection);
+		if (bitfield == null)
+		{
+			return -1;
+		}
+		Set<Integer> offered = new HashSet<Integer>(this.offers.values());
+
+		// Pick the rarest piece the neighbor lacks, breaking ties randomly
+		int bestIndex = -1;
+		long bestScore = Long.MAX_VALUE;
+		int tieCount = 0;
+		for (int index = 0; index < this.pieceCount; ++index)
+		{
+			if (bitfield.hasPiece(index))
+			{
+				continue;
+			}
+			long score = (long) this.holderCounts[index] + this.offerCounts[index];
+			if (offered.contains(index))
+			{
+				score += this.pieceCount;
+			}
+			if (score < bestScore)
+			{
+				bestIndex = index;
+				bestScore = score;
+				tieCount = 1;
+			}
+			else if (score == bestScore && this.random.nextInt(++tieCount) == 0)
+			{
+				bestIndex = index;
+			}
+		}
+		if (bestIndex != -1)
+		{
+			this.offers.put(connection, bestIndex);
+			++this.offerCounts[bestIndex];
+		}
+		return bestIndex;
+	}
+
+	private boolean checkComplete()
+	{
+		if (this.heldPieceCount < this.pieceCount)
+		{
+			return false;
+		}
+		this.isActive = false;
+		this.offers.clear();
+		return true;
+	}
+
+	private void revealAllPieces()
+	{
+		long uploadedBytes = 0;
+		for (PeerConnection connection : this.parent.getConnectionRegistry())
+		{
+			uploadedBytes += connection.getUploadMeter().getTotal();
+		}
+		this.logger.superSeedingCompleted(uploadedBytes, this.parent.getCommonConfig().getFileSize());
+
+		for (PeerConnection connection : this.parent.getConnectionRegistry())
+		{
+			for (int index = 0; index < this.pieceCount; ++index)
+			{
+				connection.sendHave(index);
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package bittorrent.protocol.peer.connection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the transfer rate of a connection in bytes per second.
+ * 
+ * Transferred bytes are recorded into striped counters, so recording never
+ * takes a lock or contends with other recording threads. Once per second the
+ * owning process calls tick, which closes the current one second bucket and
+ * updates exponentially weighted moving averages (EWMA) over a short, medium
+ * and long window. Only the tick thread writes the averages and the buckets,
+ * so readers always see consistent values without locking.
+ */
+public class TransferRateMeter
+{
+	// The number of one second buckets kept as history
+	public static final int BUCKET_COUNT = 60;
+
+	// The windows in seconds of the moving averages
+	public static final int SHORT_WINDOW = 5;
+	public static final int MEDIUM_WINDOW = 20;
+	public static final int LONG_WINDOW = 60;
+
+	private static final double SHORT_ALPHA = 1 - Math.exp(-1.0 / SHORT_WINDOW);
+	private static final double MEDIUM_ALPHA = 1 - Math.exp(-1.0 / MEDIUM_WINDOW);
+	private static final double LONG_ALPHA = 1 - Math.exp(-1.0 / LONG_WINDOW);
+
+	private LongAdder total;
+	private LongAdder pending;
+	private AtomicLongArray buckets;
+	private volatile int bucketIndex;
+	private volatile long lastSecond;
+	private volatile double shortRate;
+	private volatile double mediumRate;
+	private volatile double longRate;
+
+	public TransferRateMeter()
+	{
+		this.total = new LongAdder();
+		this.pending = new LongAdder();
+		this.buckets = new AtomicLongArray(BUCKET_COUNT);
+		this.bucketIndex = 0;
+		this.lastSecond = 0;
+		this.shortRate = 0;
+		this.mediumRate = 0;
+		this.longRate = 0;
+	}
+
+	/**
+	 * Records transferred bytes
+	 * 
+	 * @param bytes The number of bytes transferred
+	 */
+	public void record(long bytes)
+	{
+		this.total.add(bytes);
+		this.pending.add(bytes);
+	}
+
+	/**
+	 * Closes the current one second bucket and updates the moving averages
+	 * 
+	 * This should be called once per second by a single thread.
+	 */
+	public void tick()
+	{
+		long bytes = this.pending.sumThenReset();
+		int nextIndex = (this.bucketIndex + 1) % BUCKET_COUNT;
+		this.buckets.set(nextIndex, bytes);
+		this.bucketIndex = nextIndex;
+		this.lastSecond = bytes;
+
+		this.shortRate = this.shortRate + SHORT_ALPHA * (bytes - this.shortRate);
+		this.mediumRate = this.mediumRate + MEDIUM_ALPHA * (bytes - this.mediumRate);
+		this.longRate = this.longRate + LONG_ALPHA * (bytes - this.longRate);
+	}
+
+	/**
+	 * Returns the short term rate in bytes per second
+	 * 
+	 * This is the rate used for choking decisions.
+	 * 
+	 * @return The short term rate in bytes per second
+	 */
+	public double getRate()
+	{
+		return this.shortRate;
+	}
+
+	/**
+	 * Returns the medium term rate in bytes per second
+	 * 
+	 * @return The medium term rate in bytes per second
+	 */
+	public double getMediumTermRate()
+	{
+		return this.mediumRate;
+	}
+
+	/**
+	 * Returns the long term rate in bytes per second
+	 * 
+	 * @return The long term rate in bytes per second
+	 */
+	public double getLongTermRate()
+	{
+		return this.longRate;
+	}
+
+	/**
+	 * Returns the number of bytes transferred in the last complete second
+	 * 
+	 * @return The number of bytes transferred in the last complete second
+	 */
+	public long getLastSecond()
+	{
+		return this.lastSecond;
+	}
+
+	/**
+	 * Returns the number of bytes transferred over the last complete seconds
+	 * 
+	 * @param seconds The number of seconds, up to BUCKET_COUNT
+	 * @return The number of bytes transferred over the last complete seconds
+	 */
+	public long getRecentBytes(int seconds)
+	{
+		int count = Math.min(seconds, BUCKET_COUNT);
+		int index = this.bucketIndex;
+		long bytes = 0;
+		for (int second = 0; second < count; ++second)
+		{
+			bytes += this.buckets.get((index - second + BUCKET_COUNT) % BUCKET_COUNT);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the total number of bytes transferred
+	 * 
+	 * @return The total number of bytes transferred
+	 */
+	public long getTotal()
+	{
+		return this.total.sum();
+	}
+}
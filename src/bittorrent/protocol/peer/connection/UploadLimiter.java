@@ -0,0 +1,276 @@
+package bittorrent.protocol.peer.connection;
+
+import java.util.ArrayDeque;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A threaded process that limits the total upload rate of a peer process.
+ * 
+ * Requested pieces are queued per connection instead of being sent by the
+ * thread that received the request, so a completion handler is never blocked
+ * by the limit. Every PERIOD_MS the process refills a token bucket with the
+ * bytes allowed by the rate, and sends the queued pieces while there are enough
+ * tokens. The connections with queued pieces are served with deficit round
+ * robin, where each connection receives a quantum of one piece per round, so
+ * every unchoked peer receives an equal share of the upload rate.
+ * 
+ * A piece is handed to the outbound queue of the connection, which writes it
+ * without blocking the thread of the process. A connection whose previous
+ * pieces are still in its outbound queue is left out of the rounds until the
+ * queue hands them to the transport, so a slow peer neither stalls the other
+ * connections nor piles up pieces that the limit has already allowed.
+ * 
+ * A queued piece whose request is cancelled by the other peer is removed from
+ * the queue before it is sent.
+ */
+public class UploadLimiter extends TimerTask
+{
+	// The rate in milliseconds that the token bucket is refilled
+	public static final long PERIOD_MS = 10;
+
+	// The number of milliseconds of the rate that the token bucket can hold
+	public static final long BURST_MS = 100;
+
+	private long maxRate;
+	private long quantum;
+	private double burst;
+	private double tokens;
+	private long lastRefill;
+	private Timer timerProcess;
+	private ConcurrentHashMap<PeerConnection, UploadQueue> queues;
+	private ConcurrentLinkedQueue<UploadQueue> newlyActive;
+	private ArrayDeque<UploadQueue> activeQueues;
+
+	/**
+	 * The pieces requested by a single connection
+	 */
+	private static class UploadQueue
+	{
+		private PeerConnection connection;
+		private ConcurrentLinkedQueue<Integer> requests;
+		private AtomicBoolean isActive;
+		private long deficit;
+		private boolean receivedQuantum;
+
+		private UploadQueue(PeerConnection connection)
+		{
+			this.connection = connection;
+			this.requests = new ConcurrentLinkedQueue<Integer>();
+			this.isActive = new AtomicBoolean(false);
+			this.deficit = 0;
+			this.receivedQuantum = false;
+		}
+	}
+
+	/**
+	 * Initializes the upload limiter
+	 * 
+	 * @param maxRate The maximum total upload rate in bytes per second
+	 * @param pieceSize The size of a piece in bytes
+	 */
+	public UploadLimiter(long maxRate, int pieceSize)
+	{
+		this.maxRate = maxRate;
+		// The quantum and the bucket must hold at least one piece message, which
+		// includes the 4-byte length, 1-byte type and 4-byte index fields
+		this.quantum = pieceSize + 9;
+		this.burst = Math.max(maxRate * BURST_MS / 1000.0, this.quantum);
+		this.tokens = 0;
+		this.timerProcess = new Timer(true);
+		this.queues = new ConcurrentHashMap<PeerConnection, UploadQueue>();
+		this.newlyActive = new ConcurrentLinkedQueue<UploadQueue>();
+		this.activeQueues = new ArrayDeque<UploadQueue>();
+	}
+
+	/**
+	 * Starts the upload limiter
+	 */
+	public void startProcess()
+	{
+		this.lastRefill = System.nanoTime();
+		this.timerProcess.scheduleAtFixedRate(this, 0, PERIOD_MS);
+	}
+
+	/**
+	 * Stops the upload limiter
+	 */
+	public void stopProcess()
+	{
+		this.timerProcess.cancel();
+		this.timerProcess.purge();
+	}
+
+	/**
+	 * Returns the maximum total upload rate in bytes per second
+	 * 
+	 * @return The maximum total upload rate in bytes per second
+	 */
+	public long getMaxRate()
+	{
+		return this.maxRate;
+	}
+
+	/**
+	 * Queues a requested piece to be sent to the connection
+	 * 
+	 * This function never blocks. A piece that is already queued for the
+	 * connection is not queued again.
+	 * 
+	 * @param connection The connection that requested the piece
+	 * @param pieceIndex The index of the requested piece
+	 */
+	public void enqueue(PeerConnection connection, int pieceIndex)
+	{
+		UploadQueue queue = this.queues.computeIfAbsent(connection, UploadQueue::new);
+		if (queue.requests.contains(pieceIndex))
+		{
+			return;
+		}
+		queue.requests.add(pieceIndex);
+		if (queue.isActive.compareAndSet(false, true))
+		{
+			this.newlyActive.add(queue);
+		}
+	}
+
+	/**
+	 * Removes a queued piece that the connection no longer requests
+	 * 
+	 * @param connection The connection that cancelled the request
+	 * @param pieceIndex The index of the cancelled piece
+	 * @return True if the piece was queued and has been removed
+	 */
+	public boolean cancel(PeerConnection connection, int pieceIndex)
+	{
+		UploadQueue queue = this.queues.get(connection);
+		return queue != null && queue.requests.remove(pieceIndex);
+	}
+
+	/**
+	 * Removes the queued pieces of the connection
+	 * 
+	 * @param connection The connection to remove
+	 */
+	public void remove(PeerConnection connection)
+	{
+		UploadQueue queue = this.queues.remove(connection);
+		if (queue != null)
+		{
+			queue.requests.clear();
+		}
+	}
+
+	/**
+	 * Returns a connection to the rounds once its outbound queue has handed its
+	 * pieces to the transport
+	 * 
+	 * @param connection The connection whose pieces have been written
+	 */
+	public void resume(PeerConnection connection)
+	{
+		UploadQueue queue = this.queues.get(connection);
+		if (queue != null && !queue.requests.isEmpty() && queue.isActive.compareAndSet(false, true))
+		{
+			this.newlyActive.add(queue);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		long now = System.nanoTime();
+		double budget = this.maxRate * (now - this.lastRefill) / 1e9;
+		this.lastRefill = now;
+		this.serve(budget);
+	}
+
+	/**
+	 * Adds the bytes allowed since the last refill to the token bucket and sends
+	 * the queued pieces in rounds until the bucket runs out
+	 * 
+	 * A connection whose turn is interrupted by the bucket keeps its deficit and
+	 * resumes its turn at the next refill without receiving another quantum.
+	 * 
+	 * @param budget The number of bytes allowed since the last refill
+	 */
+	void serve(double budget)
+	{
+		this.tokens = Math.min(this.burst, this.tokens + budget);
+
+		UploadQueue queue;
+		while ((queue = this.newlyActive.poll()) != null)
+		{
+			this.activeQueues.addLast(queue);
+		}
+
+		while (!this.activeQueues.isEmpty())
+		{
+			queue = this.activeQueues.peekFirst();
+			if (queue.connection.isUploading())
+			{
+				// The connection is resumed once its outbound queue is drained
+				this.activeQueues.pollFirst();
+				queue.receivedQuantum = false;
+				queue.deficit = 0;
+				queue.isActive.set(false);
+				// The queue may have been drained before the connection became inactive
+				if (!queue.connection.isUploading() && !queue.requests.isEmpty()
+						&& queue.isActive.compareAndSet(false, true))
+				{
+					this.newlyActive.add(queue);
+				}
+				continue;
+			}
+			if (!queue.receivedQuantum)
+			{
+				queue.deficit += this.quantum;
+				queue.receivedQuantum = true;
+			}
+
+			Integer pieceIndex;
+			while ((pieceIndex = queue.requests.peek()) != null)
+			{
+				int size = queue.connection.getPieceMessageSize(pieceIndex);
+				if (size > queue.deficit)
+				{
+					break;
+				}
+				if (size > this.tokens)
+				{
+					// Resume with this connection once the bucket is refilled
+					return;
+				}
+				if (!queue.requests.remove(pieceIndex))
+				{
+					// The request was cancelled after it was peeked
+					continue;
+				}
+				queue.deficit -= size;
+				this.tokens -= size;
+				queue.connection.sendPiece(pieceIndex);
+			}
+
+			// The connection has finished its turn of the round
+			this.activeQueues.pollFirst();
+			queue.receivedQuantum = false;
+			if (!queue.requests.isEmpty())
+			{
+				this.activeQueues.addLast(queue);
+			}
+			else
+			{
+				queue.deficit = 0;
+				queue.isActive.set(false);
+				// A request may have been queued before the queue became inactive
+				if (!queue.requests.isEmpty() && queue.isActive.compareAndSet(false, true))
+				{
+					this.activeQueues.addLast(queue);
+				}
+			}
+		}
+	}
+}
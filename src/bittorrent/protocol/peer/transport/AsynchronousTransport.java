@@ -0,0 +1,219 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bittorrent.protocol.peer.connection.PeerConnection;
+
+/**
+ * A transport over an asynchronous socket channel.
+ * 
+ * Received bytes are delivered by the completion handler threads of the
+ * channel. Written messages are queued and written one at a time by the
+ * completion handler of the previous write, so writing never blocks the calling
+ * thread. The drain handler is called once every queued message is written.
+ */
+public class AsynchronousTransport implements PeerTransport, CompletionHandler<Integer, ByteBuffer>
+{
+	private AsynchronousSocketChannel channel;
+	private PeerConnection connection;
+	private int bufferSize;
+	private ConcurrentLinkedQueue<ByteBuffer> outbound;
+	private AtomicLong queuedBytes;
+	private AtomicBoolean isWriting;
+	private volatile Runnable drainHandler;
+	private WriteHandler writeHandler;
+
+	/**
+	 * Writes the rest of a message, or the next queued message, once a write
+	 * completes
+	 */
+	private class WriteHandler implements CompletionHandler<Integer, ByteBuffer>
+	{
+		@Override
+		public void completed(Integer result, ByteBuffer message)
+		{
+			AsynchronousTransport.this.queuedBytes.addAndGet(-result);
+			if (message.hasRemaining())
+			{
+				// A single write may not write the complete message
+				AsynchronousTransport.this.channel.write(message, message, this);
+				return;
+			}
+			AsynchronousTransport.this.outbound.poll();
+			AsynchronousTransport.this.writeNext();
+		}
+
+		@Override
+		public void failed(Throwable exc, ByteBuffer message)
+		{
+			// The queued messages cannot be written, and closing the channel lets the
+			// read handler find the connection closed
+			AsynchronousTransport.this.outbound.clear();
+			AsynchronousTransport.this.queuedBytes.set(0);
+			try
+			{
+				AsynchronousTransport.this.close();
+			}
+			catch (IOException e)
+			{
+				// The channel is closed either way
+			}
+		}
+	}
+
+	/**
+	 * Creates a transport over a connected channel
+	 * 
+	 * @param channel The connected channel
+	 * @param bufferSize The size of the socket and receive buffers
+	 */
+	public AsynchronousTransport(AsynchronousSocketChannel channel, int bufferSize)
+	{
+		this.channel = channel;
+		this.bufferSize = bufferSize;
+		this.outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.queuedBytes = new AtomicLong(0);
+		this.isWriting = new AtomicBoolean(false);
+		this.writeHandler = new WriteHandler();
+		try
+		{
+			this.channel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+			this.channel.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
+			this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void start(PeerConnection connection)
+	{
+		this.connection = connection;
+		ByteBuffer buffer = ByteBuffer.allocate(this.bufferSize);
+		this.channel.read(buffer, buffer, this);
+	}
+
+	@Override
+	public void write(ByteBuffer message)
+	{
+		if (!this.channel.isOpen())
+		{
+			return;
+		}
+		this.queuedBytes.addAndGet(message.remaining());
+		this.outbound.add(message);
+		if (this.isWriting.compareAndSet(false, true))
+		{
+			this.writeNext();
+		}
+	}
+
+	@Override
+	public long getQueuedBytes()
+	{
+		return this.queuedBytes.get();
+	}
+
+	@Override
+	public void setDrainHandler(Runnable handler)
+	{
+		this.drainHandler = handler;
+	}
+
+	private void writeNext()
+	{
+		ByteBuffer message = this.outbound.peek();
+		if (message == null)
+		{
+			this.isWriting.set(false);
+
+			// A message may have been queued after the queue was found empty
+			if (!this.outbound.isEmpty() && this.isWriting.compareAndSet(false, true))
+			{
+				this.writeNext();
+				return;
+			}
+			Runnable handler = this.drainHandler;
+			if (handler != null)
+			{
+				handler.run();
+			}
+			return;
+		}
+		try
+		{
+			this.channel.write(message, message, this.writeHandler);
+		}
+		catch (RuntimeException e)
+		{
+			// The channel has been closed
+			this.writeHandler.failed(e, message);
+		}
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return this.channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (this.channel.isOpen())
+		{
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * Handler for when bytes are received.
+	 */
+	@Override
+	public void completed(Integer result, ByteBuffer buffer)
+	{
+		if (result < 0)
+		{
+			// The other peer closed the connection
+			this.connection.peerClosed();
+			return;
+		}
+		buffer.flip();
+		try
+		{
+			this.connection.receive(buffer);
+		}
+		finally
+		{
+			buffer.compact();
+			if (this.channel.isOpen())
+			{
+				this.channel.read(buffer, buffer, this);
+			}
+		}
+	}
+
+	/**
+	 * Handler for when bytes are received incorrectly.
+	 */
+	@Override
+	public void failed(Throwable exc, ByteBuffer buffer)
+	{
+		// A read fails when the other peer resets the connection, but also when this
+		// peer closes the channel
+		if (!(exc instanceof AsynchronousCloseException))
+		{
+			this.connection.peerClosed();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Provides transports over asynchronous socket channels.
+ * 
+ * This is the default transport of a peer process.
+ */
+public class AsynchronousTransportProvider implements TransportProvider
+{
+	private AsynchronousServerSocketChannel serverChannel;
+	private int bufferSize;
+
+	/**
+	 * Creates the provider
+	 * 
+	 * @param bufferSize The size of the socket and receive buffers
+	 */
+	public AsynchronousTransportProvider(int bufferSize)
+	{
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public void listen(SocketAddress address, Consumer<PeerTransport> acceptHandler) throws IOException
+	{
+		// Create an asynchronous server socket channel and bind it to a local address.
+		this.serverChannel = AsynchronousServerSocketChannel.open();
+		this.serverChannel.bind(address);
+
+		AsynchronousServerSocketChannel server = this.serverChannel;
+		this.serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>()
+		{
+			/**
+			 * Connection request is received.
+			 * 
+			 * Create a transport for the requester and delegate it to the accept handler.
+			 */
+			@Override
+			public void completed(AsynchronousSocketChannel peerChannel, Object attachment)
+			{
+				if (server.isOpen())
+				{
+					// Continue to accept requests
+					server.accept(null, this);
+				}
+				if (peerChannel != null && peerChannel.isOpen())
+				{
+					acceptHandler.accept(new AsynchronousTransport(peerChannel, bufferSize));
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Object attachment)
+			{
+
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<PeerTransport> connect(SocketAddress address)
+	{
+		CompletableFuture<PeerTransport> result = new CompletableFuture<PeerTransport>();
+		AsynchronousSocketChannel channel;
+		try
+		{
+			channel = AsynchronousSocketChannel.open();
+		}
+		catch (IOException e)
+		{
+			result.completeExceptionally(e);
+			return result;
+		}
+		channel.connect(address, null, new CompletionHandler<Void, Object>()
+		{
+			@Override
+			public void completed(Void unused, Object attachment)
+			{
+				result.complete(new AsynchronousTransport(channel, bufferSize));
+			}
+
+			@Override
+			public void failed(Throwable exc, Object attachment)
+			{
+				result.completeExceptionally(exc);
+			}
+		});
+		// Close the channel if the attempt failed or was abandoned by the caller
+		result.whenComplete((transport, exception) ->
+		{
+			if (exception != null)
+			{
+				closeChannel(channel);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public void close()
+	{
+		closeChannel(this.serverChannel);
+	}
+
+	private static void closeChannel(Channel channel)
+	{
+		try
+		{
+			if (channel != null && channel.isOpen())
+			{
+				channel.close();
+			}
+		}
+		catch (IOException e)
+		{
+
+		}
+	}
+}
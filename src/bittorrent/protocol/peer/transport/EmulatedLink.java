@@ -0,0 +1,134 @@
+package bittorrent.protocol.peer.transport;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Emulates a slow link with a propagation delay for the outgoing datagrams of
+ * a UDP endpoint.
+ * 
+ * Datagrams leave the link at the configured rate, so a sender that exceeds
+ * the rate builds a queue, and each datagram is delivered the configured delay
+ * after it leaves. Datagrams that would wait in the queue longer than
+ * QUEUE_LIMIT_MS are dropped, like a router with a full buffer. This allows the
+ * delay based congestion control to be observed between peers on localhost.
+ * 
+ * This class is not thread safe and is only used by the thread of the endpoint.
+ */
+public class EmulatedLink
+{
+	// The longest time in milliseconds a datagram may wait in the queue
+	public static final long QUEUE_LIMIT_MS = 1000;
+
+	private long rate;
+	private long delayNanos;
+	private long busyUntil;
+	private ArrayDeque<Datagram> queue;
+
+	/**
+	 * A datagram waiting to be delivered
+	 */
+	private static class Datagram
+	{
+		private ByteBuffer data;
+		private SocketAddress target;
+		private long deliveryTime;
+	}
+
+	/**
+	 * Initializes the link
+	 * 
+	 * @param rate The rate of the link in bytes per second, or 0 for no limit
+	 * @param delay The one way delay of the link in milliseconds
+	 */
+	public EmulatedLink(long rate, long delay)
+	{
+		this.rate = rate;
+		this.delayNanos = delay * 1000000;
+		this.busyUntil = System.nanoTime();
+		this.queue = new ArrayDeque<Datagram>();
+	}
+
+	/**
+	 * Queues a datagram on the link
+	 * 
+	 * @param data The datagram, which is copied
+	 * @param target The address the datagram is sent to
+	 * @param now The current time in nanoseconds
+	 * @return False if the datagram was dropped
+	 */
+	public boolean enqueue(ByteBuffer data, SocketAddress target, long now)
+	{
+		long departure = Math.max(now, this.busyUntil);
+		if (this.rate > 0)
+		{
+			departure += data.remaining() * 1000000000L / this.rate;
+		}
+		if (departure - now > QUEUE_LIMIT_MS * 1000000)
+		{
+			return false;
+		}
+		this.busyUntil = departure;
+
+		Datagram datagram = new Datagram();
+		datagram.data = ByteBuffer.allocate(data.remaining());
+		datagram.data.put(data).flip();
+		datagram.target = target;
+		datagram.deliveryTime = departure + this.delayNanos;
+		this.queue.add(datagram);
+		return true;
+	}
+
+	/**
+	 * Returns the time in nanoseconds the next datagram is due, or Long.MAX_VALUE
+	 * if the link is empty
+	 * 
+	 * @return The time in nanoseconds the next datagram is due
+	 */
+	public long getNextDeliveryTime()
+	{
+		Datagram datagram = this.queue.peek();
+		return datagram == null ? Long.MAX_VALUE : datagram.deliveryTime;
+	}
+
+	/**
+	 * Returns true if the next datagram is due
+	 * 
+	 * @param now The current time in nanoseconds
+	 * @return True if the next datagram is due
+	 */
+	public boolean isDue(long now)
+	{
+		Datagram datagram = this.queue.peek();
+		return datagram != null && datagram.deliveryTime - now <= 0;
+	}
+
+	/**
+	 * Returns the data of the next datagram
+	 * 
+	 * @return The data of the next datagram
+	 */
+	public ByteBuffer peekData()
+	{
+		return this.queue.peek().data;
+	}
+
+	/**
+	 * Returns the target of the next datagram
+	 * 
+	 * @return The target of the next datagram
+	 */
+	public SocketAddress peekTarget()
+	{
+		return this.queue.peek().target;
+	}
+
+	/**
+	 * Removes the next datagram
+	 */
+	public void remove()
+	{
+		this.queue.poll();
+	}
+}
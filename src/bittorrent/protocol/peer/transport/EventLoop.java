@@ -0,0 +1,191 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single threaded loop that handles the ready channels of a selector.
+ * 
+ * Every channel registered with the loop is handled by the thread of the loop,
+ * so the state of a channel is only ever touched by a single thread. Other
+ * threads interact with the loop by submitting tasks through execute.
+ */
+public class EventLoop implements Runnable
+{
+	private Selector selector;
+	private Thread thread;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private volatile boolean isRunning;
+
+	/**
+	 * Handles a channel once it is ready
+	 */
+	public interface Handler
+	{
+		/**
+		 * Called by the loop when the channel of the key is ready
+		 * 
+		 * @param key The selection key of the ready channel
+		 * @throws IOException If there is an error handling the channel
+		 */
+		public void handleSelection(SelectionKey key) throws IOException;
+	}
+
+	/**
+	 * Creates an event loop
+	 * 
+	 * @param name The name of the thread of the loop
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public EventLoop(String name) throws IOException
+	{
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the thread of the loop
+	 */
+	public void start()
+	{
+		this.isRunning = true;
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the loop and closes every channel registered with it
+	 */
+	public void stop()
+	{
+		this.isRunning = false;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Returns true if the calling thread is the thread of the loop
+	 * 
+	 * @return True if the calling thread is the thread of the loop
+	 */
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * Runs the task on the thread of the loop
+	 * 
+	 * Tasks are run in the order that they are submitted.
+	 * 
+	 * @param task The task to run
+	 */
+	public void execute(Runnable task)
+	{
+		this.tasks.add(task);
+		if (!this.inEventLoop())
+		{
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers the channel with the selector of the loop
+	 * 
+	 * This must be called from the thread of the loop.
+	 * 
+	 * @param channel The channel to register
+	 * @param operations The operations of interest
+	 * @param handler The handler of the channel
+	 * @return The selection key of the channel
+	 * @throws ClosedChannelException If the channel is closed
+	 */
+	public SelectionKey register(SelectableChannel channel, int operations, Handler handler)
+			throws ClosedChannelException
+	{
+		return channel.register(this.selector, operations, handler);
+	}
+
+	@Override
+	public void run()
+	{
+		while (this.isRunning)
+		{
+			try
+			{
+				this.selector.select();
+			}
+			catch (IOException e)
+			{
+				break;
+			}
+
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				Handler handler = (Handler) key.attachment();
+				try
+				{
+					if (key.isValid())
+					{
+						handler.handleSelection(key);
+					}
+				}
+				catch (IOException | RuntimeException e)
+				{
+					closeKey(key);
+				}
+			}
+
+			Runnable task;
+			while ((task = this.tasks.poll()) != null)
+			{
+				try
+				{
+					task.run();
+				}
+				catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		this.closeSelector();
+	}
+
+	private void closeSelector()
+	{
+		for (SelectionKey key : this.selector.keys())
+		{
+			closeKey(key);
+		}
+		try
+		{
+			this.selector.close();
+		}
+		catch (IOException e)
+		{
+
+		}
+	}
+
+	private static void closeKey(SelectionKey key)
+	{
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		}
+		catch (IOException e)
+		{
+
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of event loops.
+ * 
+ * Channels are assigned to the loops in a round robin order, so the channels
+ * are spread evenly across the loops.
+ */
+public class EventLoopGroup
+{
+	private EventLoop[] loops;
+	private AtomicInteger nextLoop;
+
+	/**
+	 * Creates and starts the loops of the group
+	 * 
+	 * @param loopCount The number of loops
+	 * @param name The name prepended to the name of each loop thread
+	 * @throws IOException If the selector of a loop cannot be opened
+	 */
+	public EventLoopGroup(int loopCount, String name) throws IOException
+	{
+		this.loops = new EventLoop[loopCount];
+		this.nextLoop = new AtomicInteger(0);
+		for (int index = 0; index < loopCount; ++index)
+		{
+			this.loops[index] = new EventLoop(name + "-" + index);
+			this.loops[index].start();
+		}
+	}
+
+	/**
+	 * Returns the loop that the next channel is assigned to
+	 * 
+	 * @return The loop that the next channel is assigned to
+	 */
+	public EventLoop next()
+	{
+		int index = Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length);
+		return this.loops[index];
+	}
+
+	/**
+	 * Stops every loop of the group
+	 */
+	public void shutdown()
+	{
+		for (EventLoop loop : this.loops)
+		{
+			loop.stop();
+		}
+	}
+}
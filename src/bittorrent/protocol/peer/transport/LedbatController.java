@@ -0,0 +1,180 @@
+package bittorrent.protocol.peer.transport;
+
+import java.util.Arrays;
+
+/**
+ * The congestion window of a UDP transport, controlled by the Low Extra Delay
+ * Background Transport (LEDBAT) algorithm.
+ * 
+ * The sender measures the one way delay of its packets from the timestamps
+ * echoed by the receiver. The lowest delay seen over the last few minutes is
+ * taken as the base delay of the path, and any delay above it is queueing
+ * delay. The window grows while the queueing delay is below TARGET_DELAY_US
+ * and shrinks in proportion once it is above, so the transport keeps the
+ * queues of a shared link short and yields to other traffic. The clocks of the
+ * two peers do not need to be synchronized, since their offset is part of both
+ * the base and the current delay.
+ * 
+ * This class is not thread safe and is only used by the thread of the endpoint.
+ */
+public class LedbatController
+{
+	// The queueing delay in microseconds that the controller aims for
+	public static final long TARGET_DELAY_US = 100000;
+
+	// The fraction of a segment the window grows by per round trip at zero delay
+	public static final double GAIN = 1.0;
+
+	// The number of one minute buckets of the base delay history
+	public static final int BASE_HISTORY = 10;
+
+	// The number of recent delay samples the current delay is the minimum of
+	public static final int CURRENT_FILTER = 4;
+
+	// The number of segments the window may exceed the bytes in flight by
+	public static final int ALLOWED_INCREASE = 2;
+
+	// The number of segments the window starts with and never goes below
+	public static final int MINIMUM_SEGMENTS = 2;
+
+	private static final long BASE_BUCKET_NS = 60000000000L;
+
+	private int segmentSize;
+	private double window;
+	private double slowStartThreshold;
+	private long maximumWindow;
+	private long[] baseDelays;
+	private int baseIndex;
+	private long baseBucketStart;
+	private long[] currentDelays;
+	private int currentIndex;
+	private int currentCount;
+
+	/**
+	 * Initializes the controller
+	 * 
+	 * @param segmentSize The size of a full packet in bytes
+	 * @param maximumWindow The largest window in bytes
+	 */
+	public LedbatController(int segmentSize, long maximumWindow)
+	{
+		this.segmentSize = segmentSize;
+		this.maximumWindow = maximumWindow;
+		this.window = MINIMUM_SEGMENTS * segmentSize;
+		this.slowStartThreshold = maximumWindow;
+		this.baseDelays = new long[BASE_HISTORY];
+		Arrays.fill(this.baseDelays, Long.MAX_VALUE);
+		this.baseIndex = 0;
+		this.baseBucketStart = System.nanoTime();
+		this.currentDelays = new long[CURRENT_FILTER];
+		this.currentIndex = 0;
+		this.currentCount = 0;
+	}
+
+	/**
+	 * Records a one way delay sample
+	 * 
+	 * @param delay The one way delay in microseconds, including the clock offset
+	 * between the peers
+	 */
+	public void addDelaySample(long delay)
+	{
+		long now = System.nanoTime();
+		if (now - this.baseBucketStart >= BASE_BUCKET_NS)
+		{
+			this.baseBucketStart = now;
+			this.baseIndex = (this.baseIndex + 1) % BASE_HISTORY;
+			this.baseDelays[this.baseIndex] = Long.MAX_VALUE;
+		}
+		this.baseDelays[this.baseIndex] = Math.min(this.baseDelays[this.baseIndex], delay);
+
+		this.currentDelays[this.currentIndex] = delay;
+		this.currentIndex = (this.currentIndex + 1) % CURRENT_FILTER;
+		this.currentCount = Math.min(this.currentCount + 1, CURRENT_FILTER);
+	}
+
+	/**
+	 * Returns the current queueing delay in microseconds
+	 * 
+	 * @return The current queueing delay in microseconds
+	 */
+	public long getQueueingDelay()
+	{
+		if (this.currentCount == 0)
+		{
+			return 0;
+		}
+		long base = Long.MAX_VALUE;
+		for (long delay : this.baseDelays)
+		{
+			base = Math.min(base, delay);
+		}
+		long current = Long.MAX_VALUE;
+		for (int index = 0; index < this.currentCount; ++index)
+		{
+			current = Math.min(current, this.currentDelays[index]);
+		}
+		return Math.max(0, current - base);
+	}
+
+	/**
+	 * Updates the window once bytes have been acknowledged
+	 * 
+	 * @param bytesAcked The number of bytes newly acknowledged
+	 * @param flightSize The number of bytes in flight before the acknowledgement
+	 */
+	public void onAck(long bytesAcked, long flightSize)
+	{
+		long queueingDelay = this.getQueueingDelay();
+		double offTarget = (TARGET_DELAY_US - queueingDelay) / (double) TARGET_DELAY_US;
+
+		// Double the window every round trip until the first loss or until half of
+		// the target delay is reached
+		if (this.window < this.slowStartThreshold && queueingDelay < TARGET_DELAY_US / 2)
+		{
+			this.window += bytesAcked;
+		}
+		else
+		{
+			if (this.window < this.slowStartThreshold)
+			{
+				this.slowStartThreshold = this.window;
+			}
+			this.window += GAIN * offTarget * bytesAcked * this.segmentSize / this.window;
+		}
+
+		// Do not grow the window beyond what the sender is actually using
+		this.window = Math.min(this.window, flightSize + bytesAcked + ALLOWED_INCREASE * this.segmentSize);
+		this.window = Math.min(Math.max(this.window, MINIMUM_SEGMENTS * this.segmentSize), this.maximumWindow);
+	}
+
+	/**
+	 * Halves the window after a lost packet
+	 * 
+	 * This should be called at most once per window of packets.
+	 */
+	public void onLoss()
+	{
+		this.window = Math.max(this.window / 2, MINIMUM_SEGMENTS * this.segmentSize);
+		this.slowStartThreshold = this.window;
+	}
+
+	/**
+	 * Collapses the window to a single packet after a retransmission timeout
+	 */
+	public void onTimeout()
+	{
+		this.slowStartThreshold = Math.max(this.window / 2, MINIMUM_SEGMENTS * this.segmentSize);
+		this.window = this.segmentSize;
+	}
+
+	/**
+	 * Returns the congestion window in bytes
+	 * 
+	 * @return The congestion window in bytes
+	 */
+	public long getWindow()
+	{
+		return (long) this.window;
+	}
+}
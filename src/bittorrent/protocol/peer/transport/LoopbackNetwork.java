@@ -0,0 +1,86 @@
+package bittorrent.protocol.peer.transport;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * The in-memory network shared by every loopback transport of the JVM.
+ * 
+ * The network maps each listening address to the handler of the listening
+ * provider, and owns the threads that deliver the messages of the loopback
+ * transports. The number of delivery threads is the number of available
+ * processors, no matter how many peers run in the JVM.
+ */
+public class LoopbackNetwork
+{
+	private static final ConcurrentHashMap<SocketAddress, Consumer<PeerTransport>> LISTENERS = new ConcurrentHashMap<SocketAddress, Consumer<PeerTransport>>();
+	private static final ThreadLocal<Boolean> IS_DELIVERY_THREAD = ThreadLocal.withInitial(() -> false);
+	private static final ExecutorService DELIVERY = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (runnable) ->
+			{
+				Thread thread = new Thread(() ->
+				{
+					IS_DELIVERY_THREAD.set(true);
+					runnable.run();
+				}, "Loopback delivery");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	/**
+	 * Registers the handler of a listening provider
+	 * 
+	 * @param address The address to listen on
+	 * @param acceptHandler The handler of the accepted transports
+	 * @return True if the address was not already in use
+	 */
+	static boolean bind(SocketAddress address, Consumer<PeerTransport> acceptHandler)
+	{
+		return LISTENERS.putIfAbsent(address, acceptHandler) == null;
+	}
+
+	/**
+	 * Removes the handler of a listening provider
+	 * 
+	 * @param address The address that is no longer listened on
+	 * @param acceptHandler The handler of the listening provider
+	 */
+	static void unbind(SocketAddress address, Consumer<PeerTransport> acceptHandler)
+	{
+		LISTENERS.remove(address, acceptHandler);
+	}
+
+	/**
+	 * Returns the handler listening on the address
+	 * 
+	 * @param address The address to look up
+	 * @return The handler listening on the address or null if there is none
+	 */
+	static Consumer<PeerTransport> lookup(SocketAddress address)
+	{
+		return LISTENERS.get(address);
+	}
+
+	/**
+	 * Runs the delivery task on one of the delivery threads
+	 * 
+	 * @param task The delivery task
+	 */
+	static void deliver(Runnable task)
+	{
+		DELIVERY.execute(task);
+	}
+
+	/**
+	 * Returns true if the calling thread is a delivery thread
+	 * 
+	 * @return True if the calling thread is a delivery thread
+	 */
+	static boolean isDeliveryThread()
+	{
+		return IS_DELIVERY_THREAD.get();
+	}
+}
@@ -0,0 +1,176 @@
+package bittorrent.protocol.peer.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import bittorrent.protocol.messages.ActualMessage;
+import bittorrent.protocol.peer.connection.PeerConnection;
+
+/**
+ * One end of an in-memory connection between two peers of the same JVM.
+ * 
+ * Messages are passed to the other end as objects, so they are not serialized.
+ * The content of a piece message is passed by reference and stored by the
+ * receiving connection without being copied, while the content of a piece
+ * chunk message is copied once into the piece being reassembled.
+ * 
+ * Each end has a bounded inbound queue that is drained by one delivery thread
+ * at a time, so the messages of a connection are handled in order by a single
+ * thread. A writer that is not a delivery thread waits while the queue of the
+ * other end is full. Delivery threads never wait, so two peers delivering to
+ * each other cannot deadlock.
+ * 
+ * Closing either end closes both, and the connection of the other end is torn
+ * down as if the other peer had closed a socket.
+ */
+public class LoopbackTransport implements PeerTransport
+{
+	// The number of messages the inbound queue holds before writers must wait
+	public static final int QUEUE_CAPACITY = 1024;
+
+	private LoopbackTransport remote;
+	private PeerConnection connection;
+	private ConcurrentLinkedQueue<Object> inbound;
+	private AtomicInteger inboundCount;
+	private AtomicBoolean isDeliveryScheduled;
+	private AtomicBoolean isOpen;
+
+	private LoopbackTransport(AtomicBoolean isOpen)
+	{
+		this.inbound = new ConcurrentLinkedQueue<Object>();
+		this.inboundCount = new AtomicInteger(0);
+		this.isDeliveryScheduled = new AtomicBoolean(false);
+		this.isOpen = isOpen;
+	}
+
+	/**
+	 * Creates the two connected ends of an in-memory connection
+	 * 
+	 * @return The two ends of the connection
+	 */
+	static LoopbackTransport[] createPair()
+	{
+		// Both ends share the open state, so closing either end closes both
+		AtomicBoolean isOpen = new AtomicBoolean(true);
+		LoopbackTransport first = new LoopbackTransport(isOpen);
+		LoopbackTransport second = new LoopbackTransport(isOpen);
+		first.remote = second;
+		second.remote = first;
+		return new LoopbackTransport[]
+		{
+				first, second
+		};
+	}
+
+	@Override
+	public void start(PeerConnection connection)
+	{
+		this.connection = connection;
+		if (!this.isOpen.get())
+		{
+			// The other end was closed before this end was started
+			LoopbackNetwork.deliver(connection::peerClosed);
+			return;
+		}
+		this.scheduleDelivery();
+	}
+
+	@Override
+	public void write(ByteBuffer message)
+	{
+		this.remote.offer(message);
+	}
+
+	@Override
+	public void write(ActualMessage message)
+	{
+		this.remote.offer(message);
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return this.isOpen.get();
+	}
+
+	@Override
+	public void close()
+	{
+		if (this.isOpen.compareAndSet(true, false))
+		{
+			// The other end finds the connection closed on a delivery thread, like the
+			// end of stream of a socket
+			PeerConnection remoteConnection = this.remote.connection;
+			if (remoteConnection != null)
+			{
+				LoopbackNetwork.deliver(remoteConnection::peerClosed);
+			}
+		}
+	}
+
+	private void offer(Object message)
+	{
+		if (!this.isOpen.get())
+		{
+			return;
+		}
+		if (!LoopbackNetwork.isDeliveryThread())
+		{
+			while (this.inboundCount.get() >= QUEUE_CAPACITY && this.isOpen.get())
+			{
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+			}
+		}
+		this.inboundCount.incrementAndGet();
+		this.inbound.add(message);
+		this.scheduleDelivery();
+	}
+
+	private void scheduleDelivery()
+	{
+		if (this.connection != null && this.isDeliveryScheduled.compareAndSet(false, true))
+		{
+			LoopbackNetwork.deliver(this::deliver);
+		}
+	}
+
+	private void deliver()
+	{
+		Object message;
+		while ((message = this.inbound.poll()) != null)
+		{
+			this.inboundCount.decrementAndGet();
+			if (!this.isOpen.get())
+			{
+				continue;
+			}
+			try
+			{
+				if (message instanceof ActualMessage)
+				{
+					this.connection.receive((ActualMessage) message);
+				}
+				else
+				{
+					// Raw bytes, such as the handshake, are always complete messages
+					this.connection.receive(((ByteBuffer) message).duplicate());
+				}
+			}
+			catch (RuntimeException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		this.isDeliveryScheduled.set(false);
+
+		// A message may have been queued after the queue was drained
+		if (!this.inbound.isEmpty())
+		{
+			this.scheduleDelivery();
+		}
+	}
+}
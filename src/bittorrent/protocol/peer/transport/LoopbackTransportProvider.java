@@ -0,0 +1,65 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Provides in-memory transports between the peers of the same JVM.
+ * 
+ * This transport is intended for PeerProcess.createNodeThreads, where every
+ * peer runs in a single JVM. It measures the protocol logic without the noise
+ * of kernel networking. Peers in other processes cannot be reached.
+ */
+public class LoopbackTransportProvider implements TransportProvider
+{
+	private List<SocketAddress> addresses;
+	private List<Consumer<PeerTransport>> handlers;
+
+	public LoopbackTransportProvider()
+	{
+		this.addresses = new CopyOnWriteArrayList<SocketAddress>();
+		this.handlers = new CopyOnWriteArrayList<Consumer<PeerTransport>>();
+	}
+
+	@Override
+	public void listen(SocketAddress address, Consumer<PeerTransport> acceptHandler) throws IOException
+	{
+		if (!LoopbackNetwork.bind(address, acceptHandler))
+		{
+			throw new BindException("Error: Address " + address + " is already in use.");
+		}
+		this.addresses.add(address);
+		this.handlers.add(acceptHandler);
+	}
+
+	@Override
+	public CompletableFuture<PeerTransport> connect(SocketAddress address)
+	{
+		CompletableFuture<PeerTransport> result = new CompletableFuture<PeerTransport>();
+		Consumer<PeerTransport> acceptHandler = LoopbackNetwork.lookup(address);
+		if (acceptHandler == null)
+		{
+			result.completeExceptionally(new ConnectException("Error: Nothing is listening on " + address + "."));
+			return result;
+		}
+		LoopbackTransport[] ends = LoopbackTransport.createPair();
+		acceptHandler.accept(ends[1]);
+		result.complete(ends[0]);
+		return result;
+	}
+
+	@Override
+	public void close()
+	{
+		for (int index = 0; index < this.addresses.size(); ++index)
+		{
+			LoopbackNetwork.unbind(this.addresses.get(index), this.handlers.get(index));
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import bittorrent.protocol.messages.ActualMessage;
+import bittorrent.protocol.peer.connection.PeerConnection;
+
+/**
+ * The channel that carries the messages of a peer connection.
+ * 
+ * A transport delivers the received bytes to PeerConnection.receive and writes
+ * the serialized messages of the connection. The message handling of the peer
+ * connection is independent of the transport that is used.
+ */
+public interface PeerTransport
+{
+	/**
+	 * Starts delivering the received bytes to the connection
+	 * 
+	 * @param connection The connection that handles the received bytes
+	 */
+	public void start(PeerConnection connection);
+
+	/**
+	 * Writes the message to the other peer
+	 * 
+	 * The message is written in the order that this function is called.
+	 * 
+	 * @param message The message to write
+	 */
+	public void write(ByteBuffer message);
+
+	/**
+	 * Writes the message to the other peer
+	 * 
+	 * By default the message is serialized and written as bytes. A transport that
+	 * carries message objects may pass the message itself.
+	 * 
+	 * @param message The message to write
+	 */
+	public default void write(ActualMessage message)
+	{
+		this.write(ByteBuffer.wrap(message.serialize()));
+	}
+
+	/**
+	 * Returns the number of written bytes that the transport has not yet passed to
+	 * the network
+	 * 
+	 * A transport whose writes block until the bytes are sent has no queued bytes.
+	 * 
+	 * @return The number of queued bytes
+	 */
+	public default long getQueuedBytes()
+	{
+		return 0;
+	}
+
+	/**
+	 * Sets the handler that is called whenever the queued bytes of the transport
+	 * have been passed to the network
+	 * 
+	 * A transport without queued bytes never calls the handler.
+	 * 
+	 * @param handler The handler, which may be called by the thread of the
+	 * transport
+	 */
+	public default void setDrainHandler(Runnable handler)
+	{
+
+	}
+
+	/**
+	 * Returns true if the transport is open
+	 * 
+	 * @return True if the transport is open
+	 */
+	public boolean isOpen();
+
+	/**
+	 * Closes the transport
+	 * 
+	 * @throws IOException If there is an error closing the transport
+	 */
+	public void close() throws IOException;
+}
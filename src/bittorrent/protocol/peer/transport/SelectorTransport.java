@@ -0,0 +1,244 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bittorrent.protocol.peer.connection.PeerConnection;
+
+/**
+ * A transport over a non-blocking socket channel that is pinned to an event
+ * loop.
+ * 
+ * Reads, writes and the message handlers of the connection all run on the
+ * thread of the loop. Writes from other threads are added to a concurrent queue
+ * and flushed by the loop, so writing never blocks the calling thread. The
+ * count of queued bytes and the flag that schedules a flush are atomic.
+ * 
+ * Pinning the transport does not make the connection single-threaded. The
+ * choking, request, idle and rate limiting processes, and the connections that
+ * broadcast have messages, still call into it from their own threads. The
+ * connection flags they read and write are volatile. The pending have
+ * messages, the recently uploaded pieces and the partially received pieces are
+ * also reached from those threads, so each is guarded by its own lock, as with
+ * the other transports.
+ */
+public class SelectorTransport implements PeerTransport, EventLoop.Handler
+{
+	private SocketChannel channel;
+	private EventLoop loop;
+	private SelectionKey key;
+	private PeerConnection connection;
+	private ByteBuffer readBuffer;
+	private ConcurrentLinkedQueue<ByteBuffer> outbound;
+	private AtomicBoolean isFlushScheduled;
+	private AtomicLong queuedBytes;
+	private volatile Runnable drainHandler;
+
+	/**
+	 * Creates a transport over a connected channel
+	 * 
+	 * @param channel The connected channel
+	 * @param loop The loop that handles the channel
+	 * @param bufferSize The size of the socket and receive buffers
+	 * @throws IOException If the channel cannot be configured
+	 */
+	public SelectorTransport(SocketChannel channel, EventLoop loop, int bufferSize) throws IOException
+	{
+		this.channel = channel;
+		this.loop = loop;
+		this.readBuffer = ByteBuffer.allocate(bufferSize);
+		this.outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.isFlushScheduled = new AtomicBoolean(false);
+		this.queuedBytes = new AtomicLong(0);
+		this.channel.configureBlocking(false);
+		configureSocket(channel, bufferSize);
+	}
+
+	/**
+	 * Sets the socket options used by the peer connections
+	 * 
+	 * Options that are not supported by the channel are ignored.
+	 * 
+	 * @param channel The channel to configure
+	 * @param bufferSize The size of the socket buffers
+	 */
+	static void configureSocket(SocketChannel channel, int bufferSize)
+	{
+		try
+		{
+			if (channel.supportedOptions().contains(StandardSocketOptions.SO_RCVBUF))
+			{
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
+			}
+			if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEADDR))
+			{
+				channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void start(PeerConnection connection)
+	{
+		this.connection = connection;
+		this.loop.execute(() ->
+		{
+			try
+			{
+				this.key = this.loop.register(this.channel, SelectionKey.OP_READ, this);
+				this.flush();
+			}
+			catch (IOException e)
+			{
+				this.closeQuietly();
+			}
+		});
+	}
+
+	@Override
+	public void write(ByteBuffer message)
+	{
+		this.queuedBytes.addAndGet(message.remaining());
+		this.outbound.add(message);
+		if (this.loop.inEventLoop() && this.key != null)
+		{
+			this.flush();
+		}
+		else if (this.isFlushScheduled.compareAndSet(false, true))
+		{
+			this.loop.execute(() ->
+			{
+				this.isFlushScheduled.set(false);
+				this.flush();
+			});
+		}
+	}
+
+	@Override
+	public long getQueuedBytes()
+	{
+		return this.queuedBytes.get();
+	}
+
+	@Override
+	public void setDrainHandler(Runnable handler)
+	{
+		this.drainHandler = handler;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return this.channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.channel.close();
+	}
+
+	@Override
+	public void handleSelection(SelectionKey key) throws IOException
+	{
+		if (key.isReadable())
+		{
+			this.read();
+		}
+		if (key.isValid() && key.isWritable())
+		{
+			this.flush();
+		}
+	}
+
+	private void read() throws IOException
+	{
+		int count;
+		try
+		{
+			count = this.channel.read(this.readBuffer);
+		}
+		catch (IOException e)
+		{
+			// The other peer reset the connection
+			count = -1;
+		}
+		if (count < 0)
+		{
+			// The other peer closed the connection
+			this.closeQuietly();
+			this.connection.peerClosed();
+			return;
+		}
+		this.readBuffer.flip();
+		try
+		{
+			this.connection.receive(this.readBuffer);
+		}
+		finally
+		{
+			this.readBuffer.compact();
+		}
+	}
+
+	private void flush()
+	{
+		if (this.key == null || !this.key.isValid())
+		{
+			return;
+		}
+		try
+		{
+			ByteBuffer message;
+			while ((message = this.outbound.peek()) != null)
+			{
+				int count = this.channel.write(message);
+				this.queuedBytes.addAndGet(-count);
+				if (message.hasRemaining())
+				{
+					// Wait until the socket can accept more bytes
+					this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				this.outbound.poll();
+			}
+			this.key.interestOps(SelectionKey.OP_READ);
+		}
+		catch (IOException e)
+		{
+			// The other peer reset the connection
+			this.closeQuietly();
+			this.connection.peerClosed();
+			return;
+		}
+
+		Runnable handler = this.drainHandler;
+		if (handler != null)
+		{
+			handler.run();
+		}
+	}
+
+	private void closeQuietly()
+	{
+		try
+		{
+			this.channel.close();
+		}
+		catch (IOException e)
+		{
+
+		}
+	}
+}
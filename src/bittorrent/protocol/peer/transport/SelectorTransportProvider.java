@@ -0,0 +1,196 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Provides transports over non-blocking socket channels that are spread across
+ * a group of event loops.
+ * 
+ * The group has one loop per available processor. Each transport is pinned to
+ * a single loop for its lifetime.
+ * 
+ * Both internet and Unix domain socket addresses are supported. A Unix domain
+ * socket avoids the TCP stack for peers that run on the same host.
+ */
+public class SelectorTransportProvider implements TransportProvider
+{
+	private EventLoopGroup group;
+	private List<ServerSocketChannel> serverChannels;
+	private List<UnixDomainSocketAddress> socketFiles;
+	private int bufferSize;
+
+	/**
+	 * Creates the provider and starts its event loops
+	 * 
+	 * @param name The name prepended to the name of each loop thread
+	 * @param bufferSize The size of the socket and receive buffers
+	 * @throws IOException If the event loops cannot be created
+	 */
+	public SelectorTransportProvider(String name, int bufferSize) throws IOException
+	{
+		this.group = new EventLoopGroup(Runtime.getRuntime().availableProcessors(), name);
+		this.bufferSize = bufferSize;
+		this.serverChannels = new CopyOnWriteArrayList<ServerSocketChannel>();
+		this.socketFiles = new CopyOnWriteArrayList<UnixDomainSocketAddress>();
+	}
+
+	@Override
+	public void listen(SocketAddress address, Consumer<PeerTransport> acceptHandler) throws IOException
+	{
+		ServerSocketChannel server;
+		if (address instanceof UnixDomainSocketAddress)
+		{
+			// Remove the socket file left behind by a previous run
+			UnixDomainSocketAddress socketAddress = (UnixDomainSocketAddress) address;
+			Files.deleteIfExists(socketAddress.getPath());
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(address);
+			this.socketFiles.add(socketAddress);
+		}
+		else
+		{
+			server = ServerSocketChannel.open();
+			server.bind(address);
+		}
+		server.configureBlocking(false);
+		this.serverChannels.add(server);
+
+		EventLoop acceptLoop = this.group.next();
+		acceptLoop.execute(() ->
+		{
+			try
+			{
+				acceptLoop.register(server, SelectionKey.OP_ACCEPT, (key) ->
+				{
+					// Accept every pending connection and assign each to the next loop
+					SocketChannel channel;
+					while ((channel = server.accept()) != null)
+					{
+						acceptHandler.accept(this.createTransport(channel));
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<PeerTransport> connect(SocketAddress address)
+	{
+		CompletableFuture<PeerTransport> result = new CompletableFuture<PeerTransport>();
+		SocketChannel channel;
+		try
+		{
+			if (address instanceof UnixDomainSocketAddress)
+			{
+				channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+			}
+			else
+			{
+				channel = SocketChannel.open();
+			}
+			channel.configureBlocking(false);
+		}
+		catch (IOException e)
+		{
+			result.completeExceptionally(e);
+			return result;
+		}
+		EventLoop loop = this.group.next();
+		loop.execute(() ->
+		{
+			try
+			{
+				if (channel.connect(address))
+				{
+					result.complete(new SelectorTransport(channel, loop, this.bufferSize));
+					return;
+				}
+				loop.register(channel, SelectionKey.OP_CONNECT, (key) ->
+				{
+					try
+					{
+						if (channel.finishConnect())
+						{
+							// The transport registers the channel again for reading
+							key.interestOps(0);
+							result.complete(new SelectorTransport(channel, loop, this.bufferSize));
+						}
+					}
+					catch (IOException e)
+					{
+						result.completeExceptionally(e);
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				result.completeExceptionally(e);
+			}
+		});
+		// Close the channel if the attempt failed or was abandoned by the caller
+		result.whenComplete((transport, exception) ->
+		{
+			if (exception != null)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch (IOException e)
+				{
+
+				}
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public void close()
+	{
+		for (ServerSocketChannel server : this.serverChannels)
+		{
+			try
+			{
+				server.close();
+			}
+			catch (IOException e)
+			{
+
+			}
+		}
+		for (UnixDomainSocketAddress socketAddress : this.socketFiles)
+		{
+			try
+			{
+				Files.deleteIfExists(socketAddress.getPath());
+			}
+			catch (IOException e)
+			{
+
+			}
+		}
+		this.group.shutdown();
+	}
+
+	private SelectorTransport createTransport(SocketChannel channel) throws IOException
+	{
+		// Pin the channel to the next loop of the group
+		return new SelectorTransport(channel, this.group.next(), this.bufferSize);
+	}
+}
@@ -0,0 +1,40 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Creates the transports of a peer process.
+ * 
+ * A provider accepts the connections from other peers and connects with other
+ * peers. Each established connection is returned as a transport.
+ */
+public interface TransportProvider
+{
+	/**
+	 * Accepts connections on the provided address
+	 * 
+	 * @param address The local address to accept connections on
+	 * @param acceptHandler The handler that is called with each accepted transport
+	 * @throws IOException If the address cannot be bound
+	 */
+	public void listen(SocketAddress address, Consumer<PeerTransport> acceptHandler) throws IOException;
+
+	/**
+	 * Connects with the provided address
+	 * 
+	 * If the returned future is completed by the caller before the connection is
+	 * established, for example after a timeout, the connection attempt is closed.
+	 * 
+	 * @param address The address of the other peer
+	 * @return A future that completes with the connected transport
+	 */
+	public CompletableFuture<PeerTransport> connect(SocketAddress address);
+
+	/**
+	 * Stops accepting connections and releases the resources of the provider
+	 */
+	public void close();
+}
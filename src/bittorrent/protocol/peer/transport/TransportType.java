@@ -0,0 +1,51 @@
+package bittorrent.protocol.peer.transport;
+
+/**
+ * The types of transports that a peer process can use
+ */
+public enum TransportType
+{
+	// @formatter:off
+	ASYNCHRONOUS("async"), 
+	SELECTOR("selector"),
+	LOOPBACK("loopback"),
+	UTP("utp");
+	// @formatter:on
+
+	private String format;
+
+	TransportType(String format)
+	{
+		this.format = format;
+	}
+
+	/**
+	 * Parses the transport type
+	 * 
+	 * @param word The transport type as shown in the common config file
+	 * @return The transport type or null if the word is not a transport type
+	 */
+	public static TransportType parse(String word)
+	{
+		TransportType transportType = null;
+		for (TransportType type : TransportType.values())
+		{
+			if (type.getFormat().equals(word))
+			{
+				transportType = type;
+				break;
+			}
+		}
+		return transportType;
+	}
+
+	/**
+	 * Returns the format of the transport type as shown in the common config file
+	 * 
+	 * @return The format of the transport type as shown in the common config file
+	 */
+	public String getFormat()
+	{
+		return this.format;
+	}
+}
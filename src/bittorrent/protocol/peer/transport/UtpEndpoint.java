@@ -0,0 +1,369 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A UDP socket that carries the packets of many UDP transports.
+ * 
+ * The endpoint is driven by a single thread, which reads the received
+ * datagrams, dispatches them to the transport of their connection and then
+ * gives every transport the chance to send, retransmit and acknowledge. All of
+ * the state of the transports is only ever touched by this thread. The thread
+ * sleeps until a datagram arrives, a transport is written to or the earliest
+ * pacing or retransmission deadline of a transport.
+ */
+public class UtpEndpoint implements Runnable
+{
+	// The size of the socket buffers of the channel
+	public static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private Thread thread;
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private HashMap<ConnectionKey, UtpTransport> transports;
+	private Consumer<PeerTransport> acceptHandler;
+	private EmulatedLink link;
+	private ByteBuffer receiveBuffer;
+	private ByteBuffer sendBuffer;
+	private int bufferSize;
+	private Random random;
+	private volatile boolean isRunning;
+
+	/**
+	 * Identifies a connection by the address of the other peer and the ID that
+	 * the other peer sends with its packets
+	 */
+	private static class ConnectionKey
+	{
+		private SocketAddress address;
+		private int connectionID;
+
+		private ConnectionKey(SocketAddress address, int connectionID)
+		{
+			this.address = address;
+			this.connectionID = connectionID & 0xFFFF;
+		}
+
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof ConnectionKey))
+			{
+				return false;
+			}
+			ConnectionKey key = (ConnectionKey) other;
+			return this.connectionID == key.connectionID && this.address.equals(key.address);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(this.address, this.connectionID);
+		}
+	}
+
+	/**
+	 * Creates an endpoint bound to the provided address
+	 * 
+	 * @param name The name of the thread of the endpoint
+	 * @param address The local address to bind, or null for any address
+	 * @param bufferSize The size of the receive buffer of each transport
+	 * @param link The emulated link that outgoing datagrams pass through, or null
+	 * to send them directly
+	 * @throws IOException If the channel cannot be opened or bound
+	 */
+	public UtpEndpoint(String name, SocketAddress address, int bufferSize, EmulatedLink link) throws IOException
+	{
+		this.channel = DatagramChannel.open();
+		this.channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+		this.channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+		this.channel.bind(address);
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.transports = new HashMap<ConnectionKey, UtpTransport>();
+		this.link = link;
+		this.receiveBuffer = ByteBuffer.allocateDirect(65536);
+		this.sendBuffer = ByteBuffer.allocateDirect(65536);
+		this.bufferSize = bufferSize;
+		this.random = new Random();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Accepts the connections of other peers
+	 * 
+	 * @param acceptHandler The handler that is called with each accepted transport
+	 */
+	public void setAcceptHandler(Consumer<PeerTransport> acceptHandler)
+	{
+		this.execute(() -> this.acceptHandler = acceptHandler);
+	}
+
+	/**
+	 * Starts the thread of the endpoint
+	 */
+	public void start()
+	{
+		this.isRunning = true;
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the endpoint and closes every transport
+	 */
+	public void close()
+	{
+		this.isRunning = false;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the thread of the endpoint
+	 * 
+	 * @param task The task to run
+	 */
+	public void execute(Runnable task)
+	{
+		this.tasks.add(task);
+		this.wakeup();
+	}
+
+	/**
+	 * Wakes the thread of the endpoint so that pending writes are sent
+	 */
+	public void wakeup()
+	{
+		if (Thread.currentThread() != this.thread)
+		{
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Connects with the endpoint at the provided address
+	 * 
+	 * @param address The address of the endpoint of the other peer
+	 * @return A future that completes with the transport once the other peer has
+	 * answered, or exceptionally if it does not answer
+	 */
+	public CompletableFuture<PeerTransport> connect(SocketAddress address)
+	{
+		CompletableFuture<PeerTransport> result = new CompletableFuture<PeerTransport>();
+		this.execute(() ->
+		{
+			if (result.isDone())
+			{
+				return;
+			}
+			// The other peer sends with the ID that this peer receives on
+			int receiveID;
+			do
+			{
+				receiveID = this.random.nextInt(0x10000);
+			}
+			while (this.transports.containsKey(new ConnectionKey(address, receiveID)));
+			UtpTransport transport = new UtpTransport(this, address, receiveID, receiveID + 1, this.bufferSize);
+			this.transports.put(new ConnectionKey(address, receiveID), transport);
+			transport.connect(result, System.nanoTime());
+		});
+		return result;
+	}
+
+	/**
+	 * Sends a packet to the provided address
+	 * 
+	 * This must be called from the thread of the endpoint.
+	 * 
+	 * @param packet The packet to send
+	 * @param address The address to send the packet to
+	 */
+	void send(UtpPacket packet, SocketAddress address)
+	{
+		packet.setTimestamp(getMicroseconds());
+		this.sendBuffer.clear();
+		packet.writeTo(this.sendBuffer);
+		this.sendBuffer.flip();
+		if (this.link != null)
+		{
+			this.link.enqueue(this.sendBuffer, address, System.nanoTime());
+			return;
+		}
+		try
+		{
+			// A datagram that does not fit in the socket buffer is lost
+			this.channel.send(this.sendBuffer, address);
+		}
+		catch (IOException e)
+		{
+
+		}
+	}
+
+	/**
+	 * Removes a closed transport
+	 * 
+	 * @param transport The closed transport
+	 */
+	void remove(UtpTransport transport)
+	{
+		this.transports.remove(new ConnectionKey(transport.getAddress(), transport.getReceiveID()), transport);
+	}
+
+	/**
+	 * Returns the current time in microseconds, truncated to 32 bits
+	 * 
+	 * @return The current time in microseconds
+	 */
+	static int getMicroseconds()
+	{
+		return (int) (System.nanoTime() / 1000);
+	}
+
+	@Override
+	public void run()
+	{
+		while (this.isRunning)
+		{
+			try
+			{
+				long now = System.nanoTime();
+				long deadline = this.link != null ? this.link.getNextDeliveryTime() : Long.MAX_VALUE;
+				for (UtpTransport transport : this.transports.values())
+				{
+					deadline = Math.min(deadline, transport.getDeadline());
+				}
+				if (!this.tasks.isEmpty() || (deadline != Long.MAX_VALUE && deadline - now <= 0))
+				{
+					this.selector.selectNow();
+				}
+				else if (deadline == Long.MAX_VALUE)
+				{
+					this.selector.select();
+				}
+				else
+				{
+					this.selector.select(Math.max(1, (deadline - now + 999999) / 1000000));
+				}
+				this.selector.selectedKeys().clear();
+
+				this.receive();
+
+				Runnable task;
+				while ((task = this.tasks.poll()) != null)
+				{
+					task.run();
+				}
+
+				now = System.nanoTime();
+				for (UtpTransport transport : new ArrayList<UtpTransport>(this.transports.values()))
+				{
+					transport.onTick(now);
+				}
+				this.sendDueDatagrams(now);
+			}
+			catch (IOException e)
+			{
+				break;
+			}
+			catch (RuntimeException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		for (UtpTransport transport : new ArrayList<UtpTransport>(this.transports.values()))
+		{
+			transport.destroy();
+		}
+		try
+		{
+			this.selector.close();
+			this.channel.close();
+		}
+		catch (IOException e)
+		{
+
+		}
+	}
+
+	private void receive() throws IOException
+	{
+		SocketAddress source;
+		while ((source = this.channel.receive(this.receiveBuffer)) != null)
+		{
+			this.receiveBuffer.flip();
+			UtpPacket packet = UtpPacket.parse(this.receiveBuffer);
+			this.receiveBuffer.clear();
+			if (packet == null)
+			{
+				continue;
+			}
+
+			long now = System.nanoTime();
+			if (packet.getType() == UtpPacket.ST_SYN)
+			{
+				// The other peer receives on the ID of the SYN and sends on the next ID
+				ConnectionKey key = new ConnectionKey(source, packet.getConnectionID() + 1);
+				UtpTransport transport = this.transports.get(key);
+				if (transport != null)
+				{
+					transport.onPacket(packet, now);
+				}
+				else if (this.acceptHandler != null)
+				{
+					transport = new UtpTransport(this, source, packet.getConnectionID() + 1,
+							packet.getConnectionID(), this.bufferSize);
+					this.transports.put(key, transport);
+					transport.accept(packet, now);
+					this.acceptHandler.accept(transport);
+				}
+			}
+			else
+			{
+				UtpTransport transport = this.transports.get(new ConnectionKey(source, packet.getConnectionID()));
+				if (transport != null)
+				{
+					transport.onPacket(packet, now);
+				}
+			}
+		}
+	}
+
+	private void sendDueDatagrams(long now)
+	{
+		if (this.link == null)
+		{
+			return;
+		}
+		while (this.link.isDue(now))
+		{
+			try
+			{
+				this.channel.send(this.link.peekData(), this.link.peekTarget());
+			}
+			catch (IOException e)
+			{
+
+			}
+			this.link.remove();
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package bittorrent.protocol.peer.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A packet of the UDP transport.
+ * 
+ * The header follows the layout of the micro transport protocol (uTP):
+ * 
+ * <pre>
+ * | type (4 bits) | version (4 bits) | extension (1 byte) | connection ID (2 bytes) |
+ * | timestamp in microseconds (4 bytes)                                           |
+ * | timestamp difference in microseconds (4 bytes)                                |
+ * | window size (4 bytes)                                                         |
+ * | sequence number (2 bytes)             | acknowledgement number (2 bytes)      |
+ * </pre>
+ * 
+ * The header may be followed by a selective acknowledgement extension, whose
+ * bitmask marks the received packets after acknowledgement number + 1, and then
+ * by the payload.
+ */
+public class UtpPacket
+{
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 20;
+
+	// The packet types
+	public static final int ST_DATA = 0;
+	public static final int ST_FIN = 1;
+	public static final int ST_STATE = 2;
+	public static final int ST_RESET = 3;
+	public static final int ST_SYN = 4;
+
+	// The extension types
+	public static final int EXTENSION_NONE = 0;
+	public static final int EXTENSION_SELECTIVE_ACK = 1;
+
+	private int type;
+	private int connectionID;
+	private int timestamp;
+	private int timestampDifference;
+	private int windowSize;
+	private int sequenceNumber;
+	private int acknowledgementNumber;
+	private byte[] selectiveAck;
+	private byte[] payload;
+
+	/**
+	 * Creates a packet without a payload
+	 * 
+	 * @param type The type of the packet
+	 * @param connectionID The connection ID of the packet
+	 * @param sequenceNumber The sequence number of the packet
+	 * @param acknowledgementNumber The acknowledgement number of the packet
+	 */
+	public UtpPacket(int type, int connectionID, int sequenceNumber, int acknowledgementNumber)
+	{
+		this.type = type;
+		this.connectionID = connectionID & 0xFFFF;
+		this.sequenceNumber = sequenceNumber & 0xFFFF;
+		this.acknowledgementNumber = acknowledgementNumber & 0xFFFF;
+		this.payload = new byte[0];
+	}
+
+	/**
+	 * Parses a packet from the buffer
+	 * 
+	 * @param buffer The received datagram
+	 * @return The packet or null if the datagram is not a valid packet
+	 */
+	public static UtpPacket parse(ByteBuffer buffer)
+	{
+		if (buffer.remaining() < HEADER_SIZE)
+		{
+			return null;
+		}
+		int typeAndVersion = buffer.get() & 0xFF;
+		int type = typeAndVersion >> 4;
+		if ((typeAndVersion & 0xF) != VERSION || type > ST_SYN)
+		{
+			return null;
+		}
+		int extension = buffer.get() & 0xFF;
+		UtpPacket packet = new UtpPacket(type, buffer.getShort(), 0, 0);
+		packet.timestamp = buffer.getInt();
+		packet.timestampDifference = buffer.getInt();
+		packet.windowSize = buffer.getInt();
+		packet.sequenceNumber = buffer.getShort() & 0xFFFF;
+		packet.acknowledgementNumber = buffer.getShort() & 0xFFFF;
+
+		// Read the extensions, keeping the selective acknowledgement
+		while (extension != EXTENSION_NONE)
+		{
+			if (buffer.remaining() < 2)
+			{
+				return null;
+			}
+			int nextExtension = buffer.get() & 0xFF;
+			int length = buffer.get() & 0xFF;
+			if (buffer.remaining() < length)
+			{
+				return null;
+			}
+			byte[] data = new byte[length];
+			buffer.get(data);
+			if (extension == EXTENSION_SELECTIVE_ACK)
+			{
+				packet.selectiveAck = data;
+			}
+			extension = nextExtension;
+		}
+
+		packet.payload = new byte[buffer.remaining()];
+		buffer.get(packet.payload);
+		return packet;
+	}
+
+	/**
+	 * Writes the packet into the buffer
+	 * 
+	 * @param buffer The buffer to write into
+	 */
+	public void writeTo(ByteBuffer buffer)
+	{
+		buffer.put((byte) ((this.type << 4) | VERSION));
+		buffer.put((byte) (this.selectiveAck != null ? EXTENSION_SELECTIVE_ACK : EXTENSION_NONE));
+		buffer.putShort((short) this.connectionID);
+		buffer.putInt(this.timestamp);
+		buffer.putInt(this.timestampDifference);
+		buffer.putInt(this.windowSize);
+		buffer.putShort((short) this.sequenceNumber);
+		buffer.putShort((short) this.acknowledgementNumber);
+		if (this.selectiveAck != null)
+		{
+			buffer.put((byte) EXTENSION_NONE);
+			buffer.put((byte) this.selectiveAck.length);
+			buffer.put(this.selectiveAck);
+		}
+		buffer.put(this.payload);
+	}
+
+	/**
+	 * Returns the size of the packet in bytes
+	 * 
+	 * @return The size of the packet in bytes
+	 */
+	public int getSize()
+	{
+		int size = HEADER_SIZE + this.payload.length;
+		if (this.selectiveAck != null)
+		{
+			size += 2 + this.selectiveAck.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the signed distance from the second to the first sequence number
+	 * 
+	 * Sequence numbers are 16 bits and wrap around, so the distance is only
+	 * meaningful for sequence numbers less than half the range apart.
+	 * 
+	 * @param first The first sequence number
+	 * @param second The second sequence number
+	 * @return The signed distance from the second to the first sequence number
+	 */
+	public static int compareSequence(int first, int second)
+	{
+		return (short) (first - second);
+	}
+
+	/**
+	 * Returns the type of the packet
+	 * 
+	 * @return The type of the packet
+	 */
+	public int getType()
+	{
+		return this.type;
+	}
+
+	/**
+	 * Returns the connection ID of the packet
+	 * 
+	 * @return The connection ID of the packet
+	 */
+	public int getConnectionID()
+	{
+		return this.connectionID;
+	}
+
+	/**
+	 * Returns the send time of the packet in microseconds
+	 * 
+	 * @return The send time of the packet in microseconds
+	 */
+	public int getTimestamp()
+	{
+		return this.timestamp;
+	}
+
+	/**
+	 * Sets the send time of the packet in microseconds
+	 * 
+	 * @param timestamp The send time of the packet in microseconds
+	 */
+	public void setTimestamp(int timestamp)
+	{
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Returns the one way delay measured by the sender in microseconds
+	 * 
+	 * @return The one way delay measured by the sender in microseconds
+	 */
+	public int getTimestampDifference()
+	{
+		return this.timestampDifference;
+	}
+
+	/**
+	 * Sets the one way delay measured by the sender in microseconds
+	 * 
+	 * @param timestampDifference The one way delay measured by the sender in microseconds
+	 */
+	public void setTimestampDifference(int timestampDifference)
+	{
+		this.timestampDifference = timestampDifference;
+	}
+
+	/**
+	 * Returns the receive window of the sender in bytes
+	 * 
+	 * @return The receive window of the sender in bytes
+	 */
+	public int getWindowSize()
+	{
+		return this.windowSize;
+	}
+
+	/**
+	 * Sets the receive window of the sender in bytes
+	 * 
+	 * @param windowSize The receive window of the sender in bytes
+	 */
+	public void setWindowSize(int windowSize)
+	{
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Returns the sequence number of the packet
+	 * 
+	 * @return The sequence number of the packet
+	 */
+	public int getSequenceNumber()
+	{
+		return this.sequenceNumber;
+	}
+
+	/**
+	 * Returns the last sequence number received in order by the sender
+	 * 
+	 * @return The last sequence number received in order by the sender
+	 */
+	public int getAcknowledgementNumber()
+	{
+		return this.acknowledgementNumber;
+	}
+
+	/**
+	 * Sets the last sequence number received in order by the sender
+	 * 
+	 * @param acknowledgementNumber The last sequence number received in order by the sender
+	 */
+	public void setAcknowledgementNumber(int acknowledgementNumber)
+	{
+		this.acknowledgementNumber = acknowledgementNumber & 0xFFFF;
+	}
+
+	/**
+	 * Returns the selective acknowledgement bitmask or null if there is none
+	 * 
+	 * @return The selective acknowledgement bitmask or null if there is none
+	 */
+	public byte[] getSelectiveAck()
+	{
+		return this.selectiveAck;
+	}
+
+	/**
+	 * Sets the selective acknowledgement bitmask or null if there is none
+	 * 
+	 * @param selectiveAck The selective acknowledgement bitmask or null if there is none
+	 */
+	public void setSelectiveAck(byte[] selectiveAck)
+	{
+		this.selectiveAck = selectiveAck;
+	}
+
+	/**
+	 * Returns the payload of the packet
+	 * 
+	 * @return The payload of the packet
+	 */
+	public byte[] getPayload()
+	{
+		return this.payload;
+	}
+
+	/**
+	 * Sets the payload of the packet
+	 * 
+	 * @param payload The payload of the packet
+	 */
+	public void setPayload(byte[] payload)
+	{
+		this.payload = payload;
+	}
+}
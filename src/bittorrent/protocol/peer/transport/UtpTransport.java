@@ -0,0 +1,743 @@
+package bittorrent.protocol.peer.transport;
+
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bittorrent.protocol.peer.connection.PeerConnection;
+
+/**
+ * A reliable, ordered byte stream over UDP in the style of the micro transport
+ * protocol (uTP).
+ * 
+ * The written messages are split into packets of at most PACKET_SIZE bytes.
+ * The number of bytes in flight is limited by a LEDBAT congestion window, so
+ * the transport backs off as soon as it adds queueing delay to the path and
+ * leaves the link to interactive traffic. Packets are paced across the round
+ * trip time instead of being sent in bursts. The receiver acknowledges the
+ * packets after the first gap with a selective acknowledgement, and a packet is
+ * retransmitted once DUPLICATE_ACK_THRESHOLD later packets have been received
+ * or its retransmission timeout expires.
+ * 
+ * Every function except write, start, isOpen and close must be called from the
+ * thread of the endpoint.
+ */
+public class UtpTransport implements PeerTransport
+{
+	// The largest datagram sent by the transport
+	public static final int PACKET_SIZE = 1400;
+
+	// The largest payload of a data packet
+	public static final int MAX_PAYLOAD = PACKET_SIZE - UtpPacket.HEADER_SIZE;
+
+	// The largest window in bytes, which is also the advertised receive window
+	public static final int MAX_WINDOW = 1024 * 1024;
+
+	// The number of packets after the next expected packet that are buffered
+	public static final int REORDER_LIMIT = 256;
+
+	// The number of later packets that must be acknowledged before a packet is
+	// considered lost
+	public static final int DUPLICATE_ACK_THRESHOLD = 3;
+
+	// The number of SYN packets sent before the connection attempt fails
+	public static final int SYN_ATTEMPTS = 3;
+	public static final long SYN_TIMEOUT_MS = 250;
+
+	// The bounds of the retransmission timeout
+	public static final long MIN_TIMEOUT_MS = 500;
+	public static final long MAX_TIMEOUT_MS = 8000;
+
+	// The number of consecutive timeouts before the other peer is considered dead
+	public static final int MAX_TIMEOUTS = 6;
+
+	// The amount of time in nanoseconds that packets may be sent ahead of the pace
+	public static final long PACING_SLACK_NS = 1000000;
+
+	private enum State
+	{
+		SYN_SENT, CONNECTED, CLOSED
+	}
+
+	/**
+	 * A packet that has been sent and is waiting to be acknowledged
+	 */
+	private static class OutgoingPacket
+	{
+		private UtpPacket packet;
+		private int size;
+		private long sentTime;
+		private int transmissions;
+		private boolean isAcked;
+		private boolean needsResend;
+
+		private OutgoingPacket(UtpPacket packet)
+		{
+			this.packet = packet;
+			this.size = packet.getSize();
+		}
+	}
+
+	private UtpEndpoint endpoint;
+	private SocketAddress address;
+	private int receiveID;
+	private int sendID;
+	private volatile PeerConnection connection;
+	private volatile boolean isOpen;
+	private ConcurrentLinkedQueue<ByteBuffer> outbound;
+	private AtomicLong queuedBytes;
+	private volatile Runnable drainHandler;
+
+	private State state;
+	private CompletableFuture<PeerTransport> connectFuture;
+	private ByteBuffer receiveBuffer;
+	private int sequenceNumber;
+	private int ackNumber;
+	private ArrayDeque<OutgoingPacket> outstanding;
+	private long bytesInFlight;
+	private HashMap<Integer, UtpPacket> reorderBuffer;
+	private LedbatController controller;
+	private long peerWindow;
+	private int replyMicroseconds;
+	private long smoothedRtt;
+	private long rttVariance;
+	private long timeout;
+	private long timeoutDeadline;
+	private int timeoutCount;
+	private int synAttempts;
+	private int recoverySequence;
+	private long nextSendTime;
+	private boolean ackNeeded;
+	private boolean isFinSent;
+	private boolean isFinReceived;
+
+	/**
+	 * Creates a transport of the endpoint
+	 * 
+	 * @param endpoint The endpoint that carries the packets
+	 * @param address The address of the endpoint of the other peer
+	 * @param receiveID The connection ID of the received packets
+	 * @param sendID The connection ID of the sent packets
+	 * @param bufferSize The size of the receive buffer
+	 */
+	UtpTransport(UtpEndpoint endpoint, SocketAddress address, int receiveID, int sendID, int bufferSize)
+	{
+		this.endpoint = endpoint;
+		this.address = address;
+		this.receiveID = receiveID & 0xFFFF;
+		this.sendID = sendID & 0xFFFF;
+		this.isOpen = true;
+		this.outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.queuedBytes = new AtomicLong(0);
+		this.receiveBuffer = ByteBuffer.allocate(bufferSize);
+		this.outstanding = new ArrayDeque<OutgoingPacket>();
+		this.bytesInFlight = 0;
+		this.reorderBuffer = new HashMap<Integer, UtpPacket>();
+		this.controller = new LedbatController(PACKET_SIZE, MAX_WINDOW);
+		this.peerWindow = MAX_WINDOW;
+		this.timeout = 1000 * 1000000L;
+	}
+
+	@Override
+	public void start(PeerConnection connection)
+	{
+		this.connection = connection;
+		// Deliver the bytes received before the connection was started
+		this.endpoint.execute(this::deliverReceived);
+	}
+
+	@Override
+	public void write(ByteBuffer message)
+	{
+		if (this.isOpen)
+		{
+			this.queuedBytes.addAndGet(message.remaining());
+			this.outbound.add(message);
+			this.endpoint.wakeup();
+		}
+	}
+
+	@Override
+	public long getQueuedBytes()
+	{
+		return this.queuedBytes.get();
+	}
+
+	@Override
+	public void setDrainHandler(Runnable handler)
+	{
+		this.drainHandler = handler;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return this.isOpen;
+	}
+
+	@Override
+	public void close()
+	{
+		// The connection is closed with a FIN once the pending writes are sent
+		this.isOpen = false;
+		this.endpoint.wakeup();
+	}
+
+	/**
+	 * Returns the address of the endpoint of the other peer
+	 * 
+	 * @return The address of the endpoint of the other peer
+	 */
+	SocketAddress getAddress()
+	{
+		return this.address;
+	}
+
+	/**
+	 * Returns the connection ID of the received packets
+	 * 
+	 * @return The connection ID of the received packets
+	 */
+	int getReceiveID()
+	{
+		return this.receiveID;
+	}
+
+	/**
+	 * Starts the connection by sending a SYN to the other peer
+	 * 
+	 * @param future The future completed once the other peer has answered
+	 * @param now The current time in nanoseconds
+	 */
+	void connect(CompletableFuture<PeerTransport> future, long now)
+	{
+		this.state = State.SYN_SENT;
+		this.connectFuture = future;
+		this.sequenceNumber = 1;
+		this.synAttempts = 0;
+		this.sendSyn(now);
+	}
+
+	/**
+	 * Accepts a connection from the SYN of the other peer
+	 * 
+	 * @param syn The received SYN
+	 * @param now The current time in nanoseconds
+	 */
+	void accept(UtpPacket syn, long now)
+	{
+		this.state = State.CONNECTED;
+		this.ackNumber = syn.getSequenceNumber();
+		this.sequenceNumber = (int) (now & 0xFFFF);
+		this.recoverySequence = this.sequenceNumber - 1;
+		this.replyMicroseconds = UtpEndpoint.getMicroseconds() - syn.getTimestamp();
+		this.ackNeeded = true;
+	}
+
+	/**
+	 * Closes the transport immediately without notifying the other peer
+	 */
+	void destroy()
+	{
+		this.state = State.CLOSED;
+		this.isOpen = false;
+		this.endpoint.remove(this);
+		if (this.connectFuture != null && !this.connectFuture.isDone())
+		{
+			this.connectFuture.completeExceptionally(
+					new ConnectException("Error: No answer from " + this.address + " over UDP."));
+		}
+	}
+
+	/**
+	 * Returns the time in nanoseconds the transport must next be ticked
+	 * 
+	 * @return The time in nanoseconds the transport must next be ticked, or
+	 * Long.MAX_VALUE if it only needs to be ticked when a packet arrives
+	 */
+	long getDeadline()
+	{
+		if (this.state == State.CLOSED)
+		{
+			return Long.MAX_VALUE;
+		}
+		long deadline = Long.MAX_VALUE;
+		if (this.state == State.SYN_SENT || !this.outstanding.isEmpty())
+		{
+			deadline = this.timeoutDeadline;
+		}
+		if (this.state == State.CONNECTED && this.hasPendingPackets() && this.isWindowOpen(PACKET_SIZE))
+		{
+			deadline = Math.min(deadline, this.nextSendTime - PACING_SLACK_NS);
+		}
+		return deadline;
+	}
+
+	/**
+	 * Sends and retransmits the packets that are due
+	 * 
+	 * @param now The current time in nanoseconds
+	 */
+	void onTick(long now)
+	{
+		if (this.state == State.SYN_SENT)
+		{
+			if (this.connectFuture.isDone() || !this.isOpen)
+			{
+				// The connection attempt was abandoned
+				this.destroy();
+			}
+			else if (now - this.timeoutDeadline >= 0)
+			{
+				if (++this.synAttempts >= SYN_ATTEMPTS)
+				{
+					this.destroy();
+				}
+				else
+				{
+					this.sendSyn(now);
+				}
+			}
+			return;
+		}
+		if (this.state != State.CONNECTED)
+		{
+			return;
+		}
+
+		if (!this.outstanding.isEmpty() && now - this.timeoutDeadline >= 0)
+		{
+			this.onTimeout(now);
+			if (this.state == State.CLOSED)
+			{
+				return;
+			}
+		}
+		this.flush(now);
+		if (this.ackNeeded)
+		{
+			this.sendState();
+		}
+		if (this.isFinReceived || (this.isFinSent && this.outstanding.isEmpty()))
+		{
+			this.destroy();
+			if (this.isFinReceived)
+			{
+				this.notifyPeerClosed();
+			}
+		}
+	}
+
+	private void notifyPeerClosed()
+	{
+		PeerConnection connection = this.connection;
+		if (connection != null)
+		{
+			connection.peerClosed();
+		}
+	}
+
+	/**
+	 * Handles a packet of the connection
+	 * 
+	 * @param packet The received packet
+	 * @param now The current time in nanoseconds
+	 */
+	void onPacket(UtpPacket packet, long now)
+	{
+		if (this.state == State.CLOSED)
+		{
+			return;
+		}
+		if (packet.getType() == UtpPacket.ST_RESET)
+		{
+			this.destroy();
+			this.notifyPeerClosed();
+			return;
+		}
+		if (packet.getType() == UtpPacket.ST_SYN)
+		{
+			// The acknowledgement of the SYN was lost
+			this.ackNeeded = true;
+			return;
+		}
+
+		this.replyMicroseconds = UtpEndpoint.getMicroseconds() - packet.getTimestamp();
+		if (packet.getTimestampDifference() != 0)
+		{
+			this.controller.addDelaySample(packet.getTimestampDifference() & 0xFFFFFFFFL);
+		}
+		this.peerWindow = packet.getWindowSize() & 0xFFFFFFFFL;
+
+		if (this.state == State.SYN_SENT)
+		{
+			if (UtpPacket.compareSequence(packet.getAcknowledgementNumber(), 1) < 0)
+			{
+				return;
+			}
+			this.state = State.CONNECTED;
+			this.sequenceNumber = 2;
+			this.recoverySequence = 1;
+			this.ackNumber = packet.getSequenceNumber() - 1;
+			this.outstanding.clear();
+			this.bytesInFlight = 0;
+			this.timeoutCount = 0;
+			if (!this.connectFuture.complete(this))
+			{
+				// The connection attempt was abandoned before the answer arrived
+				UtpPacket reset = new UtpPacket(UtpPacket.ST_RESET, this.sendID, this.sequenceNumber, this.ackNumber);
+				this.endpoint.send(reset, this.address);
+				this.destroy();
+				return;
+			}
+		}
+		else
+		{
+			this.processAcks(packet, now);
+		}
+
+		if (packet.getType() == UtpPacket.ST_DATA || packet.getType() == UtpPacket.ST_FIN)
+		{
+			this.receiveData(packet);
+		}
+	}
+
+	private void sendSyn(long now)
+	{
+		UtpPacket syn = new UtpPacket(UtpPacket.ST_SYN, this.receiveID, this.sequenceNumber, 0);
+		syn.setWindowSize(MAX_WINDOW);
+		this.endpoint.send(syn, this.address);
+		this.timeoutDeadline = now + SYN_TIMEOUT_MS * 1000000;
+	}
+
+	private void processAcks(UtpPacket packet, long now)
+	{
+		int ack = packet.getAcknowledgementNumber();
+		byte[] selectiveAck = packet.getSelectiveAck();
+		long flightSize = this.bytesInFlight;
+		long bytesAcked = 0;
+
+		for (OutgoingPacket outgoing : this.outstanding)
+		{
+			if (outgoing.isAcked)
+			{
+				continue;
+			}
+			int distance = UtpPacket.compareSequence(outgoing.packet.getSequenceNumber(), ack);
+			boolean isAcked = distance <= 0;
+			if (!isAcked && selectiveAck != null)
+			{
+				// Bit 0 of the selective acknowledgement is ack + 2
+				int bit = distance - 2;
+				isAcked = bit >= 0 && bit < selectiveAck.length * 8 && (selectiveAck[bit / 8] & (1 << (bit % 8))) != 0;
+			}
+			if (isAcked)
+			{
+				outgoing.isAcked = true;
+				if (!outgoing.needsResend)
+				{
+					this.bytesInFlight -= outgoing.size;
+				}
+				bytesAcked += outgoing.size;
+				if (outgoing.transmissions == 1)
+				{
+					this.addRttSample(now - outgoing.sentTime);
+				}
+			}
+		}
+		while (!this.outstanding.isEmpty() && this.outstanding.peekFirst().isAcked)
+		{
+			this.outstanding.pollFirst();
+		}
+
+		// A packet is lost once enough of the packets sent after it have arrived
+		int laterAcked = 0;
+		Iterator<OutgoingPacket> iterator = this.outstanding.descendingIterator();
+		while (iterator.hasNext())
+		{
+			OutgoingPacket outgoing = iterator.next();
+			if (outgoing.isAcked)
+			{
+				laterAcked++;
+			}
+			else if (laterAcked >= DUPLICATE_ACK_THRESHOLD && !outgoing.needsResend)
+			{
+				outgoing.needsResend = true;
+				this.bytesInFlight -= outgoing.size;
+				// Only react to the first loss of each window of packets
+				if (UtpPacket.compareSequence(outgoing.packet.getSequenceNumber(), this.recoverySequence) > 0)
+				{
+					this.controller.onLoss();
+					this.recoverySequence = this.sequenceNumber - 1;
+				}
+			}
+		}
+
+		if (bytesAcked > 0)
+		{
+			this.controller.onAck(bytesAcked, flightSize);
+			this.timeoutCount = 0;
+			this.timeoutDeadline = now + this.timeout;
+		}
+	}
+
+	private void addRttSample(long rtt)
+	{
+		// Jacobson's algorithm, as used by TCP
+		if (this.smoothedRtt == 0)
+		{
+			this.smoothedRtt = rtt;
+			this.rttVariance = rtt / 2;
+		}
+		else
+		{
+			this.rttVariance += (Math.abs(this.smoothedRtt - rtt) - this.rttVariance) / 4;
+			this.smoothedRtt += (rtt - this.smoothedRtt) / 8;
+		}
+		this.timeout = Math.min(Math.max(this.smoothedRtt + 4 * this.rttVariance, MIN_TIMEOUT_MS * 1000000),
+				MAX_TIMEOUT_MS * 1000000);
+	}
+
+	private void onTimeout(long now)
+	{
+		if (++this.timeoutCount > MAX_TIMEOUTS)
+		{
+			// The other peer is no longer answering
+			this.destroy();
+			return;
+		}
+		this.controller.onTimeout();
+		for (OutgoingPacket outgoing : this.outstanding)
+		{
+			if (!outgoing.isAcked && !outgoing.needsResend)
+			{
+				outgoing.needsResend = true;
+				this.bytesInFlight -= outgoing.size;
+			}
+		}
+		this.recoverySequence = this.sequenceNumber - 1;
+		this.timeout = Math.min(this.timeout * 2, MAX_TIMEOUT_MS * 1000000);
+		this.timeoutDeadline = now + this.timeout;
+		this.nextSendTime = now;
+	}
+
+	private void receiveData(UtpPacket packet)
+	{
+		this.ackNeeded = true;
+		int distance = UtpPacket.compareSequence(packet.getSequenceNumber(), this.ackNumber + 1);
+		if (distance < 0)
+		{
+			// A retransmission of a packet that has already been received
+			return;
+		}
+		if (distance > 0)
+		{
+			if (distance < REORDER_LIMIT)
+			{
+				this.reorderBuffer.putIfAbsent(packet.getSequenceNumber(), packet);
+			}
+			return;
+		}
+
+		this.deliverInOrder(packet);
+		UtpPacket next;
+		while ((next = this.reorderBuffer.remove((this.ackNumber + 1) & 0xFFFF)) != null)
+		{
+			this.deliverInOrder(next);
+		}
+		this.deliverReceived();
+	}
+
+	private void deliverInOrder(UtpPacket packet)
+	{
+		this.ackNumber = packet.getSequenceNumber();
+		if (packet.getType() == UtpPacket.ST_FIN)
+		{
+			this.isFinReceived = true;
+			return;
+		}
+		byte[] payload = packet.getPayload();
+		if (this.receiveBuffer.remaining() < payload.length)
+		{
+			// The connection keeps at most one partial message, so this only happens
+			// for messages larger than the buffer
+			ByteBuffer larger = ByteBuffer.allocate(this.receiveBuffer.capacity() * 2 + payload.length);
+			this.receiveBuffer.flip();
+			larger.put(this.receiveBuffer);
+			this.receiveBuffer = larger;
+		}
+		this.receiveBuffer.put(payload);
+	}
+
+	private void deliverReceived()
+	{
+		PeerConnection connection = this.connection;
+		if (connection == null || this.receiveBuffer.position() == 0)
+		{
+			return;
+		}
+		this.receiveBuffer.flip();
+		try
+		{
+			connection.receive(this.receiveBuffer);
+		}
+		finally
+		{
+			this.receiveBuffer.compact();
+		}
+	}
+
+	private boolean hasPendingPackets()
+	{
+		if (!this.outbound.isEmpty() || (!this.isOpen && !this.isFinSent))
+		{
+			return true;
+		}
+		for (OutgoingPacket outgoing : this.outstanding)
+		{
+			if (outgoing.needsResend)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isWindowOpen(int size)
+	{
+		long window = Math.min(this.controller.getWindow(), this.peerWindow);
+		// A single packet may always be in flight
+		return this.bytesInFlight == 0 || this.bytesInFlight + size <= window;
+	}
+
+	private boolean canSend(int size, long now)
+	{
+		return this.isWindowOpen(size) && this.nextSendTime - now <= PACING_SLACK_NS
+				&& this.outstanding.size() < Short.MAX_VALUE / 2;
+	}
+
+	private void flush(long now)
+	{
+		for (OutgoingPacket outgoing : this.outstanding)
+		{
+			if (outgoing.needsResend)
+			{
+				if (!this.canSend(outgoing.size, now))
+				{
+					return;
+				}
+				this.transmit(outgoing, now);
+			}
+		}
+
+		boolean isSending = !this.outbound.isEmpty();
+		while (!this.outbound.isEmpty() && this.canSend(PACKET_SIZE, now))
+		{
+			UtpPacket packet = new UtpPacket(UtpPacket.ST_DATA, this.sendID, this.sequenceNumber++, 0);
+			packet.setPayload(this.takeOutbound(MAX_PAYLOAD));
+			OutgoingPacket outgoing = new OutgoingPacket(packet);
+			this.outstanding.addLast(outgoing);
+			this.transmit(outgoing, now);
+		}
+		Runnable handler = this.drainHandler;
+		if (isSending && this.outbound.isEmpty() && handler != null)
+		{
+			handler.run();
+		}
+
+		if (!this.isOpen && !this.isFinSent && this.outbound.isEmpty() && this.canSend(UtpPacket.HEADER_SIZE, now))
+		{
+			UtpPacket fin = new UtpPacket(UtpPacket.ST_FIN, this.sendID, this.sequenceNumber++, 0);
+			OutgoingPacket outgoing = new OutgoingPacket(fin);
+			this.outstanding.addLast(outgoing);
+			this.transmit(outgoing, now);
+			this.isFinSent = true;
+		}
+	}
+
+	private byte[] takeOutbound(int length)
+	{
+		byte[] payload = new byte[length];
+		int size = 0;
+		ByteBuffer message;
+		while (size < length && (message = this.outbound.peek()) != null)
+		{
+			int count = Math.min(message.remaining(), length - size);
+			message.get(payload, size, count);
+			this.queuedBytes.addAndGet(-count);
+			size += count;
+			if (!message.hasRemaining())
+			{
+				this.outbound.poll();
+			}
+		}
+		return size == length ? payload : Arrays.copyOf(payload, size);
+	}
+
+	private void transmit(OutgoingPacket outgoing, long now)
+	{
+		if (this.bytesInFlight == 0)
+		{
+			this.timeoutDeadline = now + this.timeout;
+		}
+		outgoing.sentTime = now;
+		outgoing.transmissions++;
+		outgoing.needsResend = false;
+		this.bytesInFlight += outgoing.size;
+
+		UtpPacket packet = outgoing.packet;
+		packet.setAcknowledgementNumber(this.ackNumber);
+		packet.setWindowSize(this.getReceiveWindow());
+		packet.setTimestampDifference(this.replyMicroseconds);
+		this.endpoint.send(packet, this.address);
+		if (this.reorderBuffer.isEmpty())
+		{
+			this.ackNeeded = false;
+		}
+
+		// Spread the window across the round trip time
+		if (this.smoothedRtt > 0)
+		{
+			long window = Math.max(1, Math.min(this.controller.getWindow(), this.peerWindow));
+			this.nextSendTime = Math.max(this.nextSendTime, now - PACING_SLACK_NS)
+					+ outgoing.size * this.smoothedRtt / window;
+		}
+	}
+
+	private void sendState()
+	{
+		UtpPacket state = new UtpPacket(UtpPacket.ST_STATE, this.sendID, this.sequenceNumber, this.ackNumber);
+		if (!this.reorderBuffer.isEmpty())
+		{
+			// Mark the buffered packets after the first gap, in multiples of 32 bits
+			int bits = 0;
+			for (int sequence : this.reorderBuffer.keySet())
+			{
+				bits = Math.max(bits, UtpPacket.compareSequence(sequence, this.ackNumber + 2) + 1);
+			}
+			byte[] selectiveAck = new byte[(bits + 31) / 32 * 4];
+			for (int sequence : this.reorderBuffer.keySet())
+			{
+				int bit = UtpPacket.compareSequence(sequence, this.ackNumber + 2);
+				selectiveAck[bit / 8] |= 1 << (bit % 8);
+			}
+			state.setSelectiveAck(selectiveAck);
+		}
+		state.setWindowSize(this.getReceiveWindow());
+		state.setTimestampDifference(this.replyMicroseconds);
+		this.endpoint.send(state, this.address);
+		this.ackNeeded = false;
+	}
+
+	private int getReceiveWindow()
+	{
+		return Math.max(0, MAX_WINDOW - this.receiveBuffer.position());
+	}
+}
@@ -0,0 +1,178 @@
+package bittorrent.protocol.peer.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Provides transports over UDP with delay based congestion control, falling
+ * back to another provider for the peers that do not support it.
+ * 
+ * The provider listens for UDP transports and for the transports of the
+ * fallback provider on the same address. A connection first attempts the UDP
+ * transport, and uses the fallback provider if the other peer does not answer
+ * within UtpTransport.SYN_ATTEMPTS attempts. The transport is therefore chosen
+ * per peer, and peers configured with different transports can still connect.
+ * 
+ * For testing, the outgoing datagrams can be sent through an emulated link with
+ * a limited rate and a propagation delay.
+ */
+public class UtpTransportProvider implements TransportProvider
+{
+	private String name;
+	private int bufferSize;
+	private TransportProvider fallback;
+	private long emulatedRate;
+	private long emulatedDelay;
+	private UtpEndpoint endpoint;
+
+	/**
+	 * Creates the provider
+	 * 
+	 * @param name The name of the thread of the endpoint
+	 * @param bufferSize The size of the receive buffer of each transport
+	 * @param fallback The provider used for the peers that do not answer over UDP
+	 * @param emulatedRate The rate of the emulated link in bytes per second, or 0
+	 * for no limit
+	 * @param emulatedDelay The one way delay of the emulated link in milliseconds
+	 */
+	public UtpTransportProvider(String name, int bufferSize, TransportProvider fallback, long emulatedRate,
+			long emulatedDelay)
+	{
+		this.name = name;
+		this.bufferSize = bufferSize;
+		this.fallback = fallback;
+		this.emulatedRate = emulatedRate;
+		this.emulatedDelay = emulatedDelay;
+	}
+
+	@Override
+	public void listen(SocketAddress address, Consumer<PeerTransport> acceptHandler) throws IOException
+	{
+		if (address instanceof InetSocketAddress)
+		{
+			synchronized (this)
+			{
+				if (this.endpoint == null)
+				{
+					this.endpoint = this.createEndpoint(address);
+				}
+			}
+			this.endpoint.setAcceptHandler(acceptHandler);
+		}
+		this.fallback.listen(address, acceptHandler);
+	}
+
+	@Override
+	public CompletableFuture<PeerTransport> connect(SocketAddress address)
+	{
+		UtpEndpoint endpoint;
+		try
+		{
+			synchronized (this)
+			{
+				if (this.endpoint == null)
+				{
+					this.endpoint = this.createEndpoint(null);
+				}
+				endpoint = this.endpoint;
+			}
+		}
+		catch (IOException e)
+		{
+			return this.fallback.connect(address);
+		}
+
+		CompletableFuture<PeerTransport> result = new CompletableFuture<PeerTransport>();
+		CompletableFuture<PeerTransport> attempt = endpoint.connect(address);
+		AtomicReference<CompletableFuture<PeerTransport>> fallbackAttempt = new AtomicReference<CompletableFuture<PeerTransport>>();
+		attempt.whenComplete((transport, exception) ->
+		{
+			if (exception == null)
+			{
+				completeOrClose(result, transport);
+				return;
+			}
+			if (result.isDone())
+			{
+				return;
+			}
+			// The other peer does not answer over UDP, so use the fallback transport
+			CompletableFuture<PeerTransport> pending = this.fallback.connect(address);
+			fallbackAttempt.set(pending);
+			if (result.isDone())
+			{
+				pending.cancel(false);
+			}
+			pending.whenComplete((fallbackTransport, fallbackException) ->
+			{
+				if (fallbackException == null)
+				{
+					completeOrClose(result, fallbackTransport);
+				}
+				else
+				{
+					result.completeExceptionally(fallbackException);
+				}
+			});
+		});
+
+		// Abandoning the result abandons the pending attempt
+		result.whenComplete((transport, exception) ->
+		{
+			if (exception != null)
+			{
+				attempt.completeExceptionally(exception);
+				CompletableFuture<PeerTransport> pending = fallbackAttempt.get();
+				if (pending != null)
+				{
+					pending.completeExceptionally(exception);
+				}
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (this.endpoint != null)
+			{
+				this.endpoint.close();
+			}
+		}
+		this.fallback.close();
+	}
+
+	private static void completeOrClose(CompletableFuture<PeerTransport> result, PeerTransport transport)
+	{
+		if (!result.complete(transport))
+		{
+			try
+			{
+				transport.close();
+			}
+			catch (IOException e)
+			{
+
+			}
+		}
+	}
+
+	private UtpEndpoint createEndpoint(SocketAddress address) throws IOException
+	{
+		EmulatedLink link = null;
+		if (this.emulatedRate > 0 || this.emulatedDelay > 0)
+		{
+			link = new EmulatedLink(this.emulatedRate, this.emulatedDelay);
+		}
+		UtpEndpoint endpoint = new UtpEndpoint(this.name + " UDP", address, this.bufferSize, link);
+		endpoint.start();
+		return endpoint;
+	}
+}
@@ -0,0 +1,95 @@
+package bittorrent.protocol.messages;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the pieces of a have batch message are read back as they were
+ * announced, and that the pieces outside of the file are dropped.
+ */
+public class HaveBatchMessageTest
+{
+	// The number of pieces of the file
+	private static final int PIECE_COUNT = 100;
+
+	@Test
+	public void readsBackScatteredIndices()
+	{
+		List<Integer> indices = List.of(3, 42, 97);
+		ByteBuffer payload = ActualMessage.CreateHaveBatchMessage(indices).getPayload();
+		assertEquals(ActualMessage.HAVE_BATCH_INDICES, payload.get(0));
+		assertEquals(indices, ActualMessage.readHaveBatch(payload, PIECE_COUNT));
+	}
+
+	@Test
+	public void readsBackDenseIndices()
+	{
+		// The bitfield starts at the byte of the first piece
+		List<Integer> indices = new ArrayList<Integer>();
+		for (int index = 17; index < 60; index += 3)
+		{
+			indices.add(index);
+		}
+		ByteBuffer payload = ActualMessage.CreateHaveBatchMessage(indices).getPayload();
+		assertEquals(ActualMessage.HAVE_BATCH_BITFIELD, payload.get(0));
+		assertEquals(2, payload.getInt(1));
+		assertEquals(indices, ActualMessage.readHaveBatch(payload, PIECE_COUNT));
+	}
+
+	@Test
+	public void usesSmallerEncoding()
+	{
+		// Two pieces 4 bytes apart are smaller as indices, and two pieces 1 byte apart
+		// are smaller as a bitfield
+		ByteBuffer apart = ActualMessage.CreateHaveBatchMessage(List.of(0, 32)).getPayload();
+		assertEquals(ActualMessage.HAVE_BATCH_INDICES, apart.get(0));
+		assertEquals(List.of(0, 32), ActualMessage.readHaveBatch(apart, PIECE_COUNT));
+
+		ByteBuffer close = ActualMessage.CreateHaveBatchMessage(List.of(0, 8)).getPayload();
+		assertEquals(ActualMessage.HAVE_BATCH_BITFIELD, close.get(0));
+		assertEquals(List.of(0, 8), ActualMessage.readHaveBatch(close, PIECE_COUNT));
+	}
+
+	@Test
+	public void dropsSpareBitsOfLastByte()
+	{
+		// The last byte holds pieces 96 to 99 and four spare bits, which are set
+		ByteBuffer payload = ByteBuffer.allocate(1 + 4 + 1);
+		payload.put(ActualMessage.HAVE_BATCH_BITFIELD);
+		payload.putInt(12);
+		payload.put((byte) 0x9F);
+		payload.flip();
+		assertEquals(List.of(96, 99), ActualMessage.readHaveBatch(payload, PIECE_COUNT));
+	}
+
+	@Test
+	public void dropsBitfieldBeyondFile()
+	{
+		// The index of the first piece of the byte does not fit in an int
+		ByteBuffer payload = ByteBuffer.allocate(1 + 4 + 2);
+		payload.put(ActualMessage.HAVE_BATCH_BITFIELD);
+		payload.putInt(Integer.MAX_VALUE / 4);
+		payload.put((byte) 0xFF);
+		payload.put((byte) 0xFF);
+		payload.flip();
+		assertEquals(List.of(), ActualMessage.readHaveBatch(payload, PIECE_COUNT));
+	}
+
+	@Test
+	public void dropsIndicesOutsideOfFile()
+	{
+		ByteBuffer payload = ByteBuffer.allocate(1 + 4 * 4);
+		payload.put(ActualMessage.HAVE_BATCH_INDICES);
+		payload.putInt(-1);
+		payload.putInt(5);
+		payload.putInt(PIECE_COUNT);
+		payload.putInt(PIECE_COUNT - 1);
+		payload.flip();
+		assertEquals(List.of(5, PIECE_COUNT - 1), ActualMessage.readHaveBatch(payload, PIECE_COUNT));
+	}
+}
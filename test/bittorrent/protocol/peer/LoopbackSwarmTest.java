@@ -0,0 +1,119 @@
+package bittorrent.protocol.peer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+import bittorrent.protocol.peer.connection.PeerConnection;
+
+/**
+ * Tests whole swarms whose peers run as threads and connect over the loopback
+ * transport.
+ */
+public class LoopbackSwarmTest
+{
+	// The longest time a swarm is given to share the file
+	private static final long SWARM_TIMEOUT_MS = 60000;
+
+	// The longest time a connection is given to be opened or closed
+	private static final long CONNECTION_TIMEOUT_MS = 5000;
+
+	@Test
+	public void sharesFileBetweenPeers() throws IOException, InterruptedException
+	{
+		try (SwarmFixture swarm = new SwarmFixture(24000, 3, 20 * 1000 + 123, 1000))
+		{
+			runSwarm(swarm, 3);
+		}
+	}
+
+	@Test
+	public void sharesFileWithAllExtensions() throws IOException, InterruptedException
+	{
+		// The pieces are larger than a chunk, so they are sent in several chunks
+		try (SwarmFixture swarm = new SwarmFixture(24100, 3, 6 * 40000 + 123, 40000,
+				"Extensions HaveAllNone HaveBatch Cancel ChunkedPieces"))
+		{
+			runSwarm(swarm, 3);
+		}
+	}
+
+	@Test
+	public void removesConnectionClosedByOtherPeer() throws IOException, InterruptedException
+	{
+		try (SwarmFixture swarm = new SwarmFixture(24200, 2, 10 * 1000 + 123, 1000))
+		{
+			PeerProcess seeder = swarm.createProcess(0);
+			PeerProcess leecher = swarm.createProcess(1);
+			seeder.makeConnections();
+			// Each peer registers the connection once it has the handshake of the other
+			waitFor(() -> leecher.getPeerConnection(swarm.getPeerID(0)) != null
+					&& seeder.getPeerConnection(swarm.getPeerID(1)) != null);
+
+			PeerConnection connection = seeder.getPeerConnection(swarm.getPeerID(1));
+			assertNotNull(connection);
+			connection.teardown();
+
+			// The leecher learns of the close from the transport, not from the idle timeout
+			waitFor(() -> leecher.getPeerConnection(swarm.getPeerID(0)) == null);
+			assertTrue(leecher.getPeerConnections().isEmpty());
+			assertTrue(leecher.hasMadeAllConnections());
+		}
+	}
+
+	private static void runSwarm(SwarmFixture swarm, int peerCount) throws IOException, InterruptedException
+	{
+		List<PeerProcess> processes = new ArrayList<PeerProcess>();
+		for (int peer = 0; peer < peerCount; ++peer)
+		{
+			processes.add(swarm.createProcess(peer));
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (PeerProcess process : processes)
+		{
+			process.makeConnections();
+			Thread thread = new Thread(process::runProtocol);
+			thread.start();
+			threads.add(thread);
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWARM_TIMEOUT_MS);
+		for (Thread thread : threads)
+		{
+			thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			assertFalse(thread.isAlive(), "The swarm did not terminate");
+		}
+
+		// Each leecher wrote the whole file and downloaded at least every byte of it
+		byte[] content = swarm.getContent();
+		for (int peer = 1; peer < peerCount; ++peer)
+		{
+			PeerProcess leecher = processes.get(peer);
+			assertTrue(leecher.hasAllPieces());
+			assertArrayEquals(content, Files.readAllBytes(swarm.getDownloadedFile(peer)));
+			assertTrue(leecher.getDownloadedBytes() >= content.length);
+		}
+		assertEquals(0, processes.get(0).getDownloadedBytes());
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECTION_TIMEOUT_MS);
+		while (!condition.getAsBoolean())
+		{
+			assertTrue(System.nanoTime() < deadline, "The condition was not met in time");
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package bittorrent.protocol.peer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the reads of byte ranges of the shared file, which wait for the pieces
+ * they are missing.
+ */
+public class PeerProcessReadTest
+{
+	// A file of 11 pieces, whose last piece is half the size of the others
+	private static final int PIECE_SIZE = 100;
+	private static final int FILE_SIZE = 10 * PIECE_SIZE + 50;
+
+	private SwarmFixture swarm;
+	private PeerProcess seeder;
+	private PeerProcess leecher;
+
+	@BeforeEach
+	public void createProcesses() throws IOException
+	{
+		// Each test has its own swarm, since the leecher keeps the pieces it is given
+		this.swarm = new SwarmFixture(26000, 2, FILE_SIZE, PIECE_SIZE);
+		this.seeder = this.swarm.createProcess(0);
+		this.leecher = this.swarm.createProcess(1);
+	}
+
+	@AfterEach
+	public void removeProcesses() throws IOException
+	{
+		this.seeder.getTransportProvider().close();
+		this.leecher.getTransportProvider().close();
+		this.swarm.close();
+	}
+
+	@Test
+	public void readsHeldPiecesStraightAway() throws Exception
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(250);
+		CompletableFuture<Integer> future = this.seeder.read(150, buffer);
+		assertTrue(future.isDone());
+		assertEquals(250, future.get());
+		assertArrayEquals(this.getRange(150, 250), buffer.array());
+	}
+
+	@Test
+	public void completesReadWhenMissingPieceArrives() throws Exception
+	{
+		// The range covers pieces 1 to 3, and the leecher only has piece 2
+		this.addPiece(2);
+		ByteBuffer buffer = ByteBuffer.allocate(250);
+		CompletableFuture<Integer> future = this.leecher.read(150, buffer);
+		assertFalse(future.isDone());
+
+		this.addPiece(1);
+		assertFalse(future.isDone());
+		this.addPiece(3);
+		assertTrue(future.isDone());
+		assertEquals(250, future.get());
+		assertArrayEquals(this.getRange(150, 250), buffer.array());
+	}
+
+	@Test
+	public void movesPositionPastBytesReadOnCompletion() throws Exception
+	{
+		// The range is cut at the end of the file, and the position only moves once
+		// the read is complete
+		ByteBuffer buffer = ByteBuffer.allocate(200);
+		buffer.position(20);
+		CompletableFuture<Integer> future = this.leecher.read(FILE_SIZE - 120, buffer);
+		this.addPiece(9);
+		assertEquals(20, buffer.position());
+
+		this.addPiece(10);
+		assertEquals(120, future.get());
+		assertEquals(140, buffer.position());
+		assertArrayEquals(this.getRange(FILE_SIZE - 120, 120), Arrays.copyOfRange(buffer.array(), 20, 140));
+	}
+
+	@Test
+	public void rejectsReadOnlyBuffer()
+	{
+		// The read is not registered, so the piece that arrives later is added as usual
+		ByteBuffer buffer = ByteBuffer.allocate(50).asReadOnlyBuffer();
+		CompletableFuture<Integer> future = this.leecher.read(0, buffer);
+		ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+		assertInstanceOf(IllegalArgumentException.class, exception.getCause());
+		assertTrue(this.addPiece(0));
+	}
+
+	@Test
+	public void rejectsOffsetOutsideOfFile()
+	{
+		CompletableFuture<Integer> future = this.seeder.read(FILE_SIZE + 1, ByteBuffer.allocate(10));
+		ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+		assertInstanceOf(IllegalArgumentException.class, exception.getCause());
+	}
+
+	@Test
+	public void readsRangeBlockingUntilPiecesArrive() throws Exception
+	{
+		Thread sender = new Thread(() ->
+		{
+			this.addPiece(4);
+			this.addPiece(5);
+		});
+		sender.start();
+		assertArrayEquals(this.getRange(420, 150), this.leecher.read(420, 150));
+		sender.join();
+	}
+
+	private boolean addPiece(int index)
+	{
+		int start = index * PIECE_SIZE;
+		int end = Math.min(start + PIECE_SIZE, FILE_SIZE);
+		return this.leecher.addPiece(Arrays.copyOfRange(this.swarm.getContent(), start, end), index);
+	}
+
+	private byte[] getRange(int offset, int length)
+	{
+		return Arrays.copyOfRange(this.swarm.getContent(), offset, offset + length);
+	}
+}
@@ -0,0 +1,165 @@
+package bittorrent.protocol.peer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import bittorrent.BitTorrent;
+
+/**
+ * Creates the config files of a swarm whose peers run as threads of the test
+ * and connect over the loopback transport.
+ * 
+ * The first peer of the swarm starts with the file. The ID of each peer is
+ * also its port, so swarms with different first peer IDs never share an
+ * address of the loopback network. A peer process creates its directory and
+ * log file in the working directory, and the shared file must be there as
+ * well, so the fixture writes the file there and removes everything it
+ * created when it is closed.
+ */
+public class SwarmFixture implements AutoCloseable
+{
+	private int firstPeerID;
+	private int peerCount;
+	private byte[] content;
+	private Path file;
+	private Path configDirectory;
+	private Path previousCommonConfig;
+	private Path previousPeerConfig;
+
+	/**
+	 * Creates the config files of a swarm
+	 * 
+	 * @param firstPeerID The ID of the first peer
+	 * @param peerCount The number of peers
+	 * @param fileSize The size of the shared file in bytes
+	 * @param pieceSize The size of a piece in bytes
+	 * @param options Additional lines of the Common.cfg file
+	 * @throws IOException If the files cannot be written
+	 */
+	public SwarmFixture(int firstPeerID, int peerCount, int fileSize, int pieceSize, String... options)
+			throws IOException
+	{
+		this.firstPeerID = firstPeerID;
+		this.peerCount = peerCount;
+		this.content = new byte[fileSize];
+		new Random(firstPeerID).nextBytes(this.content);
+		this.file = Paths.get("swarm_" + firstPeerID + ".dat");
+		Files.write(this.file, this.content);
+
+		List<String> commonConfig = new ArrayList<String>();
+		commonConfig.add("NumberOfPreferredNeighbors " + peerCount);
+		commonConfig.add("UnchokingInterval 1");
+		commonConfig.add("OptimisticUnchokingInterval 1");
+		commonConfig.add("FileName " + this.file);
+		commonConfig.add("FileSize " + fileSize);
+		commonConfig.add("PieceSize " + pieceSize);
+		commonConfig.add("Transport loopback");
+		commonConfig.addAll(List.of(options));
+
+		List<String> peerConfig = new ArrayList<String>();
+		for (int peer = 0; peer < peerCount; ++peer)
+		{
+			int peerID = this.getPeerID(peer);
+			peerConfig.add(peerID + " localhost " + peerID + " " + (peer == 0 ? 1 : 0));
+		}
+
+		this.configDirectory = Files.createTempDirectory("swarm");
+		this.previousCommonConfig = BitTorrent.COMMON_CONFIG_FILE;
+		this.previousPeerConfig = BitTorrent.PEER_CONFIG_FILE;
+		BitTorrent.COMMON_CONFIG_FILE = Files.write(this.configDirectory.resolve("Common.cfg"), commonConfig);
+		BitTorrent.PEER_CONFIG_FILE = Files.write(this.configDirectory.resolve("PeerInfo.cfg"), peerConfig);
+	}
+
+	/**
+	 * Returns the ID of a peer of the swarm
+	 * 
+	 * @param peer The position of the peer in the PeerInfo.cfg file
+	 * @return The ID of the peer
+	 */
+	public int getPeerID(int peer)
+	{
+		return this.firstPeerID + peer;
+	}
+
+	/**
+	 * Creates the process of a peer of the swarm
+	 * 
+	 * The process listens for connections but does not connect to the other peers.
+	 * 
+	 * @param peer The position of the peer in the PeerInfo.cfg file
+	 * @return The process of the peer
+	 */
+	public PeerProcess createProcess(int peer)
+	{
+		int peerID = this.getPeerID(peer);
+		return new PeerProcess(peerID, peerID);
+	}
+
+	/**
+	 * Returns the content of the shared file
+	 * 
+	 * @return The content of the shared file
+	 */
+	public byte[] getContent()
+	{
+		return this.content;
+	}
+
+	/**
+	 * Returns the directory of a peer, where it writes the downloaded file
+	 * 
+	 * @param peer The position of the peer in the PeerInfo.cfg file
+	 * @return The directory of the peer
+	 */
+	public Path getPeerDirectory(int peer)
+	{
+		return Paths.get("peer_" + this.getPeerID(peer));
+	}
+
+	/**
+	 * Returns the file a peer writes once it has downloaded every piece
+	 * 
+	 * @param peer The position of the peer in the PeerInfo.cfg file
+	 * @return The downloaded file of the peer
+	 */
+	public Path getDownloadedFile(int peer)
+	{
+		return this.getPeerDirectory(peer).resolve(this.file);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		BitTorrent.COMMON_CONFIG_FILE = this.previousCommonConfig;
+		BitTorrent.PEER_CONFIG_FILE = this.previousPeerConfig;
+		for (int peer = 0; peer < this.peerCount; ++peer)
+		{
+			delete(this.getPeerDirectory(peer));
+			Files.deleteIfExists(Paths.get("Peer " + this.getPeerID(peer) + ".log"));
+		}
+		Files.deleteIfExists(this.file);
+		delete(this.configDirectory);
+	}
+
+	private static void delete(Path directory) throws IOException
+	{
+		if (Files.notExists(directory))
+		{
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(directory))
+		{
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+			{
+				Files.delete(path);
+			}
+		}
+	}
+}
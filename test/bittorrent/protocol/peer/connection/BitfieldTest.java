@@ -0,0 +1,125 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.SwarmFixture;
+
+/**
+ * Tests the detection of full and empty bitfields, which are not allocated.
+ */
+public class BitfieldTest
+{
+	// A file of 11 pieces, whose bitfield has 2 bytes and 5 spare bits
+	private static final int PIECE_SIZE = 100;
+	private static final int FILE_SIZE = 10 * PIECE_SIZE + 50;
+
+	private static SwarmFixture swarm;
+	private static PeerProcess process;
+
+	@BeforeAll
+	public static void createProcess() throws IOException
+	{
+		swarm = new SwarmFixture(21000, 1, FILE_SIZE, PIECE_SIZE);
+		process = swarm.createProcess(0);
+	}
+
+	@AfterAll
+	public static void removeProcess() throws IOException
+	{
+		swarm.close();
+	}
+
+	@Test
+	public void detectsFullBitfield()
+	{
+		Bitfield bitfield = read((byte) 0xFF, (byte) 0xE0);
+		assertTrue(bitfield.isFull());
+		assertTrue(bitfield.hasAllPieces());
+		assertTrue(bitfield.hasPiece(0));
+		assertTrue(bitfield.hasPiece(10));
+		assertEquals(11, bitfield.getPieceCount());
+	}
+
+	@Test
+	public void detectsEmptyBitfield()
+	{
+		Bitfield bitfield = read((byte) 0, (byte) 0);
+		assertTrue(bitfield.isEmpty());
+		assertFalse(bitfield.hasAnyPiece());
+		assertFalse(bitfield.hasPiece(0));
+	}
+
+	@Test
+	public void keepsPartialBitfield()
+	{
+		Bitfield bitfield = read((byte) 0x81, (byte) 0x20);
+		assertFalse(bitfield.isFull());
+		assertFalse(bitfield.isEmpty());
+		assertTrue(bitfield.hasPiece(0));
+		assertTrue(bitfield.hasPiece(7));
+		assertTrue(bitfield.hasPiece(10));
+		assertFalse(bitfield.hasPiece(1));
+		assertFalse(bitfield.hasAllPieces());
+	}
+
+	@Test
+	public void doesNotTreatSpareBitsAsPieces()
+	{
+		// A spare bit is set, so the bytes differ from those of a full bitfield
+		Bitfield bitfield = read((byte) 0xFF, (byte) 0xF0);
+		assertFalse(bitfield.isFull());
+		assertArrayEquals(new byte[] { (byte) 0xFF, (byte) 0xF0 }, bitfield.getBitfield());
+	}
+
+	@Test
+	public void rejectsShortPayload()
+	{
+		assertThrows(BufferUnderflowException.class,
+				() -> Bitfield.readBitfield(process, ByteBuffer.wrap(new byte[] { (byte) 0xFF })));
+	}
+
+	@Test
+	public void computesBytesOfFullBitfield()
+	{
+		Bitfield bitfield = Bitfield.createFull(process);
+		assertArrayEquals(new byte[] { (byte) 0xFF, (byte) 0xE0 }, bitfield.getBitfield());
+		assertFalse(bitfield.isFull());
+		assertTrue(bitfield.hasAllPieces());
+	}
+
+	@Test
+	public void allocatesEmptyBitfieldOnFirstPiece()
+	{
+		Bitfield bitfield = Bitfield.createEmpty(process);
+		assertTrue(bitfield.updateBitfield(9));
+		assertFalse(bitfield.isEmpty());
+		assertFalse(bitfield.updateBitfield(9));
+		assertArrayEquals(new byte[] { 0, 0x40 }, bitfield.getBitfield());
+	}
+
+	@Test
+	public void ignoresUpdateOfFullBitfield()
+	{
+		Bitfield bitfield = Bitfield.createFull(process);
+		assertFalse(bitfield.updateBitfield(3));
+		assertTrue(bitfield.isFull());
+	}
+
+	private static Bitfield read(byte... bits)
+	{
+		return Bitfield.readBitfield(process, ByteBuffer.wrap(bits));
+	}
+}
@@ -0,0 +1,136 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.BitTorrent;
+import bittorrent.config.PeerInfo;
+import bittorrent.protocol.peer.transport.PeerTransport;
+import bittorrent.protocol.peer.transport.TransportProvider;
+
+/**
+ * Tests that the connection attempts to an unreachable peer stop at the
+ * deadline, however many attempts are left.
+ */
+public class ConnectionAttemptProcessTest
+{
+	// The timings of the attempts, which are much shorter than the defaults
+	private static final int TIMEOUT_MS = 100;
+	private static final int BACKOFF_MAX_MS = 20;
+	private static final int DEADLINE_MS = 300;
+
+	private int previousTimeout;
+	private int previousBackoffBase;
+	private int previousBackoffMax;
+	private int previousDeadline;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * A provider whose connections either never complete or fail straight away
+	 */
+	private static class UnreachableProvider implements TransportProvider
+	{
+		private boolean isRefused;
+		private AtomicInteger attempts = new AtomicInteger();
+
+		private UnreachableProvider(boolean isRefused)
+		{
+			this.isRefused = isRefused;
+		}
+
+		@Override
+		public void listen(SocketAddress address, Consumer<PeerTransport> acceptHandler)
+		{
+
+		}
+
+		@Override
+		public CompletableFuture<PeerTransport> connect(SocketAddress address)
+		{
+			this.attempts.incrementAndGet();
+			CompletableFuture<PeerTransport> future = new CompletableFuture<PeerTransport>();
+			if (this.isRefused)
+			{
+				future.completeExceptionally(new IOException("Connection refused"));
+			}
+			return future;
+		}
+
+		@Override
+		public void close()
+		{
+
+		}
+	}
+
+	@BeforeEach
+	public void setTimings()
+	{
+		this.previousTimeout = BitTorrent.CONNECTION_TIMEOUT_MS;
+		this.previousBackoffBase = BitTorrent.CONNECTION_BACKOFF_BASE_MS;
+		this.previousBackoffMax = BitTorrent.CONNECTION_BACKOFF_MAX_MS;
+		this.previousDeadline = BitTorrent.CONNECTION_DEADLINE_MS;
+		BitTorrent.CONNECTION_TIMEOUT_MS = TIMEOUT_MS;
+		BitTorrent.CONNECTION_BACKOFF_BASE_MS = 1;
+		BitTorrent.CONNECTION_BACKOFF_MAX_MS = BACKOFF_MAX_MS;
+		BitTorrent.CONNECTION_DEADLINE_MS = DEADLINE_MS;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@AfterEach
+	public void restoreTimings()
+	{
+		this.scheduler.shutdownNow();
+		BitTorrent.CONNECTION_TIMEOUT_MS = this.previousTimeout;
+		BitTorrent.CONNECTION_BACKOFF_BASE_MS = this.previousBackoffBase;
+		BitTorrent.CONNECTION_BACKOFF_MAX_MS = this.previousBackoffMax;
+		BitTorrent.CONNECTION_DEADLINE_MS = this.previousDeadline;
+	}
+
+	@Test
+	public void stopsTimedOutAttemptsAtDeadline() throws InterruptedException
+	{
+		// Far fewer attempts than CONNECTION_ATTEMPTS fit before the deadline
+		UnreachableProvider provider = new UnreachableProvider(false);
+		long start = System.nanoTime();
+		CompletableFuture<PeerConnection> result = this.connect(provider);
+		assertThrows(ExecutionException.class, () -> result.get(DEADLINE_MS * 3, TimeUnit.MILLISECONDS));
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsedMs < DEADLINE_MS + TIMEOUT_MS, "Gave up after " + elapsedMs + " ms");
+		assertTrue(provider.attempts.get() < BitTorrent.CONNECTION_ATTEMPTS);
+	}
+
+	@Test
+	public void makesEveryAttemptWithinDeadline()
+	{
+		// Refused attempts with a short backoff all fit before the deadline
+		BitTorrent.CONNECTION_DEADLINE_MS = 10000;
+		UnreachableProvider provider = new UnreachableProvider(true);
+		CompletableFuture<PeerConnection> result = this.connect(provider);
+		assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+		assertEquals(BitTorrent.CONNECTION_ATTEMPTS, provider.attempts.get());
+	}
+
+	private CompletableFuture<PeerConnection> connect(TransportProvider provider)
+	{
+		PeerInfo peerInfo = new PeerInfo(29000, "localhost", 29000, false);
+		SocketAddress address = new InetSocketAddress("localhost", 29000);
+		return new ConnectionAttemptProcess(null, peerInfo, provider, address, this.scheduler).startProcess();
+	}
+}
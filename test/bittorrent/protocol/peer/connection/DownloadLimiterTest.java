@@ -0,0 +1,167 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.SwarmFixture;
+import bittorrent.protocol.peer.transport.PeerTransport;
+
+/**
+ * Tests how the download limiter divides its credit between the connections.
+ */
+public class DownloadLimiterTest
+{
+	// A request costs the piece and the 9 bytes of the piece message fields
+	private static final int PIECE_SIZE = 991;
+	private static final int REQUEST_COST = PIECE_SIZE + 9;
+
+	// The rate, which allows a burst of 50 requests
+	private static final long MAX_RATE = 100 * REQUEST_COST;
+
+	private static SwarmFixture swarm;
+	private static PeerProcess process;
+
+	/**
+	 * A transport that discards the written messages
+	 */
+	private static class DiscardingTransport implements PeerTransport
+	{
+		@Override
+		public void start(PeerConnection connection)
+		{
+
+		}
+
+		@Override
+		public void write(ByteBuffer message)
+		{
+
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+
+		}
+	}
+
+	@BeforeAll
+	public static void createProcess() throws IOException
+	{
+		swarm = new SwarmFixture(23000, 1, 10 * PIECE_SIZE + 1, PIECE_SIZE);
+		process = swarm.createProcess(0);
+	}
+
+	@AfterAll
+	public static void removeProcess() throws IOException
+	{
+		swarm.close();
+	}
+
+	@Test
+	public void givesNoCreditBeforeDistribution()
+	{
+		DownloadLimiter limiter = new DownloadLimiter(MAX_RATE, PIECE_SIZE);
+		assertFalse(limiter.tryAcquire(createConnection(0)));
+	}
+
+	@Test
+	public void dividesCreditEquallyWithoutRates()
+	{
+		DownloadLimiter limiter = new DownloadLimiter(MAX_RATE, PIECE_SIZE);
+		PeerConnection first = createConnection(0);
+		PeerConnection second = createConnection(0);
+		limiter.tryAcquire(first);
+		limiter.tryAcquire(second);
+
+		limiter.distribute(10 * REQUEST_COST, System.nanoTime());
+		assertEquals(5, acquireAll(limiter, first));
+		assertEquals(5, acquireAll(limiter, second));
+	}
+
+	@Test
+	public void dividesCreditInProportionToRate()
+	{
+		// Only the fast connection has a rate, so the slow connection is given the
+		// minimum share of 5% and the fast connection the other 95%
+		DownloadLimiter limiter = new DownloadLimiter(MAX_RATE, PIECE_SIZE);
+		PeerConnection fast = createConnection(1000);
+		PeerConnection slow = createConnection(0);
+		limiter.tryAcquire(fast);
+		limiter.tryAcquire(slow);
+
+		limiter.distribute(10 * REQUEST_COST, System.nanoTime());
+		assertEquals(9, acquireAll(limiter, fast));
+		assertEquals(0, acquireAll(limiter, slow));
+
+		// The credit left over from the first distribution is kept
+		limiter.distribute(10 * REQUEST_COST, System.nanoTime());
+		assertEquals(10, acquireAll(limiter, fast));
+		assertEquals(1, acquireAll(limiter, slow));
+	}
+
+	@Test
+	public void sharesCreditBeyondBurstThroughPool()
+	{
+		// The only requesting connection holds at most the burst, and the rest of
+		// the credit can be used by any connection
+		DownloadLimiter limiter = new DownloadLimiter(MAX_RATE, PIECE_SIZE);
+		PeerConnection requesting = createConnection(0);
+		PeerConnection other = createConnection(0);
+		limiter.tryAcquire(requesting);
+
+		limiter.distribute(60 * REQUEST_COST, System.nanoTime());
+		assertEquals(10, acquireAll(limiter, other));
+		assertEquals(50, acquireAll(limiter, requesting));
+	}
+
+	@Test
+	public void givesNoShareToIdleConnection() throws InterruptedException
+	{
+		// A connection that stopped requesting is not given credit, even if it has the
+		// higher rate
+		DownloadLimiter limiter = new DownloadLimiter(MAX_RATE, PIECE_SIZE);
+		PeerConnection idle = createConnection(1000);
+		PeerConnection requesting = createConnection(0);
+		limiter.tryAcquire(idle);
+		TimeUnit.MILLISECONDS.sleep(DownloadLimiter.DEMAND_TIMEOUT_MS + 100);
+		limiter.tryAcquire(requesting);
+
+		limiter.distribute(10 * REQUEST_COST, System.nanoTime());
+		assertEquals(0, acquireAll(limiter, idle));
+		assertEquals(10, acquireAll(limiter, requesting));
+	}
+
+	private static PeerConnection createConnection(long bytesPerSecond)
+	{
+		PeerConnection connection = new PeerConnection(process, new DiscardingTransport());
+		connection.getDownloadMeter().record(bytesPerSecond);
+		connection.getDownloadMeter().tick();
+		return connection;
+	}
+
+	private static int acquireAll(DownloadLimiter limiter, PeerConnection connection)
+	{
+		int count = 0;
+		while (count < 1000 && limiter.tryAcquire(connection))
+		{
+			++count;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,210 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.protocol.extensions.Extension;
+import bittorrent.protocol.messages.ActualMessage;
+import bittorrent.protocol.messages.HandshakeMessage;
+import bittorrent.protocol.messages.MessageType;
+import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.SwarmFixture;
+import bittorrent.protocol.peer.transport.PeerTransport;
+
+/**
+ * Tests that the outbound queue writes control messages before piece data and
+ * splits pieces into chunks.
+ */
+public class OutboundQueueTest
+{
+	// The size of a piece, which is split into two full chunks and a shorter one
+	private static final int PIECE_SIZE = 2 * OutboundQueue.CHUNK_SIZE + 7000;
+
+	private static SwarmFixture swarm;
+	private static PeerProcess process;
+
+	/**
+	 * A transport that records the written messages and queues their bytes until
+	 * the test drains it
+	 */
+	private static class RecordingTransport implements PeerTransport
+	{
+		private List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+		private long queuedBytes;
+		private Runnable drainHandler;
+
+		@Override
+		public void start(PeerConnection connection)
+		{
+
+		}
+
+		@Override
+		public void write(ByteBuffer message)
+		{
+			this.messages.add(message);
+			this.queuedBytes += message.remaining();
+		}
+
+		@Override
+		public long getQueuedBytes()
+		{
+			return this.queuedBytes;
+		}
+
+		@Override
+		public void setDrainHandler(Runnable handler)
+		{
+			this.drainHandler = handler;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+
+		}
+
+		private void drain()
+		{
+			this.queuedBytes = 0;
+			this.drainHandler.run();
+		}
+	}
+
+	@BeforeAll
+	public static void createProcess() throws IOException
+	{
+		swarm = new SwarmFixture(22000, 1, 3 * PIECE_SIZE + 10, PIECE_SIZE, "Extensions ChunkedPieces");
+		process = swarm.createProcess(0);
+	}
+
+	@AfterAll
+	public static void removeProcess() throws IOException
+	{
+		swarm.close();
+	}
+
+	@Test
+	public void writesControlMessagesBeforePieceData()
+	{
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = new OutboundQueue(createConnection(false), transport);
+
+		// The transport holds too many bytes to be given piece data
+		transport.queuedBytes = OutboundQueue.QUEUED_LIMIT;
+		queue.addPiece(0, new byte[PIECE_SIZE]);
+		assertEquals(0, transport.messages.size());
+		assertTrue(queue.hasPendingPieces());
+
+		queue.add(ActualMessage.CreateHaveMessage(3));
+		assertEquals(List.of(MessageType.HAVE), getTypes(transport));
+
+		transport.drain();
+		assertEquals(List.of(MessageType.HAVE, MessageType.PIECE), getTypes(transport));
+		assertEquals(PIECE_SIZE + 9, transport.messages.get(1).remaining());
+		assertFalse(queue.hasPendingPieces());
+	}
+
+	@Test
+	public void splitsPieceIntoChunksBetweenControlMessages()
+	{
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = new OutboundQueue(createConnection(true), transport);
+
+		// Two chunks fill the transport
+		queue.addPiece(1, new byte[PIECE_SIZE]);
+		assertEquals(List.of(MessageType.PIECE_CHUNK, MessageType.PIECE_CHUNK), getTypes(transport));
+		assertTrue(queue.isWriting(1));
+		assertTrue(queue.contains(1));
+
+		queue.add(ActualMessage.CreateHaveMessage(2));
+		transport.drain();
+		assertEquals(List.of(MessageType.PIECE_CHUNK, MessageType.PIECE_CHUNK, MessageType.HAVE,
+				MessageType.PIECE_CHUNK), getTypes(transport));
+		assertFalse(queue.contains(1));
+
+		// Each chunk carries its offset and at most CHUNK_SIZE bytes of the piece
+		int[] offsets = { 0, OutboundQueue.CHUNK_SIZE, -1, 2 * OutboundQueue.CHUNK_SIZE };
+		int[] lengths = { OutboundQueue.CHUNK_SIZE, OutboundQueue.CHUNK_SIZE, -1, 7000 };
+		for (int message = 0; message < offsets.length; ++message)
+		{
+			if (offsets[message] == -1)
+			{
+				continue;
+			}
+			ByteBuffer chunk = transport.messages.get(message);
+			assertEquals(1, chunk.getInt(5));
+			assertEquals(offsets[message], chunk.getInt(9));
+			assertEquals(lengths[message] + 13, chunk.remaining());
+		}
+	}
+
+	@Test
+	public void removesQueuedPieceWhenCancelled()
+	{
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = new OutboundQueue(createConnection(true), transport);
+
+		// The first piece is being written when the others are queued
+		queue.addPiece(1, new byte[PIECE_SIZE]);
+		queue.addPiece(2, new byte[PIECE_SIZE]);
+		assertFalse(queue.cancel(1));
+		assertTrue(queue.cancel(2));
+		assertFalse(queue.contains(2));
+
+		transport.drain();
+		for (ByteBuffer message : transport.messages)
+		{
+			assertEquals(1, message.getInt(5));
+		}
+	}
+
+	private static PeerConnection createConnection(boolean isChunked)
+	{
+		// The handshake of the other peer enables the extensions it announces
+		PeerConnection connection = new PeerConnection(process, new RecordingTransport());
+		byte[] capabilities = new byte[HandshakeMessage.ZEROBITS.length];
+		if (isChunked)
+		{
+			int bit = Extension.CHUNKED_PIECES.getBit();
+			capabilities[bit / 8] |= 0x80 >>> (bit % 8);
+		}
+		HandshakeMessage handshake = HandshakeMessage.createHandshakeMessage(swarm.getPeerID(1), capabilities);
+		connection.receive(ByteBuffer.wrap(handshake.getPayload()));
+		assertEquals(isChunked, connection.isExtensionEnabled(Extension.CHUNKED_PIECES));
+		return connection;
+	}
+
+	private static List<MessageType> getTypes(RecordingTransport transport)
+	{
+		List<MessageType> types = new ArrayList<MessageType>();
+		for (ByteBuffer message : transport.messages)
+		{
+			try
+			{
+				types.add(MessageType.parse(message.get(4)));
+			}
+			catch (IOException e)
+			{
+				throw new AssertionError(e);
+			}
+		}
+		return types;
+	}
+}
@@ -0,0 +1,122 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the order in which the piece scheduler selects the pieces of a
+ * connection.
+ */
+public class PieceSchedulerTest
+{
+	// The number of pieces of the file
+	private static final int PIECE_COUNT = 20;
+
+	// The availability of each piece, where piece i is held by i neighbors
+	private static final int[] AVAILABILITY = new int[PIECE_COUNT];
+
+	static
+	{
+		for (int index = 0; index < PIECE_COUNT; ++index)
+		{
+			AVAILABILITY[index] = index;
+		}
+	}
+
+	@Test
+	public void selectsNothingWithoutRequiredPieces()
+	{
+		PieceScheduler scheduler = new PieceScheduler(null);
+		assertEquals(-1, scheduler.select(PIECE_COUNT, (index) -> false, (index) -> 1, 0, () -> 1.0));
+	}
+
+	@Test
+	public void givesRarestPieceToFastestConnection()
+	{
+		PieceScheduler scheduler = new PieceScheduler(null);
+		assertEquals(3, scheduler.select(PIECE_COUNT, (index) -> index >= 3, (index) -> AVAILABILITY[index], 0,
+				() -> 1.0));
+	}
+
+	@Test
+	public void givesMostCommonPieceToSlowestConnection()
+	{
+		PieceScheduler scheduler = new PieceScheduler(null);
+		assertEquals(PIECE_COUNT - 1, scheduler.select(PIECE_COUNT, (index) -> index >= 3,
+				(index) -> AVAILABILITY[index], 0, () -> 0.0));
+	}
+
+	@Test
+	public void givesPieceInProportionToRank()
+	{
+		// Pieces 10 to 14 are required, and the middle connection is given the third
+		// rarest of them
+		PieceScheduler scheduler = new PieceScheduler(null);
+		assertEquals(12, scheduler.select(PIECE_COUNT, (index) -> index >= 10 && index < 15,
+				(index) -> AVAILABILITY[index], 0, () -> 0.5));
+	}
+
+	@Test
+	public void picksAmongPiecesOfEqualAvailability()
+	{
+		// Pieces 0 to 4 are held by one neighbor and pieces 5 to 9 by two neighbors
+		PieceScheduler scheduler = new PieceScheduler(null);
+		for (int attempt = 0; attempt < 50; ++attempt)
+		{
+			int index = scheduler.select(10, (candidate) -> true, (candidate) -> candidate < 5 ? 1 : 2, 0, () -> 1.0);
+			assertTrue(index >= 0 && index < 5, "Selected piece " + index);
+		}
+	}
+
+	@Test
+	public void takesEarliestPieceOfStreamingWindowFirst()
+	{
+		PieceScheduler scheduler = new PieceScheduler(null);
+		scheduler.setReadPiece(10);
+		assertEquals(11, scheduler.select(PIECE_COUNT, (index) -> index != 10, (index) -> AVAILABILITY[index], 3,
+				() -> 1.0));
+	}
+
+	@Test
+	public void fallsBackToRarestPieceOutsideStreamingWindow()
+	{
+		// Nothing is required in the window, which is cut at the end of the file
+		PieceScheduler scheduler = new PieceScheduler(null);
+		scheduler.setReadPiece(PIECE_COUNT - 2);
+		assertEquals(4, scheduler.select(PIECE_COUNT, (index) -> index >= 4 && index < PIECE_COUNT - 2,
+				(index) -> AVAILABILITY[index], 5, () -> 1.0));
+	}
+
+	@Test
+	public void ignoresStreamingWindowWhenDisabled()
+	{
+		PieceScheduler scheduler = new PieceScheduler(null);
+		scheduler.setReadPiece(10);
+		assertEquals(0, scheduler.select(PIECE_COUNT, (index) -> true, (index) -> AVAILABILITY[index], 0, () -> 1.0));
+	}
+
+	@Test
+	public void takesEarliestUrgentPieceBeforeStreamingWindow()
+	{
+		// Piece 2 is urgent, but it is not required on this connection
+		PieceScheduler scheduler = new PieceScheduler(null);
+		scheduler.setReadPiece(0);
+		scheduler.addUrgent(List.of(17, 2, 8, PIECE_COUNT + 5));
+		assertEquals(8, scheduler.select(PIECE_COUNT, (index) -> index != 2, (index) -> AVAILABILITY[index], 4,
+				() -> 1.0));
+	}
+
+	@Test
+	public void stopsTreatingReceivedPieceAsUrgent()
+	{
+		PieceScheduler scheduler = new PieceScheduler(null);
+		scheduler.addUrgent(Set.of(15));
+		scheduler.removeUrgent(15);
+		assertEquals(0, scheduler.select(PIECE_COUNT, (index) -> true, (index) -> AVAILABILITY[index], 0, () -> 1.0));
+	}
+}
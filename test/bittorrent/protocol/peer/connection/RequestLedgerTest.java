@@ -0,0 +1,252 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.protocol.extensions.Extension;
+import bittorrent.protocol.messages.ActualMessage;
+import bittorrent.protocol.messages.HandshakeMessage;
+import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.SwarmFixture;
+import bittorrent.protocol.peer.transport.PeerTransport;
+
+/**
+ * Tests the reservations and deadlines of the request ledger.
+ */
+public class RequestLedgerTest
+{
+	// A piece, which is received in chunks of a tenth of its size
+	private static final int PIECE_SIZE = 1000;
+	private static final int CHUNK_SIZE = PIECE_SIZE / 10;
+
+	// The timeout of a request, which is much shorter than that of the request
+	// timer
+	private static final long TIMEOUT_MS = 200;
+
+	private static SwarmFixture swarm;
+	private static PeerProcess process;
+
+	/**
+	 * A transport that discards the written messages
+	 */
+	private static class DiscardingTransport implements PeerTransport
+	{
+		@Override
+		public void start(PeerConnection connection)
+		{
+
+		}
+
+		@Override
+		public void write(ByteBuffer message)
+		{
+
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+
+		}
+	}
+
+	@BeforeAll
+	public static void createProcess() throws IOException
+	{
+		swarm = new SwarmFixture(25000, 2, 10 * PIECE_SIZE + 123, PIECE_SIZE, "Extensions ChunkedPieces");
+		process = swarm.createProcess(0);
+	}
+
+	@AfterAll
+	public static void removeProcess() throws IOException
+	{
+		swarm.close();
+	}
+
+	@Test
+	public void keepsReservationUntilReleased() throws InterruptedException
+	{
+		// A reservation has no deadline
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection connection = createConnection();
+		ledger.reserve(connection, 1);
+		TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS);
+		assertTrue(ledger.isRequested(1));
+		assertEquals(1, ledger.getRequestCount(connection));
+
+		ledger.release(connection, 1);
+		assertFalse(ledger.isRequested(1));
+		assertEquals(0, ledger.getRequestCount(connection));
+	}
+
+	@Test
+	public void keepsSentRequestWhenReleased()
+	{
+		// The other peer may still answer a request that has been sent
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection connection = createConnection();
+		ledger.reserve(connection, 1);
+		ledger.add(connection, 1, TIMEOUT_MS);
+		ledger.release(connection, 1);
+		assertTrue(ledger.isRequested(1));
+
+		ledger.remove(connection, 1);
+		assertFalse(ledger.isRequested(1));
+	}
+
+	@Test
+	public void doesNotExtendRequestSentAgain() throws InterruptedException
+	{
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection connection = createConnection();
+		ledger.add(connection, 1, TIMEOUT_MS);
+		TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS / 2);
+		ledger.add(connection, 1, TIMEOUT_MS);
+		ledger.reserve(connection, 1);
+		TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS * 3 / 4);
+		assertFalse(ledger.isRequested(1));
+	}
+
+	@Test
+	public void countsPieceRequestedOnSeveralConnections()
+	{
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection first = createConnection();
+		PeerConnection second = createConnection();
+		ledger.add(first, 1, TIMEOUT_MS);
+		ledger.reserve(second, 1);
+		ledger.reserve(second, 2);
+		assertEquals(1, ledger.getRequestCount(first));
+		assertEquals(2, ledger.getRequestCount(second));
+
+		ledger.remove(first, 1);
+		assertTrue(ledger.isRequested(1));
+		ledger.release(second, 1);
+		assertFalse(ledger.isRequested(1));
+		assertTrue(ledger.isRequested(2));
+	}
+
+	@Test
+	public void releasesEveryRequestOfPeer()
+	{
+		// The other peer choked this peer or disconnected
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection choking = createConnection();
+		PeerConnection other = createConnection();
+		ledger.add(choking, 1, TIMEOUT_MS);
+		ledger.reserve(choking, 2);
+		ledger.add(other, 2, TIMEOUT_MS);
+
+		ledger.removePeer(choking);
+		assertEquals(0, ledger.getRequestCount(choking));
+		assertFalse(ledger.isRequested(1));
+		assertTrue(ledger.isRequested(2));
+		assertEquals(1, ledger.getRequestCount(other));
+	}
+
+	@Test
+	public void releasesEveryRequestOfReceivedPiece()
+	{
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection first = createConnection();
+		PeerConnection second = createConnection();
+		ledger.add(first, 1, TIMEOUT_MS);
+		ledger.add(second, 1, TIMEOUT_MS);
+		ledger.reserve(second, 2);
+
+		ledger.removePiece(1);
+		assertFalse(ledger.isRequested(1));
+		assertEquals(0, ledger.getRequestCount(first));
+		assertEquals(1, ledger.getRequestCount(second));
+	}
+
+	@Test
+	public void releasesRequestWithoutProgress() throws InterruptedException
+	{
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection connection = createConnection();
+		ledger.add(connection, 3, TIMEOUT_MS);
+		assertTrue(ledger.isRequested(3));
+
+		TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS + 100);
+		assertFalse(ledger.isRequested(3));
+		assertEquals(0, ledger.getRequestCount(connection));
+	}
+
+	@Test
+	public void extendsDeadlineOfRequestWithProgress() throws InterruptedException
+	{
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection connection = createConnection();
+		ledger.add(connection, 3, TIMEOUT_MS);
+		TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS / 2);
+		ledger.extend(connection, 3, TIMEOUT_MS);
+
+		// The first deadline has passed, but not the extended one
+		TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS * 3 / 4);
+		assertTrue(ledger.isRequested(3));
+		assertEquals(1, ledger.getRequestCount(connection));
+
+		TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS / 2);
+		assertFalse(ledger.isRequested(3));
+	}
+
+	@Test
+	public void doesNotExtendReservation()
+	{
+		// A reservation has no deadline, and extending it does not give it one
+		RequestLedger ledger = new RequestLedger();
+		PeerConnection connection = createConnection();
+		ledger.reserve(connection, 4);
+		ledger.extend(connection, 4, TIMEOUT_MS);
+		ledger.release(connection, 4);
+		assertFalse(ledger.isRequested(4));
+	}
+
+	@Test
+	public void keepsPieceReservedWhileChunksArrive() throws InterruptedException
+	{
+		// The chunks arrive for more than twice the timeout, and the last chunk is
+		// never sent
+		RequestLedger ledger = process.getRequestLedger();
+		PeerConnection connection = createConnection();
+		ledger.add(connection, 2, TIMEOUT_MS);
+		byte[] piece = new byte[PIECE_SIZE];
+		for (int offset = 0; offset < PIECE_SIZE - CHUNK_SIZE; offset += CHUNK_SIZE)
+		{
+			connection.receive(ActualMessage.CreatePieceChunkMessage(2, offset, piece, CHUNK_SIZE));
+			TimeUnit.MILLISECONDS.sleep(TIMEOUT_MS / 4);
+		}
+		assertTrue(ledger.isRequested(2));
+		assertEquals(1, ledger.getRequestCount(connection));
+		ledger.removePeer(connection);
+	}
+
+	private static PeerConnection createConnection()
+	{
+		// The handshake of the other peer enables the chunked pieces
+		PeerConnection connection = new PeerConnection(process, new DiscardingTransport());
+		byte[] capabilities = new byte[HandshakeMessage.ZEROBITS.length];
+		int bit = Extension.CHUNKED_PIECES.getBit();
+		capabilities[bit / 8] |= 0x80 >>> (bit % 8);
+		HandshakeMessage handshake = HandshakeMessage.createHandshakeMessage(swarm.getPeerID(1), capabilities);
+		connection.receive(ByteBuffer.wrap(handshake.getPayload()));
+		assertTrue(connection.isExtensionEnabled(Extension.CHUNKED_PIECES));
+		return connection;
+	}
+}
@@ -0,0 +1,108 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the request timeouts derived from the response times of a peer.
+ */
+public class RequestTimerTest
+{
+	// The timeout before the first sample, which is above the shortest timeout
+	private static final long INITIAL_TIMEOUT_MS = 3000;
+
+	@Test
+	public void usesInitialTimeoutUntilFirstSample()
+	{
+		RequestTimer timer = new RequestTimer(INITIAL_TIMEOUT_MS);
+		assertEquals(INITIAL_TIMEOUT_MS, timer.getTimeoutMs(0));
+	}
+
+	@Test
+	public void neverGoesBelowShortestTimeout()
+	{
+		RequestTimer timer = new RequestTimer(10);
+		assertEquals(RequestTimer.MIN_TIMEOUT_MS, timer.getTimeoutMs(0));
+	}
+
+	@Test
+	public void derivesTimeoutFromSample() throws InterruptedException
+	{
+		// A response of a few milliseconds gives a timeout of three times the sample,
+		// which is raised to the shortest timeout
+		RequestTimer timer = new RequestTimer(INITIAL_TIMEOUT_MS);
+		timer.requestSent(7, false);
+		TimeUnit.MILLISECONDS.sleep(5);
+		timer.pieceReceived(7);
+		assertEquals(RequestTimer.MIN_TIMEOUT_MS, timer.getTimeoutMs(0));
+	}
+
+	@Test
+	public void smoothsSamplesAsJacobsonKarels() throws InterruptedException
+	{
+		// The first sample sets the deviation to half of it, so the timeout is three
+		// times the sample. A second, much shorter, sample moves the smoothed time by
+		// ALPHA and the deviation by BETA of the error, which lowers the timeout.
+		RequestTimer timer = new RequestTimer(INITIAL_TIMEOUT_MS);
+		timer.requestSent(1, false);
+		TimeUnit.MILLISECONDS.sleep(600);
+		timer.pieceReceived(1);
+		long firstTimeout = timer.getTimeoutMs(0);
+		assertBetween(3 * 600, 3 * 800, firstTimeout);
+
+		timer.requestSent(2, false);
+		timer.pieceReceived(2);
+		long secondTimeout = timer.getTimeoutMs(0);
+		double first = firstTimeout / 3.0;
+		double smoothed = (1 - RequestTimer.ALPHA) * first;
+		double deviation = (1 - RequestTimer.BETA) * first / 2 + RequestTimer.BETA * first;
+		assertBetween(Math.round(smoothed + RequestTimer.K * deviation) - 50,
+				Math.round(smoothed + RequestTimer.K * deviation) + 50, secondTimeout);
+	}
+
+	@Test
+	public void ignoresSampleOfRetransmittedRequest() throws InterruptedException
+	{
+		// Karn's algorithm: the piece may answer either copy of the request
+		RequestTimer timer = new RequestTimer(INITIAL_TIMEOUT_MS);
+		timer.requestSent(4, false);
+		timer.requestSent(4, true);
+		TimeUnit.MILLISECONDS.sleep(5);
+		timer.pieceReceived(4);
+		assertEquals(INITIAL_TIMEOUT_MS, timer.getTimeoutMs(0));
+
+		timer.requestSent(5, true);
+		timer.pieceReceived(5);
+		assertEquals(INITIAL_TIMEOUT_MS, timer.getTimeoutMs(0));
+	}
+
+	@Test
+	public void ignoresPieceThatIsNotSampled()
+	{
+		RequestTimer timer = new RequestTimer(INITIAL_TIMEOUT_MS);
+		timer.requestSent(1, false);
+		timer.pieceReceived(2);
+		assertEquals(INITIAL_TIMEOUT_MS, timer.getTimeoutMs(0));
+	}
+
+	@Test
+	public void doublesTimeoutForEachRetransmitUpToLongestTimeout()
+	{
+		RequestTimer timer = new RequestTimer(INITIAL_TIMEOUT_MS);
+		assertEquals(2 * INITIAL_TIMEOUT_MS, timer.getTimeoutMs(1));
+		assertEquals(8 * INITIAL_TIMEOUT_MS, timer.getTimeoutMs(3));
+		assertEquals(RequestTimer.MAX_TIMEOUT_MS, timer.getTimeoutMs(5));
+		assertEquals(RequestTimer.MAX_TIMEOUT_MS, timer.getTimeoutMs(Integer.MAX_VALUE));
+	}
+
+	private static void assertBetween(long lower, long upper, long actual)
+	{
+		if (actual < lower || actual > upper)
+		{
+			throw new AssertionError("Expected a value between " + lower + " and " + upper + " but was " + actual);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.protocol.messages.HandshakeMessage;
+import bittorrent.protocol.messages.MessageType;
+import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.SwarmFixture;
+import bittorrent.protocol.peer.transport.PeerTransport;
+
+/**
+ * Tests the order in which the super seeder offers its pieces and when it
+ * reveals all of them.
+ */
+public class SuperSeederTest
+{
+	// A file of 5 pieces, whose bitfield fits in a single byte
+	private static final int PIECE_SIZE = 100;
+	private static final int PIECE_COUNT = 5;
+
+	private SwarmFixture swarm;
+	private PeerProcess process;
+	private SuperSeeder seeder;
+
+	/**
+	 * A transport that records the pieces announced by have messages
+	 */
+	private static class RecordingTransport implements PeerTransport
+	{
+		private List<Integer> haves = new ArrayList<Integer>();
+
+		@Override
+		public void start(PeerConnection connection)
+		{
+
+		}
+
+		@Override
+		public void write(ByteBuffer message)
+		{
+			try
+			{
+				if (message.remaining() > 4 && MessageType.parse(message.get(4)) == MessageType.HAVE)
+				{
+					this.haves.add(message.getInt(5));
+				}
+			}
+			catch (IOException e)
+			{
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+
+		}
+	}
+
+	@BeforeEach
+	public void createSeeder() throws IOException
+	{
+		// Each test has its own process, since the neighbors are registered with it
+		this.swarm = new SwarmFixture(28000, 4, (PIECE_COUNT - 1) * PIECE_SIZE + 50, PIECE_SIZE);
+		this.process = this.swarm.createProcess(0);
+		this.seeder = new SuperSeeder(this.process, this.process.getLogger());
+	}
+
+	@AfterEach
+	public void removeSeeder() throws IOException
+	{
+		this.process.getTransportProvider().close();
+		this.swarm.close();
+	}
+
+	@Test
+	public void offersRarestPieceNotOfferedElsewhere()
+	{
+		// The first neighbor has pieces 0 and 1, so every neighbor is offered a
+		// different one of the pieces nobody has
+		RecordingTransport first = new RecordingTransport();
+		RecordingTransport second = new RecordingTransport();
+		RecordingTransport third = new RecordingTransport();
+		this.seeder.addPeer(this.createNeighbor(1, first, (byte) 0xC0));
+		this.seeder.addPeer(this.createNeighbor(2, second, (byte) 0));
+		this.seeder.addPeer(this.createNeighbor(3, third, (byte) 0));
+
+		Set<Integer> offers = new HashSet<Integer>();
+		for (RecordingTransport transport : List.of(first, second, third))
+		{
+			assertEquals(1, transport.haves.size());
+			offers.add(transport.haves.get(0));
+		}
+		assertEquals(Set.of(2, 3, 4), offers);
+	}
+
+	@Test
+	public void offersLeastOfferedPieceFirst()
+	{
+		// The first neighbor leaves before taking its piece, which nobody holds
+		// but which has been offered once
+		RecordingTransport first = new RecordingTransport();
+		PeerConnection firstConnection = this.createNeighbor(1, first, (byte) 0);
+		this.seeder.addPeer(firstConnection);
+		this.seeder.removePeer(firstConnection);
+
+		RecordingTransport second = new RecordingTransport();
+		this.seeder.addPeer(this.createNeighbor(2, second, (byte) 0));
+		assertNotEquals(first.haves.get(0), second.haves.get(0));
+	}
+
+	@Test
+	public void offersNewPieceOnceAnotherNeighborAnnouncesIt()
+	{
+		RecordingTransport first = new RecordingTransport();
+		RecordingTransport second = new RecordingTransport();
+		PeerConnection firstConnection = this.createNeighbor(1, first, (byte) 0);
+		PeerConnection secondConnection = this.createNeighbor(2, second, (byte) 0);
+		this.seeder.addPeer(firstConnection);
+		this.seeder.addPeer(secondConnection);
+		int offer = first.haves.get(0);
+		assertNotEquals(offer, second.haves.get(0));
+
+		// The first neighbor announcing its own piece shows nothing, since the
+		// second neighbor still lacks it
+		this.announce(firstConnection, offer);
+		assertEquals(1, first.haves.size());
+
+		// The second neighbor received the piece from the first one
+		this.announce(secondConnection, offer);
+		assertEquals(2, first.haves.size());
+		assertNotEquals(offer, first.haves.get(1));
+		assertEquals(1, second.haves.size());
+	}
+
+	@Test
+	public void offersNewPieceWhenNobodyLacksIt()
+	{
+		// The only neighbor has nobody to pass its piece on to
+		RecordingTransport transport = new RecordingTransport();
+		PeerConnection connection = this.createNeighbor(1, transport, (byte) 0);
+		this.seeder.addPeer(connection);
+		int offer = transport.haves.get(0);
+
+		this.announce(connection, offer);
+		assertEquals(2, transport.haves.size());
+		assertNotEquals(offer, transport.haves.get(1));
+	}
+
+	@Test
+	public void revealsAllPiecesOnceEveryPieceHasHolder()
+	{
+		// The first neighbor has every piece but the last, which it is offered
+		RecordingTransport first = new RecordingTransport();
+		RecordingTransport second = new RecordingTransport();
+		PeerConnection firstConnection = this.createNeighbor(1, first, (byte) 0xF0);
+		this.seeder.addPeer(firstConnection);
+		this.seeder.addPeer(this.createNeighbor(2, second, (byte) 0));
+		assertEquals(List.of(PIECE_COUNT - 1), first.haves);
+		assertTrue(this.seeder.isActive());
+
+		this.announce(firstConnection, PIECE_COUNT - 1);
+		assertFalse(this.seeder.isActive());
+		List<Integer> allPieces = List.of(0, 1, 2, 3, 4);
+		assertEquals(allPieces, first.haves.subList(1, first.haves.size()));
+		assertEquals(allPieces, second.haves.subList(1, second.haves.size()));
+	}
+
+	private PeerConnection createNeighbor(int peer, RecordingTransport transport, byte bits)
+	{
+		// The handshake registers the connection with the process
+		PeerConnection connection = new PeerConnection(this.process, transport);
+		HandshakeMessage handshake = HandshakeMessage.createHandshakeMessage(this.swarm.getPeerID(peer),
+				new byte[HandshakeMessage.ZEROBITS.length]);
+		connection.receive(ByteBuffer.wrap(handshake.getPayload()));
+		this.process.addBitfield(connection, Bitfield.readBitfield(this.process, ByteBuffer.wrap(new byte[] { bits })));
+		return connection;
+	}
+
+	private void announce(PeerConnection connection, int index)
+	{
+		this.process.getAllbitfields().updateBitfield(connection, index);
+		this.seeder.receivedHave(connection, index);
+	}
+}
@@ -0,0 +1,112 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the moving averages and the history of the transfer rate meter.
+ */
+public class TransferRateMeterTest
+{
+	// The tolerance of the compared rates in bytes per second
+	private static final double DELTA = 1e-6;
+
+	@Test
+	public void startsWithoutRate()
+	{
+		TransferRateMeter meter = new TransferRateMeter();
+		assertEquals(0, meter.getRate(), DELTA);
+		assertEquals(0, meter.getMediumTermRate(), DELTA);
+		assertEquals(0, meter.getLongTermRate(), DELTA);
+		assertEquals(0, meter.getTotal());
+	}
+
+	@Test
+	public void recordsBytesOnlyInTotalUntilTick()
+	{
+		TransferRateMeter meter = new TransferRateMeter();
+		meter.record(1000);
+		meter.record(500);
+		assertEquals(1500, meter.getTotal());
+		assertEquals(0, meter.getLastSecond());
+		assertEquals(0, meter.getRate(), DELTA);
+	}
+
+	@Test
+	public void movesAveragesByTheirGain()
+	{
+		// Each average moves by 1 - e^(-1 / window) of the error each second
+		TransferRateMeter meter = new TransferRateMeter();
+		meter.record(1000);
+		meter.tick();
+		assertEquals(1000 * gain(TransferRateMeter.SHORT_WINDOW), meter.getRate(), DELTA);
+		assertEquals(1000 * gain(TransferRateMeter.MEDIUM_WINDOW), meter.getMediumTermRate(), DELTA);
+		assertEquals(1000 * gain(TransferRateMeter.LONG_WINDOW), meter.getLongTermRate(), DELTA);
+
+		double rate = meter.getRate();
+		meter.tick();
+		assertEquals(rate * (1 - gain(TransferRateMeter.SHORT_WINDOW)), meter.getRate(), DELTA);
+	}
+
+	@Test
+	public void shortTermRateFollowsChangesFirst()
+	{
+		TransferRateMeter meter = new TransferRateMeter();
+		for (int second = 0; second < 10; ++second)
+		{
+			meter.record(1000);
+			meter.tick();
+		}
+		assertTrue(meter.getRate() > meter.getMediumTermRate());
+		assertTrue(meter.getMediumTermRate() > meter.getLongTermRate());
+	}
+
+	@Test
+	public void convergesToSteadyRate()
+	{
+		TransferRateMeter meter = new TransferRateMeter();
+		for (int second = 0; second < 20 * TransferRateMeter.LONG_WINDOW; ++second)
+		{
+			meter.record(2000);
+			meter.tick();
+		}
+		assertEquals(2000, meter.getRate(), 1);
+		assertEquals(2000, meter.getMediumTermRate(), 1);
+		assertEquals(2000, meter.getLongTermRate(), 1);
+	}
+
+	@Test
+	public void keepsBytesOfRecentSeconds()
+	{
+		TransferRateMeter meter = new TransferRateMeter();
+		for (int second = 1; second <= 3; ++second)
+		{
+			meter.record(second * 100);
+			meter.tick();
+		}
+		assertEquals(300, meter.getLastSecond());
+		assertEquals(500, meter.getRecentBytes(2));
+		assertEquals(600, meter.getRecentBytes(TransferRateMeter.BUCKET_COUNT + 10));
+	}
+
+	@Test
+	public void forgetsBytesOlderThanHistory()
+	{
+		TransferRateMeter meter = new TransferRateMeter();
+		meter.record(1000);
+		meter.tick();
+		for (int second = 0; second < TransferRateMeter.BUCKET_COUNT; ++second)
+		{
+			meter.tick();
+		}
+		assertEquals(0, meter.getRecentBytes(TransferRateMeter.BUCKET_COUNT));
+		assertEquals(1000, meter.getTotal());
+	}
+
+	private static double gain(int window)
+	{
+		return 1 - Math.exp(-1.0 / window);
+	}
+}
@@ -0,0 +1,199 @@
+package bittorrent.protocol.peer.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import bittorrent.protocol.messages.MessageType;
+import bittorrent.protocol.peer.PeerProcess;
+import bittorrent.protocol.peer.SwarmFixture;
+import bittorrent.protocol.peer.transport.PeerTransport;
+
+/**
+ * Tests how the upload limiter shares the upload rate between the connections
+ * with queued pieces.
+ */
+public class UploadLimiterTest
+{
+	// A piece message, which is also the quantum of a connection
+	private static final int PIECE_SIZE = 1000;
+	private static final int PIECE_COST = PIECE_SIZE + 9;
+
+	// The rate, which allows a burst of 10 pieces
+	private static final long MAX_RATE = 100 * PIECE_COST;
+
+	private static SwarmFixture swarm;
+	private static PeerProcess process;
+
+	/**
+	 * A transport that records the pieces written to it and can hold them
+	 * queued until the test drains it
+	 */
+	private static class RecordingTransport implements PeerTransport
+	{
+		private List<Integer> pieces = new ArrayList<Integer>();
+		private boolean isBlocked;
+		private Runnable drainHandler;
+
+		@Override
+		public void start(PeerConnection connection)
+		{
+
+		}
+
+		@Override
+		public void write(ByteBuffer message)
+		{
+			try
+			{
+				if (MessageType.parse(message.get(4)) == MessageType.PIECE)
+				{
+					this.pieces.add(message.getInt(5));
+				}
+			}
+			catch (IOException e)
+			{
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override
+		public long getQueuedBytes()
+		{
+			return this.isBlocked ? OutboundQueue.QUEUED_LIMIT : 0;
+		}
+
+		@Override
+		public void setDrainHandler(Runnable handler)
+		{
+			this.drainHandler = handler;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+
+		}
+
+		private void drain()
+		{
+			this.isBlocked = false;
+			this.drainHandler.run();
+		}
+	}
+
+	@BeforeAll
+	public static void createProcess() throws IOException
+	{
+		swarm = new SwarmFixture(27000, 1, 10 * PIECE_SIZE + 123, PIECE_SIZE);
+		process = swarm.createProcess(0);
+	}
+
+	@AfterAll
+	public static void removeProcess() throws IOException
+	{
+		swarm.close();
+	}
+
+	@Test
+	public void sharesRateEquallyBetweenBackloggedConnections()
+	{
+		// The bucket holds four pieces, which are sent in turns
+		UploadLimiter limiter = new UploadLimiter(MAX_RATE, PIECE_SIZE);
+		RecordingTransport first = new RecordingTransport();
+		RecordingTransport second = new RecordingTransport();
+		enqueue(limiter, new PeerConnection(process, first), 0, 1, 2, 3, 4);
+		enqueue(limiter, new PeerConnection(process, second), 5, 6, 7, 8, 9);
+
+		limiter.serve(4 * PIECE_COST);
+		assertEquals(List.of(0, 1), first.pieces);
+		assertEquals(List.of(5, 6), second.pieces);
+
+		limiter.serve(4 * PIECE_COST);
+		assertEquals(List.of(0, 1, 2, 3), first.pieces);
+		assertEquals(List.of(5, 6, 7, 8), second.pieces);
+	}
+
+	@Test
+	public void carriesDeficitOfTurnInterruptedByBucket()
+	{
+		// The bucket runs out at the turn of the second connection, which resumes
+		// with the deficit it was given instead of receiving a second quantum
+		UploadLimiter limiter = new UploadLimiter(MAX_RATE, PIECE_SIZE);
+		RecordingTransport first = new RecordingTransport();
+		RecordingTransport second = new RecordingTransport();
+		enqueue(limiter, new PeerConnection(process, first), 0, 1, 2);
+		enqueue(limiter, new PeerConnection(process, second), 5, 6, 7);
+
+		limiter.serve(PIECE_COST);
+		assertEquals(List.of(0), first.pieces);
+		assertEquals(List.of(), second.pieces);
+
+		// A second quantum would let the second connection send both pieces
+		limiter.serve(2 * PIECE_COST);
+		assertEquals(List.of(0, 1), first.pieces);
+		assertEquals(List.of(5), second.pieces);
+	}
+
+	@Test
+	public void skipsConnectionStillUploading()
+	{
+		UploadLimiter limiter = new UploadLimiter(MAX_RATE, PIECE_SIZE);
+		RecordingTransport slow = new RecordingTransport();
+		RecordingTransport fast = new RecordingTransport();
+		PeerConnection slowConnection = new PeerConnection(process, slow);
+		slow.isBlocked = true;
+		enqueue(limiter, slowConnection, 0, 1);
+		enqueue(limiter, new PeerConnection(process, fast), 5, 6);
+
+		// The first piece of the slow connection is held by its outbound queue
+		limiter.serve(4 * PIECE_COST);
+		assertTrue(slowConnection.isUploading());
+		assertEquals(List.of(), slow.pieces);
+		assertEquals(List.of(5, 6), fast.pieces);
+
+		slow.drain();
+		limiter.resume(slowConnection);
+		assertFalse(slowConnection.isUploading());
+		limiter.serve(0);
+		assertEquals(List.of(0, 1), slow.pieces);
+	}
+
+	@Test
+	public void removesCancelledPiece()
+	{
+		UploadLimiter limiter = new UploadLimiter(MAX_RATE, PIECE_SIZE);
+		RecordingTransport transport = new RecordingTransport();
+		PeerConnection connection = new PeerConnection(process, transport);
+		enqueue(limiter, connection, 0, 1, 2);
+		assertTrue(limiter.cancel(connection, 1));
+		assertFalse(limiter.cancel(connection, 1));
+		assertFalse(limiter.cancel(connection, 5));
+
+		limiter.serve(4 * PIECE_COST);
+		assertEquals(List.of(0, 2), transport.pieces);
+	}
+
+	private static void enqueue(UploadLimiter limiter, PeerConnection connection, int... indices)
+	{
+		for (int index : indices)
+		{
+			limiter.enqueue(connection, index);
+		}
+	}
+}
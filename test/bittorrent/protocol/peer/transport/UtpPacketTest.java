@@ -0,0 +1,106 @@
+package bittorrent.protocol.peer.transport;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the encoding and decoding of the packets of the UDP transport.
+ */
+public class UtpPacketTest
+{
+	@Test
+	public void decodesEncodedHeader()
+	{
+		UtpPacket packet = new UtpPacket(UtpPacket.ST_STATE, 0x1234, 65535, 17);
+		packet.setTimestamp(123456789);
+		packet.setTimestampDifference(-42);
+		packet.setWindowSize(1 << 20);
+
+		UtpPacket decoded = roundTrip(packet);
+		assertEquals(UtpPacket.ST_STATE, decoded.getType());
+		assertEquals(0x1234, decoded.getConnectionID());
+		assertEquals(65535, decoded.getSequenceNumber());
+		assertEquals(17, decoded.getAcknowledgementNumber());
+		assertEquals(123456789, decoded.getTimestamp());
+		assertEquals(-42, decoded.getTimestampDifference());
+		assertEquals(1 << 20, decoded.getWindowSize());
+		assertNull(decoded.getSelectiveAck());
+		assertEquals(0, decoded.getPayload().length);
+	}
+
+	@Test
+	public void decodesPayloadAndSelectiveAck()
+	{
+		UtpPacket packet = new UtpPacket(UtpPacket.ST_DATA, 7, 100, 99);
+		packet.setSelectiveAck(new byte[] { 0x05, 0, 0, (byte) 0x80 });
+		packet.setPayload(new byte[] { 1, 2, 3, 4, 5 });
+		assertEquals(UtpPacket.HEADER_SIZE + 2 + 4 + 5, packet.getSize());
+
+		UtpPacket decoded = roundTrip(packet);
+		assertEquals(UtpPacket.ST_DATA, decoded.getType());
+		assertArrayEquals(new byte[] { 0x05, 0, 0, (byte) 0x80 }, decoded.getSelectiveAck());
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, decoded.getPayload());
+	}
+
+	@Test
+	public void keepsSixteenBitFields()
+	{
+		UtpPacket packet = new UtpPacket(UtpPacket.ST_SYN, 0x12345, 0x10001, -1);
+		assertEquals(0x2345, packet.getConnectionID());
+		assertEquals(1, packet.getSequenceNumber());
+		assertEquals(0xFFFF, packet.getAcknowledgementNumber());
+	}
+
+	@Test
+	public void rejectsInvalidDatagrams()
+	{
+		// Too short for a header
+		assertNull(UtpPacket.parse(ByteBuffer.allocate(UtpPacket.HEADER_SIZE - 1)));
+
+		// Wrong version
+		ByteBuffer buffer = encode(new UtpPacket(UtpPacket.ST_DATA, 1, 1, 1));
+		buffer.put(0, (byte) ((UtpPacket.ST_DATA << 4) | (UtpPacket.VERSION + 1)));
+		assertNull(UtpPacket.parse(buffer));
+
+		// Unknown type
+		buffer = encode(new UtpPacket(UtpPacket.ST_DATA, 1, 1, 1));
+		buffer.put(0, (byte) (((UtpPacket.ST_SYN + 1) << 4) | UtpPacket.VERSION));
+		assertNull(UtpPacket.parse(buffer));
+
+		// Truncated extension
+		UtpPacket packet = new UtpPacket(UtpPacket.ST_STATE, 1, 1, 1);
+		packet.setSelectiveAck(new byte[] { 1, 2, 3, 4 });
+		buffer = encode(packet);
+		buffer.limit(buffer.limit() - 2);
+		assertNull(UtpPacket.parse(buffer));
+	}
+
+	@Test
+	public void comparesSequenceNumbersAcrossWrapAround()
+	{
+		assertEquals(1, UtpPacket.compareSequence(0, 65535));
+		assertEquals(-1, UtpPacket.compareSequence(65535, 0));
+		assertEquals(10, UtpPacket.compareSequence(15, 5));
+		assertEquals(0, UtpPacket.compareSequence(300, 300));
+	}
+
+	private static ByteBuffer encode(UtpPacket packet)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(packet.getSize());
+		packet.writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static UtpPacket roundTrip(UtpPacket packet)
+	{
+		ByteBuffer buffer = encode(packet);
+		assertEquals(packet.getSize(), buffer.remaining());
+		return UtpPacket.parse(buffer);
+	}
+}